@@ -0,0 +1,565 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A utility that builds the ImpactIndex of a Lucene index:  the
+ *  largest BM25 and Indri scores that each term can give a document,
+ *  for the specified retrieval model parameters.  It reads each
+ *  term's postings once and saves the bounds in the index directory,
+ *  where QryEval finds them when it opens the index.  It can also
+ *  write the ImpactOrderedIndex of some fields, for score-at-a-time
+ *  evaluation.  Run it to see a simple usage message.
+ *  <p>
+ *  Rebuild the file when the index changes or when the BM25 or Indri
+ *  parameters change; QryEval ignores it otherwise.
+ *  </p>
+ */
+public class BuildImpactIndex {
+
+    static String usage =
+	"Usage:  java " +
+	System.getProperty("sun.java.command") +
+	" -index INDEX_PATH\n\n" +
+	"where options include\n" +
+	"    -k_1 K_1\t\tthe BM25 k_1 parameter (default 1.2)\n" +
+	"    -b B\t\tthe BM25 b parameter (default 0.75)\n" +
+	"    -mu MU\t\tthe Indri mu parameter (default 2500)\n" +
+	"    -fields FIELD,...\n" +
+	"\t\t\tthe fields to cover (default all indexed fields)\n" +
+	"    -ordered FIELD,...\n" +
+	"\t\t\talso write impact-ordered lists for these fields\n" +
+	"    -bands N\t\tthe number of bands of impact-ordered lists\n" +
+	"\t\t\t(default 16)\n";
+
+    /*
+     *  The bounds of one field, in the order that they are written.
+     */
+    static class FieldBounds {
+	String name;
+	int numTerms = 0;
+	int numBlocks = 0;
+	ByteArrayOutputStream terms = new ByteArrayOutputStream ();
+	IntArray termOffsets = new IntArray ();
+	IntArray firstBlock = new IntArray ();
+	FloatArray maxBM25 = new FloatArray ();
+	FloatArray maxIndri = new FloatArray ();
+	IntArray blockLastDocid = new IntArray ();
+	FloatArray blockBM25 = new FloatArray ();
+	FloatArray blockIndri = new FloatArray ();
+
+	long length () {
+	    long n = 4L * (2 * (numTerms + 1) + 2 * numTerms + 3 * numBlocks) +
+		terms.size ();
+	    return (n + 3) & ~3L;
+	}
+    }
+
+    /*
+     *  The impact-ordered lists of one field.  The postings are written
+     *  to a temporary file as they are built, and the term dictionary
+     *  is the one in bounds.
+     */
+    static class FieldSegments {
+	FieldBounds bounds;
+	int numSegments = 0;
+	int numPostings = 0;
+	IntArray firstSegment = new IntArray ();
+	IntArray segmentStart = new IntArray ();
+	FloatArray segmentBound = new FloatArray ();
+	File postingsFile;
+	DataOutputStream postings;
+
+	long length () {
+	    long n = 4L * (2 * (bounds.numTerms + 1) + 2 * numSegments + 1) +
+		8L * numPostings + bounds.terms.size ();
+	    return (n + 3) & ~3L;
+	}
+    }
+
+    /*
+     *  Growable primitive arrays, so that large fields don't box.
+     */
+    static class IntArray {
+	int[] a = new int[1024];
+	int n = 0;
+
+	void add (int v) {
+	    if (n == a.length)
+		a = Arrays.copyOf (a, 2 * n);
+	    a[n++] = v;
+	}
+    }
+
+    static class DoubleArray {
+	double[] a = new double[1024];
+	int n = 0;
+
+	void add (double v) {
+	    if (n == a.length)
+		a = Arrays.copyOf (a, 2 * n);
+	    a[n++] = v;
+	}
+    }
+
+    static class FloatArray {
+	float[] a = new float[1024];
+	int n = 0;
+
+	void add (float v) {
+	    if (n == a.length)
+		a = Arrays.copyOf (a, 2 * n);
+	    a[n++] = v;
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+
+	String indexPath = null;
+	String fieldList = null;
+	String orderedList = null;
+	int numBands = 16;
+
+	/*
+	 *  Parameters are parsed the way that QryEval parses them, so
+	 *  that QryEval's retrieval models compare equal to them.
+	 */
+	double k_1 = Float.parseFloat ("1.2");
+	double b = Float.parseFloat ("0.75");
+	double mu = Float.parseFloat ("2500");
+
+	for (int i=0; i < args.length; i++) {
+
+	    if ((i+1) >= args.length) {
+		System.err.println (usage);
+		System.exit (1);
+	    };
+
+	    if ("-index".equals (args[i]))
+		indexPath = args[i+1];
+	    else if ("-k_1".equals (args[i]))
+		k_1 = Float.parseFloat (args[i+1]);
+	    else if ("-b".equals (args[i]))
+		b = Float.parseFloat (args[i+1]);
+	    else if ("-mu".equals (args[i]))
+		mu = Float.parseFloat (args[i+1]);
+	    else if ("-fields".equals (args[i]))
+		fieldList = args[i+1];
+	    else if ("-ordered".equals (args[i]))
+		orderedList = args[i+1];
+	    else if ("-bands".equals (args[i]))
+		numBands = Integer.parseInt (args[i+1]);
+	    else {
+		System.err.println ("Error:  Unknown argument " + args[i]);
+		System.err.println (usage);
+		System.exit (1);
+	    };
+
+	    i++;
+	};
+
+	if (indexPath == null) {
+	    System.err.println (usage);
+	    System.exit (1);
+	};
+
+	IndexReader reader = DirectoryReader.open (
+				 FSDirectory.open (new File (indexPath)));
+
+	List<String> fields = new ArrayList<String> ();
+
+	if (fieldList == null)
+	    fields.addAll (MultiFields.getIndexedFields (reader));
+	else
+	    fields.addAll (Arrays.asList (fieldList.split (",")));
+
+	Collections.sort (fields);
+
+	Set<String> ordered = new HashSet<String> ();
+
+	if (orderedList != null)
+	    ordered.addAll (Arrays.asList (orderedList.split (",")));
+
+	if (! fields.containsAll (ordered)) {
+	    System.err.println ("Error:  -ordered fields must be covered by -fields");
+	    System.exit (1);
+	};
+
+	/*
+	 *  Use the same lengths and statistics that the scoring functions use.
+	 */
+	DocLengthStore lengths = new DocLengthStore (reader);
+	CollectionStats stats = new CollectionStats (reader);
+	List<FieldBounds> bounds = new ArrayList<FieldBounds> ();
+	List<FieldSegments> segments = new ArrayList<FieldSegments> ();
+
+	for (String field : fields) {
+	    System.out.println ("Field " + field);
+
+	    FieldSegments s = null;
+
+	    if (ordered.contains (field)) {
+		s = new FieldSegments ();
+		s.postingsFile = File.createTempFile ("qryeval-", ".postings");
+		s.postingsFile.deleteOnExit ();
+		s.postings = new DataOutputStream (new BufferedOutputStream (
+		    new FileOutputStream (s.postingsFile), 1 << 16));
+		segments.add (s);
+	    };
+
+	    bounds.add (buildField (reader, lengths, stats, field, k_1, b, mu,
+				    s, numBands));
+	};
+
+	File file = new File (indexPath, ImpactIndex.FILE_NAME);
+	write (reader, file, bounds, k_1, b, mu);
+	System.out.println ("Wrote " + file);
+
+	if (! segments.isEmpty ()) {
+	    file = new File (indexPath, ImpactOrderedIndex.FILE_NAME);
+	    writeOrdered (reader, file, segments, k_1, b, numBands);
+	    System.out.println ("Wrote " + file);
+	};
+
+	reader.close ();
+    }
+
+    /*
+     *  buildField reads every posting of every term in a field and
+     *  records the largest scores, overall and per block.  If s isn't
+     *  null, it also sorts each term's postings into impact-ordered
+     *  segments.
+     */
+    static FieldBounds buildField (IndexReader reader,
+				   DocLengthStore lengths,
+				   CollectionStats stats,
+				   String field,
+				   double k_1, double b, double mu,
+				   FieldSegments s, int numBands)
+	throws IOException {
+
+	FieldBounds f = new FieldBounds ();
+	f.name = field;
+	f.termOffsets.add (0);
+	f.firstBlock.add (0);
+
+	if (s != null) {
+	    s.bounds = f;
+	    s.firstSegment.add (0);
+	};
+
+	Terms terms = MultiFields.getTerms (reader, field);
+
+	if (terms == null)
+	    return finishField (f, s);
+
+	Bits liveDocs = MultiFields.getLiveDocs (reader);
+	int ord = lengths.fieldOrdinal (field);
+	double avg_len = stats.getAvgFieldLength (field);
+	double collection_len = stats.getSumOfFieldLengths (field);
+
+	IntArray docids = new IntArray ();
+	IntArray tfs = new IntArray ();
+	DoubleArray weights = new DoubleArray ();
+	TermsEnum ithTerm = terms.iterator (null);
+	DocsEnum docs = null;
+	BytesRef term;
+
+	while ((term = ithTerm.next ()) != null) {
+
+	    /*
+	     *  Read the postings first; the Indri probabilities need the
+	     *  term's ctf, which (like InvList's) counts live documents.
+	     */
+	    docs = ithTerm.docs (liveDocs, docs, DocsEnum.FLAG_FREQS);
+	    docids.n = 0;
+	    tfs.n = 0;
+	    weights.n = 0;
+
+	    long ctf = 0;
+
+	    while (docs.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+		docids.add (docs.docID ());
+		tfs.add (docs.freq ());
+		ctf += docs.freq ();
+	    };
+
+	    if (docids.n == 0)
+		continue;		// Only deleted documents
+
+	    for (int j = 0; j < docids.n; j++)
+		weights.add (QrySopScore.tfWeightBM25 (
+		    tfs.a[j], lengths.getDocLength (ord, docids.a[j]),
+		    k_1, b, avg_len));
+
+	    double mu_mle = mu * (ctf / collection_len);
+	    float termBM25 = 0;
+	    float termIndri = 0;
+
+	    for (int start = 0; start < docids.n; start += ImpactIndex.BLOCK_SIZE) {
+		int end = Math.min (start + ImpactIndex.BLOCK_SIZE, docids.n);
+		double blockBM25 = 0;
+		double blockIndri = 0;
+
+		for (int j = start; j < end; j++) {
+		    double tf = tfs.a[j];
+		    double doc_len = lengths.getDocLength (ord, docids.a[j]);
+
+		    blockBM25 = Math.max (blockBM25, weights.a[j]);
+		    blockIndri = Math.max (blockIndri,
+			(tf + mu_mle) / (doc_len + mu));
+		};
+
+		f.blockLastDocid.add (docids.a[end - 1]);
+		f.blockBM25.add (roundUp (blockBM25));
+		f.blockIndri.add (roundUp (blockIndri));
+		f.numBlocks ++;
+
+		termBM25 = Math.max (termBM25, roundUp (blockBM25));
+		termIndri = Math.max (termIndri, roundUp (blockIndri));
+	    };
+
+	    f.terms.write (term.bytes, term.offset, term.length);
+	    f.termOffsets.add (f.terms.size ());
+	    f.firstBlock.add (f.numBlocks);
+	    f.maxBM25.add (termBM25);
+	    f.maxIndri.add (termIndri);
+	    f.numTerms ++;
+
+	    if (s != null)
+		addSegments (s, docids, tfs, weights, numBands);
+	};
+
+	return finishField (f, s);
+    }
+
+    /*
+     *  addSegments groups one term's postings by band, highest band
+     *  first, and writes them.  A counting sort keeps each segment's
+     *  postings in docid order.
+     */
+    static void addSegments (FieldSegments s, IntArray docids, IntArray tfs,
+			     DoubleArray weights, int numBands)
+	throws IOException {
+
+	int[] band = new int[docids.n];
+	int[] count = new int[numBands + 1];
+	double[] max = new double[numBands];
+
+	for (int j = 0; j < docids.n; j++) {
+
+	    /*
+	     *  Band 0 has the highest weights.
+	     */
+	    int w = Math.min ((int) (weights.a[j] * numBands), numBands - 1);
+	    band[j] = numBands - 1 - w;
+	    count[band[j] + 1] ++;
+	    max[band[j]] = Math.max (max[band[j]], weights.a[j]);
+	};
+
+	for (int i = 0; i < numBands; i++)
+	    count[i + 1] += count[i];
+
+	int[] order = new int[docids.n];
+
+	for (int j = 0; j < docids.n; j++)
+	    order[count[band[j]] ++] = j;
+
+	for (int i = 0, j = 0; i < numBands; i++) {
+	    if (j == count[i])
+		continue;		// An empty band
+
+	    s.segmentStart.add (s.numPostings + j);
+	    s.segmentBound.add (roundUp (max[i]));
+	    s.numSegments ++;
+	    j = count[i];
+	};
+
+	for (int j = 0; j < docids.n; j++) {
+	    s.postings.writeInt (docids.a[order[j]]);
+	    s.postings.writeInt (tfs.a[order[j]]);
+	};
+
+	s.numPostings += docids.n;
+	s.firstSegment.add (s.numSegments);
+    }
+
+    /*
+     *  finishField closes the field's impact-ordered postings, if any.
+     */
+    static FieldBounds finishField (FieldBounds f, FieldSegments s)
+	throws IOException {
+
+	if (s != null) {
+	    s.segmentStart.add (s.numPostings);
+	    s.postings.close ();
+	};
+
+	return f;
+    }
+
+    /*
+     *  roundUp returns the smallest float that is at least x, so that
+     *  a stored bound is never below the score that it bounds.
+     */
+    static float roundUp (double x) {
+	float f = (float) x;
+	return (f < x) ? Math.nextUp (f) : f;
+    }
+
+    /*
+     *  write saves the bounds in the format that ImpactIndex reads.
+     *  It writes a temporary file and renames it, so that QryEval
+     *  never sees a partial file.
+     */
+    static void write (IndexReader reader, File file,
+		       List<FieldBounds> bounds,
+		       double k_1, double b, double mu) throws IOException {
+
+	long version = (reader instanceof DirectoryReader) ?
+	    ((DirectoryReader) reader).getVersion () : 0;
+
+	File tmp = new File (file.getPath () + ".tmp");
+	DataOutputStream out = new DataOutputStream (
+	    new BufferedOutputStream (new FileOutputStream (tmp), 1 << 16));
+
+	try {
+	    out.writeInt (ImpactIndex.MAGIC);
+	    out.writeInt (ImpactIndex.FORMAT);
+	    out.writeLong (version);
+	    out.writeInt (reader.maxDoc ());
+	    out.writeInt (ImpactIndex.BLOCK_SIZE);
+	    out.writeDouble (k_1);
+	    out.writeDouble (b);
+	    out.writeDouble (mu);
+	    out.writeInt (bounds.size ());
+
+	    for (FieldBounds f : bounds) {
+		byte[] name = f.name.getBytes (ImpactIndex.UTF8);
+		out.writeShort (name.length);
+		out.write (name);
+		out.writeInt (f.numTerms);
+		out.writeInt (f.numBlocks);
+		out.writeLong (f.length ());
+	    };
+
+	    while (out.size () % 4 != 0)
+		out.writeByte (0);
+
+	    for (FieldBounds f : bounds) {
+		writeInts (out, f.termOffsets);
+		writeInts (out, f.firstBlock);
+		writeFloats (out, f.maxBM25);
+		writeFloats (out, f.maxIndri);
+		writeInts (out, f.blockLastDocid);
+		writeFloats (out, f.blockBM25);
+		writeFloats (out, f.blockIndri);
+		f.terms.writeTo (out);
+
+		for (int pad = f.terms.size (); pad % 4 != 0; pad++)
+		    out.writeByte (0);
+	    };
+	} finally {
+	    out.close ();
+	};
+
+	if (file.exists ())
+	    file.delete ();
+
+	if (! tmp.renameTo (file))
+	    throw new IOException ("Unable to write " + file);
+    }
+
+    /*
+     *  writeOrdered saves the impact-ordered lists in the format that
+     *  ImpactOrderedIndex reads.
+     */
+    static void writeOrdered (IndexReader reader, File file,
+			      List<FieldSegments> segments,
+			      double k_1, double b, int numBands)
+	throws IOException {
+
+	long version = (reader instanceof DirectoryReader) ?
+	    ((DirectoryReader) reader).getVersion () : 0;
+
+	File tmp = new File (file.getPath () + ".tmp");
+	DataOutputStream out = new DataOutputStream (
+	    new BufferedOutputStream (new FileOutputStream (tmp), 1 << 16));
+
+	try {
+	    out.writeInt (ImpactOrderedIndex.MAGIC);
+	    out.writeInt (ImpactOrderedIndex.FORMAT);
+	    out.writeLong (version);
+	    out.writeInt (reader.maxDoc ());
+	    out.writeDouble (k_1);
+	    out.writeDouble (b);
+	    out.writeInt (numBands);
+	    out.writeInt (segments.size ());
+
+	    for (FieldSegments s : segments) {
+		byte[] name = s.bounds.name.getBytes (ImpactIndex.UTF8);
+		out.writeShort (name.length);
+		out.write (name);
+		out.writeInt (s.bounds.numTerms);
+		out.writeInt (s.numSegments);
+		out.writeInt (s.numPostings);
+		out.writeLong (s.length ());
+	    };
+
+	    while (out.size () % 4 != 0)
+		out.writeByte (0);
+
+	    for (FieldSegments s : segments) {
+		writeInts (out, s.bounds.termOffsets);
+		writeInts (out, s.firstSegment);
+		writeInts (out, s.segmentStart);
+		writeFloats (out, s.segmentBound);
+
+		InputStream in = new FileInputStream (s.postingsFile);
+
+		try {
+		    byte[] buf = new byte[1 << 16];
+		    int n;
+
+		    while ((n = in.read (buf)) > 0)
+			out.write (buf, 0, n);
+		} finally {
+		    in.close ();
+		};
+
+		s.postingsFile.delete ();
+		s.bounds.terms.writeTo (out);
+
+		for (int pad = s.bounds.terms.size (); pad % 4 != 0; pad++)
+		    out.writeByte (0);
+	    };
+	} finally {
+	    out.close ();
+	};
+
+	if (file.exists ())
+	    file.delete ();
+
+	if (! tmp.renameTo (file))
+	    throw new IOException ("Unable to write " + file);
+    }
+
+    static void writeInts (DataOutputStream out, IntArray a)
+	throws IOException {
+	for (int i = 0; i < a.n; i++)
+	    out.writeInt (a.a[i]);
+    }
+
+    static void writeFloats (DataOutputStream out, FloatArray a)
+	throws IOException {
+	for (int i = 0; i < a.n; i++)
+	    out.writeFloat (a.a[i]);
+    }
+}
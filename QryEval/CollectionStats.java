@@ -0,0 +1,86 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  Collection statistics for an index:  the number of documents, and
+ *  for each field, the number of documents that contain the field, the
+ *  total length of the field, and its average length.  They are
+ *  computed once, when the index is opened, and never change, so the
+ *  scoring functions can read them in O(1) without calling Lucene.
+ *  <p>
+ *  Fields that aren't indexed have a document count and total length
+ *  of 0.
+ *  </p>
+ */
+public class CollectionStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final long numDocs;
+  private final Map<String,long[]> fields;	// {docCount, sumOfLengths}
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compute the statistics of an index.
+   *  @param reader The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public CollectionStats (IndexReader reader) throws IOException {
+
+    Map<String,long[]> fields = new HashMap<String,long[]> ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      long[] stats = { reader.getDocCount (field),
+		       reader.getSumTotalTermFreq (field) };
+      fields.put (field, stats);
+    }
+
+    this.numDocs = reader.numDocs ();
+    this.fields = Collections.unmodifiableMap (fields);
+  }
+
+  /**
+   *  Get the average length of a field in the documents that contain it.
+   *  @param fieldName The field name.
+   *  @return The average field length.
+   */
+  public double getAvgFieldLength (String fieldName) {
+    return this.getSumOfFieldLengths (fieldName) /
+      (double) this.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   */
+  public int getDocCount (String fieldName) {
+    long[] stats = this.fields.get (fieldName);
+    return (stats == null) ? 0 : (int) stats [0];
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    long[] stats = this.fields.get (fieldName);
+    return (stats == null) ? 0 : stats [1];
+  }
+}
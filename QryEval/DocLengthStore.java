@@ -2,9 +2,12 @@
  *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,20 +15,271 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * By default, lengths are read from Lucene's norms each time that they
+ * are requested.  The store can also be opened in an eager mode that
+ * decodes each field's lengths once, when the index is opened, into a
+ * dense int array (HEAP), or into a file in the index directory that
+ * is memory-mapped (MMAP) for indexes whose lengths don't fit on the
+ * heap.  The file is rebuilt if the index changes.
+ * </p><p>
+ * Scorers that look up many lengths for the same field should get the
+ * field's ordinal once with fieldOrdinal and use getDocLength (ord,
+ * docid), which is a single array read in the eager modes.
+ * </p>
  */
 public class DocLengthStore  {
 
+  /**
+   * How document lengths are stored.
+   */
+  public enum Mode {
+    /** Read lengths from Lucene's norms when they are requested. */
+    LUCENE,
+    /** Decode lengths into int arrays when the index is opened. */
+    HEAP,
+    /** Decode lengths into a memory-mapped file when the index is opened. */
+    MMAP
+  }
+
+  /**
+   * The name of the file, in the index directory, that stores the
+   * lengths in MMAP mode.
+   */
+  public static final String FILE_NAME = "qryeval-docLengths.bin";
+
+  private static final int MAGIC = 0x444c454e;		// "DLEN"
+  private static final int FORMAT = 1;
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
   private IndexReader reader;
   private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
 
+  private Mode mode;
+  private String[] fields;		// Sorted, so ordinals are stable
+  private NumericDocValues[] norms;	// LUCENE
+  private int[][] lengths;		// HEAP
+  private IntBuffer[] mapped;		// MMAP; only absolute gets
+
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this (reader, Mode.LUCENE, null);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param mode How the lengths are stored.
+   * @param indexPath The index directory, for the MMAP file.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, Mode mode, String indexPath)
+    throws IOException {
     this.reader = reader;
+    this.mode = mode;
+
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      this.values.put(field, MultiDocValues.getNormValues(reader, field));
+    }
+
+    this.fields = this.values.keySet().toArray(new String[0]);
+    Arrays.sort(this.fields);
+
+    switch (mode) {
+    case HEAP:
+      this.lengths = new int[this.fields.length][];
+      for (int i = 0; i < this.fields.length; i++)
+        this.lengths[i] = this.decode(this.fields[i]);
+      break;
+
+    case MMAP:
+      this.mapped = this.map(new File(indexPath, FILE_NAME));
+      break;
+
+    default:
+      this.norms = new NumericDocValues[this.fields.length];
+      for (int i = 0; i < this.fields.length; i++)
+        this.norms[i] = this.values.get(this.fields[i]);
+    }
+
+    //  The eager modes don't need Lucene's norms after they are decoded.
+
+    if (mode != Mode.LUCENE)
+      this.values.clear();
+  }
+
+  /**
+   * Decode one field's lengths from Lucene's norms.
+   */
+  private int[] decode(String fieldname) {
+    NumericDocValues v = this.values.get(fieldname);
+    int[] a = new int[this.reader.maxDoc()];
+
+    if (v != null) {
+      for (int docid = 0; docid < a.length; docid++)
+        a[docid] = (int) v.get(docid);
+    }
+
+    return a;
+  }
+
+  /**
+   * Map the lengths file, building it first if it doesn't exist or
+   * was built for a different version of the index.  If the file
+   * can't be written, the lengths are written to a temporary file for
+   * this run instead.
+   */
+  private IntBuffer[] map(File file) throws IOException {
+    long version = (this.reader instanceof DirectoryReader) ?
+      ((DirectoryReader) this.reader).getVersion() : 0;
+    int maxDoc = this.reader.maxDoc();
+
+    //  The header is MAGIC, FORMAT, the index version, maxDoc, and the
+    //  field names.  The lengths of each field follow, 4-byte aligned.
+
+    ByteArrayOutputStream h = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(h);
+
+    header.writeInt(MAGIC);
+    header.writeInt(FORMAT);
+    header.writeLong(version);
+    header.writeInt(maxDoc);
+    header.writeInt(this.fields.length);
+    for (String field : this.fields) {
+      byte[] name = field.getBytes(UTF8);
+      header.writeShort(name.length);
+      header.write(name);
+    }
+    while (header.size() % 4 != 0)
+      header.writeByte(0);
+    header.flush();
+
+    byte[] expected = h.toByteArray();
+
+    if (! this.hasHeader(file, expected, (long) maxDoc * 4 * this.fields.length)) {
+
+      //  Write a temporary file with a unique name next to the lengths
+      //  file and rename it, as ExternalIdTable does, so that another
+      //  process never sees partial lengths.
+
+      File tmp = null;
+      boolean saved = false;
+
+      try {
+        tmp = File.createTempFile("qryeval-docLengths", ".tmp",
+                                  file.getAbsoluteFile().getParentFile());
+        this.write(tmp, expected);
+        saved = tmp.renameTo(file) || (file.delete() && tmp.renameTo(file));
+      } catch (IOException ex) {
+        //  The index directory isn't writable.
+      }
+
+      if (! saved) {
+        if (tmp != null)
+          tmp.delete();
+
+        //  Use lengths in the temporary directory for this run.
+
+        file = File.createTempFile("qryeval-docLengths", ".bin");
+        file.deleteOnExit();
+        this.write(file, expected);
+      }
+    }
+
+    //  Map each field separately, so that the file can exceed 2GB.
+
+    IntBuffer[] buffers = new IntBuffer[this.fields.length];
+    RandomAccessFile f = new RandomAccessFile(file, "r");
+
+    try {
+      FileChannel channel = f.getChannel();
+      long offset = expected.length;
+
+      for (int i = 0; i < this.fields.length; i++) {
+        buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                                 (long) maxDoc * 4).asIntBuffer();
+        offset += (long) maxDoc * 4;
+      }
+    } finally {
+      f.close();
+    }
+
+    return buffers;
+  }
+
+  /**
+   * Write the header and the lengths of each field to a file.
+   */
+  private void write(File file, byte[] header) throws IOException {
+    int maxDoc = this.reader.maxDoc();
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+
+    try {
+      out.write(header);
+      for (String field : this.fields) {
+        NumericDocValues v = this.values.get(field);
+        for (int docid = 0; docid < maxDoc; docid++)
+          out.writeInt((v == null) ? 0 : (int) v.get(docid));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * True if the file exists, has the expected header, and is the
+   * expected length.
+   */
+  private boolean hasHeader(File file, byte[] expected, long bodyLength)
+    throws IOException {
+
+    if ((! file.canRead()) || (file.length() != expected.length + bodyLength))
+      return false;
+
+    byte[] actual = new byte[expected.length];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+    try {
+      in.readFully(actual);
+    } finally {
+      in.close();
+    }
+
+    return Arrays.equals(actual, expected);
+  }
+
+  /**
+   * Returns the ordinal of a field, for use with getDocLength (int, int).
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return The field's ordinal, or -1 if the field isn't indexed.
+   */
+  public int fieldOrdinal(String fieldname) {
+    return Math.max(Arrays.binarySearch(this.fields, fieldname), -1);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param ord The field's ordinal, from fieldOrdinal.
+   * @param docid The internal docid in the lucene index.
+   * @return The length of the field, or 0 if the field isn't indexed.
+   */
+  public int getDocLength(int ord, int docid) {
+    if (ord < 0)
+      return 0;
+
+    switch (this.mode) {
+    case HEAP:
+      return this.lengths[ord][docid];
+    case MMAP:
+      return this.mapped[ord].get(docid);
+    default:
+      NumericDocValues v = this.norms[ord];
+      return (v == null) ? 0 : (int) v.get(docid);
     }
   }
 
@@ -39,6 +293,6 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return this.getDocLength(this.fieldOrdinal(fieldname), docid);
   }
 }
@@ -0,0 +1,394 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+/**
+ *  A table that maps internal docids to external docids and back.
+ *  Looking up an external docid in Lucene reads a stored document, and
+ *  looking up an internal docid runs a query, so the table is built
+ *  once per index and saved in a file next to the index.  Later runs
+ *  memory-map the file, so lookups don't read stored documents or
+ *  allocate index objects, and several processes that use the same
+ *  index share the table through the operating system's page cache.
+ *  <p>
+ *  The file has a header, a table of string offsets (one per internal
+ *  docid), a list of internal docids sorted by external docid, and the
+ *  UTF-8 bytes of the external docids.  Internal to external lookups
+ *  are O(1).  External to internal lookups are a binary search of the
+ *  sorted list.  The header records the index version, so the file is
+ *  rebuilt if the index changes or if it isn't a valid table.  If the
+ *  file can't be written, the table is written to a temporary file
+ *  instead.  The file is mapped in regions of at most 1GB, so that it
+ *  can exceed 2GB.
+ *  </p>
+ */
+public class ExternalIdTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the file, in the index directory, that stores the table.
+   */
+  public static final String FILE_NAME = "qryeval-externalIds.bin";
+
+  private static final int MAGIC = 0x45494454;		// "EIDT"
+  private static final int FORMAT = 2;
+  private static final int HEADER_LENGTH = 24;
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  /**
+   *  The size of a mapped region.  It is a multiple of 8, and the
+   *  offsets and docids are aligned to their sizes, so only the bytes
+   *  of an external docid can span two regions.
+   */
+  private static final int REGION_SIZE = 1 << 30;
+
+  private ByteBuffer[] regions;	// Only absolute gets, so they can be shared
+  private int regionSize;
+  private int maxDoc;
+  private int numSorted;
+  private long offsetsStart;
+  private long sortedStart;
+  private long stringsStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the table for an index, building it first if it doesn't
+   *  exist, if it isn't a valid table, or if it was built for a
+   *  different version of the index.
+   *  @param reader The index.
+   *  @param file The file that stores the table.
+   *  @return The table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ExternalIdTable open (IndexReader reader, File file)
+    throws IOException {
+    return open (reader, file, REGION_SIZE);
+  }
+
+  /**
+   *  Open the table for an index, mapping it in regions of a given
+   *  size.  Small regions are only useful for testing.
+   *  @param reader The index.
+   *  @param file The file that stores the table.
+   *  @param regionSize The size of a mapped region, a multiple of 8.
+   *  @return The table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static ExternalIdTable open (IndexReader reader, File file, int regionSize)
+    throws IOException {
+
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+
+    if (file.canRead ()) {
+      ExternalIdTable table = load (file, version, reader.maxDoc (), regionSize);
+
+      if (table != null)
+	return table;
+    }
+
+    //  Save the table so that the next run can map it.  Write a
+    //  temporary file with a unique name next to the table and rename
+    //  it, so that another process never sees a partial table, and
+    //  processes that build the table at the same time don't write to
+    //  the same file.
+
+    File tmp = null;
+
+    try {
+      tmp = File.createTempFile ("qryeval-externalIds", ".tmp",
+				 file.getAbsoluteFile ().getParentFile ());
+      build (reader, version, tmp);
+
+      //  Renaming replaces the file on most platforms, but not all.
+
+      if (tmp.renameTo (file) || (file.delete () && tmp.renameTo (file)))
+	return load (file, version, reader.maxDoc (), regionSize);
+    } catch (IOException ex) {
+      //  The index directory isn't writable.
+    }
+
+    if (tmp != null)
+      tmp.delete ();
+
+    //  Use a table in the temporary directory for this run.
+
+    tmp = File.createTempFile ("qryeval-externalIds", ".bin");
+    tmp.deleteOnExit ();
+    build (reader, version, tmp);
+    return load (tmp, version, reader.maxDoc (), regionSize);
+  }
+
+  /**
+   *  Map a table file if it is a complete table for the given version
+   *  of the index.
+   *  @return The table, or null if the file must be rebuilt.
+   */
+  private static ExternalIdTable load (File file, long version, int maxDoc,
+				       int regionSize)
+    throws IOException {
+
+    long length = file.length ();
+
+    if (length < HEADER_LENGTH)
+      return null;
+
+    DataInputStream in = new DataInputStream (new FileInputStream (file));
+
+    try {
+      if ((in.readInt () != MAGIC) ||
+	  (in.readInt () != FORMAT) ||
+	  (in.readLong () != version) ||
+	  (in.readInt () != maxDoc))
+	return null;
+
+      int numSorted = in.readInt ();
+
+      if ((numSorted < 0) || (numSorted > maxDoc) ||
+	  (length < HEADER_LENGTH + 8L * (maxDoc + 1) + 4L * numSorted))
+	return null;
+    } finally {
+      in.close ();
+    }
+
+    ExternalIdTable table = new ExternalIdTable (map (file, regionSize), regionSize);
+
+    //  The last offset is the length of the strings.
+
+    if (table.stringsStart + table.getLong (table.offsetsStart + 8L * maxDoc) != length)
+      return null;
+
+    return table;
+  }
+
+  /**
+   *  Memory-map a table file in regions.
+   */
+  private static ByteBuffer[] map (File file, int regionSize) throws IOException {
+    RandomAccessFile f = new RandomAccessFile (file, "r");
+
+    try {
+      FileChannel channel = f.getChannel ();
+      long length = f.length ();
+      ByteBuffer[] regions = new ByteBuffer[(int) ((length + regionSize - 1) / regionSize)];
+
+      for (int i = 0; i < regions.length; i++) {
+	long start = (long) i * regionSize;
+
+	regions [i] = channel.map (FileChannel.MapMode.READ_ONLY, start,
+				   Math.min (regionSize, length - start));
+      }
+
+      return regions;
+    } finally {
+      f.close ();
+    }
+  }
+
+  /**
+   *  Read every external docid from the index and write the table.
+   */
+  private static void build (IndexReader reader, long version, File file)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    Set<String> fields = Collections.singleton ("externalId");
+    byte[][] ids = new byte[maxDoc][];
+    int[] sorted = new int[maxDoc];
+    int numSorted = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      ids [docid] = new byte[0];
+
+      if ((liveDocs != null) && (! liveDocs.get (docid)))
+	continue;			// Deleted documents aren't searchable
+
+      Document d = reader.document (docid, fields);
+      String eid = d.get ("externalId");
+
+      if (eid == null)
+	continue;
+
+      ids [docid] = eid.getBytes (UTF8);
+      sorted [numSorted++] = docid;
+    }
+
+    sortByExternalId (sorted, new int [numSorted], 0, numSorted, ids);
+
+    DataOutputStream out = new DataOutputStream (
+      new BufferedOutputStream (new FileOutputStream (file), 1 << 16));
+
+    try {
+      out.writeInt (MAGIC);
+      out.writeInt (FORMAT);
+      out.writeLong (version);
+      out.writeInt (maxDoc);
+      out.writeInt (numSorted);
+
+      long offset = 0;
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+	out.writeLong (offset);
+	offset += ids [docid].length;
+      }
+      out.writeLong (offset);
+
+      for (int i = 0; i < numSorted; i++)
+	out.writeInt (sorted [i]);
+
+      for (int docid = 0; docid < maxDoc; docid++)
+	out.write (ids [docid]);
+    } finally {
+      out.close ();
+    }
+  }
+
+  /**
+   *  Merge sort docids[lo..hi) by the bytes of their external docids.
+   */
+  private static void sortByExternalId (int[] docids, int[] tmp, int lo,
+					int hi, byte[][] ids) {
+    if (hi - lo < 2)
+      return;
+
+    int mid = (lo + hi) >>> 1;
+
+    sortByExternalId (docids, tmp, lo, mid, ids);
+    sortByExternalId (docids, tmp, mid, hi, ids);
+    System.arraycopy (docids, lo, tmp, lo, hi - lo);
+
+    int i = lo;
+    int j = mid;
+
+    for (int k = lo; k < hi; k++) {
+      if ((j >= hi) ||
+	  ((i < mid) && (compareBytes (ids [tmp [i]], ids [tmp [j]]) <= 0)))
+	docids [k] = tmp [i++];
+      else
+	docids [k] = tmp [j++];
+    }
+  }
+
+  private static int compareBytes (byte[] a, byte[] b) {
+    int n = Math.min (a.length, b.length);
+
+    for (int i = 0; i < n; i++) {
+      int d = (a [i] & 0xFF) - (b [i] & 0xFF);
+      if (d != 0)
+	return d;
+    }
+
+    return a.length - b.length;
+  }
+
+  /**
+   *  @param regions A table file, mapped in regions.
+   *  @param regionSize The size of each region but the last.
+   */
+  private ExternalIdTable (ByteBuffer[] regions, int regionSize) {
+    this.regions = regions;
+    this.regionSize = regionSize;
+    this.maxDoc = this.getInt (16);
+    this.numSorted = this.getInt (20);
+    this.offsetsStart = HEADER_LENGTH;
+    this.sortedStart = this.offsetsStart + 8L * (this.maxDoc + 1);
+    this.stringsStart = this.sortedStart + 4L * this.numSorted;
+  }
+
+  private byte getByte (long position) {
+    return this.regions [(int) (position / this.regionSize)].get (
+      (int) (position % this.regionSize));
+  }
+
+  private int getInt (long position) {
+    return this.regions [(int) (position / this.regionSize)].getInt (
+      (int) (position % this.regionSize));
+  }
+
+  private long getLong (long position) {
+    return this.regions [(int) (position / this.regionSize)].getLong (
+      (int) (position % this.regionSize));
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id, or null if the document has none.
+   */
+  public String getExternalDocid (int iid) {
+    if ((iid < 0) || (iid >= this.maxDoc))
+      throw new IllegalArgumentException ("Invalid internal docid " + iid);
+
+    long start = this.getLong (this.offsetsStart + 8L * iid);
+    long end = this.getLong (this.offsetsStart + 8L * (iid + 1));
+
+    if (start == end)
+      return null;
+
+    byte[] bytes = new byte[(int) (end - start)];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes [i] = this.getByte (this.stringsStart + start + i);
+
+    return new String (bytes, UTF8);
+  }
+
+  /**
+   *  Get the internal document id for a document specified by its
+   *  external id.
+   *  @param externalId The external docid.
+   *  @return The internal docid, or -1 if no such document exists.
+   */
+  public int getInternalDocid (String externalId) {
+    byte[] key = externalId.getBytes (UTF8);
+    int lo = 0;
+    int hi = this.numSorted - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int docid = this.getInt (this.sortedStart + 4L * mid);
+      int c = this.compareTo (docid, key);
+
+      if (c < 0)
+	lo = mid + 1;
+      else if (c > 0)
+	hi = mid - 1;
+      else
+	return docid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare the external docid of a document to key, byte by byte.
+   */
+  private int compareTo (int docid, byte[] key) {
+    long start = this.getLong (this.offsetsStart + 8L * docid);
+    long end = this.getLong (this.offsetsStart + 8L * (docid + 1));
+    int length = (int) (end - start);
+    int n = Math.min (length, key.length);
+
+    for (int i = 0; i < n; i++) {
+      int d = (this.getByte (this.stringsStart + start + i) & 0xFF) -
+	(key [i] & 0xFF);
+      if (d != 0)
+	return d;
+    }
+
+    return length - key.length;
+  }
+}
@@ -5,14 +5,22 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class FeatureVector {
 	Set<Integer> featureDisable = new HashSet<>();
@@ -20,9 +28,15 @@ public class FeatureVector {
 	Map<Integer, Map<String, Integer>> relMap = new HashMap<>();
 	// Map<external_id, PageRank_score>
 	Map<String, Double> prMap = new HashMap<>();
+	// Computes the feature scores. It has no state, so it is shared by
+	// the extraction threads.
+	QrySopScore sop = new QrySopScore();
+	// The normalized feature vectors of the last getFeatures call, if the
+	// ranker is trained in the JVM.
+	List<RankSvm.Query> queries = new ArrayList<>();
 	static int featureNum = 19;
-	static double[] max = new double[featureNum];
-	static double[] min = new double[featureNum];
+	// Documents that one feature extraction task handles without splitting.
+	static final int DOCS_PER_TASK = 8;
 
 	public FeatureVector(RetrievalModelLetor model) {
 		// initilize featureDisable set
@@ -33,16 +47,6 @@ public class FeatureVector {
 		}
 	}
 
-	private void initilizeMaxMin() {
-		min = new double[featureNum];
-		max = new double[featureNum];
-		for (int i = 0; i < featureNum; i++) {
-			min[i] = Double.MAX_VALUE;
-			// cannot use Double.MIN_VALUE which is greater than 0
-			max[i] = -Double.MAX_VALUE;
-		}
-	}
-
 	/**
 	 * Returns PageRank Map. Map<external_id, PageRank_score>
 	 * 
@@ -96,7 +100,7 @@ public class FeatureVector {
 				int d3 = line.indexOf(" ", d2 + 1);
 				String externalDocid = line.substring(d2 + 1, d3);
 				int rel = Integer.parseInt(line.substring(d3 + 1));
-				this.relMap.putIfAbsent(qid, new HashMap<String, Integer>());
+				this.relMap.putIfAbsent(qid, new LinkedHashMap<String, Integer>());
 				this.relMap.get(qid).put(externalDocid, rel);
 			}
 		} catch (IOException ex) {
@@ -106,13 +110,6 @@ public class FeatureVector {
 		}
 	}
 
-	private void normHelper(int i, double score) {
-		if (score == Double.MIN_VALUE)
-			return;
-		max[i] = Math.max(max[i], score);
-		min[i] = Math.min(min[i], score);
-	}
-
 	private Map<Integer, String> getQuery(String trainingQueryFile) throws IOException {
 		Map<Integer, String> queryMap = new HashMap<Integer, String>();
 		BufferedReader input = null;
@@ -149,9 +146,26 @@ public class FeatureVector {
 		return stems;
 	}
 
+	/**
+	 * Writes the feature vectors of the judged documents of each query in a
+	 * query file to the training or testing feature vector file. Queries are
+	 * extracted on a fork-join pool with letor:featureThreads threads; the
+	 * documents of a query are split into tasks that idle threads steal.
+	 * Each query's features are normalized by that query's minimum and
+	 * maximum values. Queries are written in qid order, and each query's
+	 * documents in the order of its judgments, so the file doesn't depend
+	 * on the number of threads. If the ranker is trained in the JVM, the
+	 * normalized vectors are also kept for getQueries, and the file is only
+	 * written if its name is set.
+	 * 
+	 * @param model
+	 * @param type
+	 *            0 for the training queries, 1 for the testing queries.
+	 * @return The documents of each query, in the order of the file.
+	 * @throws Exception
+	 */
 	public Map<Integer, List<String>> getFeatures(RetrievalModelLetor model, int type) throws Exception {
 		BufferedWriter output = null;
-		QrySopScore sop = new QrySopScore();
 		Map<Integer, String> queryMap = null;
 		List<Integer> sortedQid = null;
 		Map<Integer, List<String>> docList = new TreeMap<>();
@@ -166,163 +180,326 @@ public class FeatureVector {
 		sortedQid.addAll(queryMap.keySet());
 		Collections.sort(sortedQid);
 
-		Map<String, Map<Integer, Double>> vecMap = new HashMap<String, Map<Integer, Double>>();
+		ForkJoinPool pool = new ForkJoinPool(model.featureThreads);
+		ArrayDeque<QueryFeatures> results = new ArrayDeque<QueryFeatures>();
+		String outputFile = (type == 0) ? model.trainingFeatureVectorsFile : model.testingFeatureVectorsFile;
+		this.queries = new ArrayList<>();
 
 		try {
 
-			output = (type == 0) ? new BufferedWriter(new FileWriter(model.trainingFeatureVectorsFile))
-					: new BufferedWriter(new FileWriter(model.testingFeatureVectorsFile));
+			if (outputFile != null || !model.svmRankInProcess) {
+				output = new BufferedWriter(new FileWriter(outputFile));
+			}
 
-			// Each pass of the loop processes one query.
+			// At most 2 * featureThreads queries are in progress or waiting
+			// to be written.
 			for (int qid : sortedQid) {
-				String query = queryMap.get(qid);
-				List<String> qTerms = tokenizeQuery(query);
-				initilizeMaxMin();
+				QueryFeatures q = new QueryFeatures(model, qid, queryMap.get(qid), output != null);
+				pool.execute(q);
+				results.add(q);
+
+				if (results.size() >= 2 * model.featureThreads) {
+					writeQueryFeatures(results.poll(), output, docList);
+				}
+			}
+
+			while (!results.isEmpty()) {
+				writeQueryFeatures(results.poll(), output, docList);
+			}
+
+		} finally {
+			// A failed query stops the other tasks, and its exception
+			// reaches the caller instead of a truncated feature file.
+			pool.shutdownNow();
+			if (output != null) {
+				output.close();
+			}
+		}
+
+		return docList;
+	}
+
+	/**
+	 * Returns the normalized feature vectors of the queries of the last
+	 * getFeatures call, in qid order, if the ranker is trained in the JVM.
+	 * 
+	 * @return The queries.
+	 */
+	public List<RankSvm.Query> getQueries() {
+		return this.queries;
+	}
+
+	/**
+	 * Waits for one query's features, and writes or keeps them.
+	 */
+	private void writeQueryFeatures(QueryFeatures q, BufferedWriter output, Map<Integer, List<String>> docList)
+			throws Exception {
+		String rows = null;
+
+		try {
+			rows = q.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception) {
+				throw (Exception) ex.getCause();
+			}
+			throw ex;
+		}
+
+		if (output != null) {
+			output.write(rows);
+		}
+		if (q.model.svmRankInProcess) {
+			this.queries.add(new RankSvm.Query(q.qid, q.docs, q.vecs, q.labels));
+		}
+		docList.put(q.qid, q.docs);
+	}
 
-				List<String> docs = new ArrayList<>();
+	/**
+	 * Extracts and normalizes the feature vectors of one query's judged
+	 * documents, and formats them as SVMrank rows if they are written.
+	 */
+	private class QueryFeatures extends RecursiveTask<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private RetrievalModelLetor model;
+		private int qid;
+		private String query;
+		private boolean format;
+		private List<String> docs = new ArrayList<>();
+		private double[][] vecs;
+		private int[] labels;
+
+		private QueryFeatures(RetrievalModelLetor model, int qid, String query, boolean format) {
+			this.model = model;
+			this.qid = qid;
+			this.query = query;
+			this.format = format;
+		}
 
-				// System.out.println("Query " + query);
-				Iterator<Entry<String, Integer>> iter = this.relMap.get(qid).entrySet().iterator();
-				while (iter.hasNext()) {
-					Entry<String, Integer> entry = iter.next();
-					String externalDocid = entry.getKey();
-					docs.add(externalDocid);
+		protected String compute() {
+			try {
+				List<String> qTerms = tokenizeQuery(this.query);
+				QueryTermStats termStats = new QueryTermStats(Idx.getCurrentIndex());
+				Map<String, Integer> relScores = relMap.get(this.qid);
 
-					int docid = Idx.getInternalDocid(externalDocid);
+				// Documents that aren't in the index have no features.
+				List<Integer> docids = new ArrayList<>();
+				for (String externalDocid : relScores.keySet()) {
+					int docid = Idx.getCurrentIndex().getInternalDocid(externalDocid);
 					if (docid == -1)
 						continue;
-					// vector for one document
-					Map<Integer, Double> vec = new HashMap<>();
-
-					// f1: Spam score for d (read from index).
-					// Hint: The spam score is stored in your index as the score
-					// attribute.
-					// (We know
-					// that this is a terrible name. Sorry.)
-					// int spamScore = Integer.parseInt (Idx.getAttribute
-					// ("score",
-					// docid));
-					if (!this.featureDisable.contains(1)) {
-						Double spamScore = Double.MIN_VALUE;
-						spamScore = Double.parseDouble(Idx.getAttribute("score", docid));
-						normHelper(1, spamScore);
-						vec.put(1, spamScore);
-					}
+					this.docs.add(externalDocid);
+					docids.add(docid);
+				}
 
-					String rawUrl = Idx.getAttribute("rawUrl", docid).replaceAll("http://", "");
-
-					// f2: Url depth for d(number of '/' in the rawUrl field).
-					// Hint: The raw URL is stored in your index as the rawUrl
-					// attribute.
-					// String rawUrl = Idx.getAttribute ("rawUrl", docid);
-					if (!this.featureDisable.contains(2)) {
-						double urlDepth = Double.MIN_VALUE;
-						for (int i = 0; i < rawUrl.length(); i++) {
-							if (rawUrl.charAt(i) == '/') {
-								urlDepth++;
-							}
-						}
-						// double urlDepth = rawUrl.length() -
-						// rawUrl.replaceAll("/", "").length();
-						// if (rawUrl.endsWith("/"))
-						// urlDepth--;
-						normHelper(2, urlDepth);
-						vec.put(2, urlDepth);
-					}
-					// f3: FromWikipedia score for d (1 if the rawUrl contains
-					// "wikipedia.org",
-					// otherwise 0).
-					if (!this.featureDisable.contains(3)) {
-						double wikiScore = rawUrl.contains("wikipedia.org") ? 1 : 0;
-						// String rawUrl = Idx.getAttribute ("rawUrl", docid);
-						normHelper(3, wikiScore);
-						vec.put(3, wikiScore);
-					}
-					// f4: PageRank score for d (read from file).
-					if (!this.featureDisable.contains(4)) {
-						double pageRank = Double.MIN_VALUE;
-						if (this.prMap.containsKey(externalDocid)) {
-							pageRank = this.prMap.get(externalDocid);
-						}
-						normHelper(4, pageRank);
-						vec.put(4, pageRank);
+				double[][] vecs = new double[this.docs.size()][];
+				this.vecs = vecs;
+				new DocFeatures(this.model, qTerms, termStats, this.docs, docids, vecs, 0, vecs.length).invoke();
+
+				// normalize by the query's minimum and maximum values
+				double[] min = new double[featureNum];
+				double[] max = new double[featureNum];
+				for (int idx = 0; idx < featureNum; idx++) {
+					min[idx] = Double.MAX_VALUE;
+					// cannot use Double.MIN_VALUE which is greater than 0
+					max[idx] = -Double.MAX_VALUE;
+				}
+				for (double[] vec : vecs) {
+					for (int idx = 1; idx < featureNum; idx++) {
+						if (vec[idx] == Double.MIN_VALUE)
+							continue;
+						max[idx] = Math.max(max[idx], vec[idx]);
+						min[idx] = Math.min(min[idx], vec[idx]);
 					}
+				}
 
-					String[] fields = { "body", "title", "url", "inlink" };
-					// f5-f16
-					for (int i = 0; i < fields.length; i++) {
-						// f5: BM25 score for <q, field>.
-						if (!this.featureDisable.contains(5 + i * 3)) {
-
-							double score = sop.getScoreBM25(model, docid, fields[i], qTerms);
-							normHelper(5 + i * 3, score);
-							vec.put(5 + i * 3, score);
-						}
-						// f6: Indri score for <q, dbody>.
-						if (!this.featureDisable.contains(6 + i * 3)) {
-							double score = sop.getScoreIndri(model, docid, fields[i], qTerms);
-							normHelper(6 + i * 3, score);
-							vec.put(6 + i * 3, score);
-						}
-						// f7: Term overlap score for <q, dbody>.
-						if (!this.featureDisable.contains(7 + i * 3)) {
-							double score = sop.getScoreOverlap(docid, fields[i], qTerms);
-							normHelper(7 + i * 3, score);
-							vec.put(7 + i * 3, score);
-							// System.out.println("Overlap0");
+				this.labels = new int[vecs.length];
+				for (int d = 0; d < vecs.length; d++) {
+					this.labels[d] = relScores.get(this.docs.get(d));
+					vecs[d][0] = 0;
+					for (int idx = 1; idx < featureNum; idx++) {
+						double normVal = 0;
+						double score = vecs[d][idx];
+						if (score != Double.MIN_VALUE) {
+							normVal = (max[idx] == min[idx]) ? 0 : ((score - min[idx]) / (max[idx] - min[idx]));
 						}
+						vecs[d][idx] = normVal;
 					}
+				}
 
-					// f17: A custom feature - use your imagination.
-					// tfidf score
-					if (!this.featureDisable.contains(17)) {
-						double score = sop.getScoreOverlap(docid, "body", qTerms);
-						normHelper(17, score);
-						vec.put(17, score);
-					}
-					// f18: A custom feature - use your imagination.
-					if (!this.featureDisable.contains(18)) {
-						double score = sop.getScoreOverlap(docid, "body", qTerms);
-						normHelper(18, score);
-						vec.put(18, score);
-					}
-					// System.out.println("aa");
-					vecMap.put(externalDocid, vec);
+				if (!this.format) {
+					return null;
 				}
-				docList.put(qid, docs);
-				// normalize
-				Iterator<Entry<String, Map<Integer, Double>>> vecIter = vecMap.entrySet().iterator();
-				Map<String, Integer> relScores = this.relMap.get(qid);
-				while (vecIter.hasNext()) {
-					Entry<String, Map<Integer, Double>> entry = vecIter.next();
-					String externalDocid = entry.getKey();
-					int relScore = relScores.containsKey(externalDocid) ? relScores.get(externalDocid) : 0;
-					StringBuilder str = new StringBuilder(String.format("%d\tqid:%d", relScore, qid));
-					Map<Integer, Double> featureVec = entry.getValue();
+
+				StringBuilder str = new StringBuilder();
+				for (int d = 0; d < vecs.length; d++) {
+					str.append(String.format("%d\tqid:%d", this.labels[d], this.qid));
 					for (int idx = 1; idx < featureNum; idx++) {
-						double minVal = min[idx];
-						double maxVal = max[idx];
-						double normVal = 0;
-						double score = featureVec.containsKey(idx) ? featureVec.get(idx) : Double.MIN_VALUE;
-						if (score != Double.MIN_VALUE) {
-							normVal = (maxVal == minVal) ? 0 : ((score - minVal) / (maxVal - minVal));
-						} 
-						str.append(String.format("\t%d:%.14f", idx, normVal));
+						str.append(String.format("\t%d:%.14f", idx, vecs[d][idx]));
 					}
-					str.append(String.format("\t#\t%s\n", externalDocid));
-					// System.out.print(str.toString());
-					output.write(str.toString());
+					str.append(String.format("\t#\t%s\n", this.docs.get(d)));
 				}
+				return str.toString();
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error reading the Lucene index.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Extracts the feature vectors of a range of a query's documents,
+	 * splitting the range in half until it is small.
+	 */
+	private class DocFeatures extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private RetrievalModelLetor model;
+		private List<String> qTerms;
+		private QueryTermStats termStats;
+		private List<String> docs;
+		private List<Integer> docids;
+		private double[][] vecs;
+		private int from;
+		private int to;
+
+		private DocFeatures(RetrievalModelLetor model, List<String> qTerms, QueryTermStats termStats,
+				List<String> docs, List<Integer> docids, double[][] vecs, int from, int to) {
+			this.model = model;
+			this.qTerms = qTerms;
+			this.termStats = termStats;
+			this.docs = docs;
+			this.docids = docids;
+			this.vecs = vecs;
+			this.from = from;
+			this.to = to;
+		}
 
+		protected void compute() {
+			if (this.to - this.from > DOCS_PER_TASK) {
+				int mid = (this.from + this.to) >>> 1;
+				invokeAll(
+						new DocFeatures(this.model, this.qTerms, this.termStats, this.docs, this.docids, this.vecs,
+								this.from, mid),
+						new DocFeatures(this.model, this.qTerms, this.termStats, this.docs, this.docids, this.vecs,
+								mid, this.to));
+				return;
 			}
 
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		} finally {
-			output.close();
-			return docList;
+			try {
+				for (int d = this.from; d < this.to; d++) {
+					this.vecs[d] = getDocFeatures(this.model, this.docids.get(d), this.docs.get(d), this.qTerms,
+							this.termStats);
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException("Error reading the Lucene index.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns the feature vector of one document for a query. Features that
+	 * are disabled or that have no value are Double.MIN_VALUE.
+	 * 
+	 * @param model
+	 * @param docid
+	 * @param externalDocid
+	 * @param qTerms
+	 * @param termStats
+	 *            The df and ctf of the query terms.
+	 * @return The features, indexed by feature number.
+	 * @throws IOException
+	 */
+	private double[] getDocFeatures(RetrievalModelLetor model, int docid, String externalDocid, List<String> qTerms,
+			QueryTermStats termStats) throws IOException {
+		double[] features = new double[featureNum];
+		Arrays.fill(features, Double.MIN_VALUE);
+
+		// f1: Spam score for d (read from index).
+		// Hint: The spam score is stored in your index as the score
+		// attribute.
+		// (We know
+		// that this is a terrible name. Sorry.)
+		// int spamScore = Integer.parseInt (Idx.getAttribute
+		// ("score",
+		// docid));
+		if (!this.featureDisable.contains(1)) {
+			double spamScore = Double.parseDouble(Idx.getAttribute("score", docid));
+			features[1] = spamScore;
+		}
+
+		String rawUrl = Idx.getAttribute("rawUrl", docid).replaceAll("http://", "");
+
+		// f2: Url depth for d(number of '/' in the rawUrl field).
+		// Hint: The raw URL is stored in your index as the rawUrl
+		// attribute.
+		// String rawUrl = Idx.getAttribute ("rawUrl", docid);
+		if (!this.featureDisable.contains(2)) {
+			double urlDepth = Double.MIN_VALUE;
+			for (int i = 0; i < rawUrl.length(); i++) {
+				if (rawUrl.charAt(i) == '/') {
+					urlDepth++;
+				}
+			}
+			// double urlDepth = rawUrl.length() -
+			// rawUrl.replaceAll("/", "").length();
+			// if (rawUrl.endsWith("/"))
+			// urlDepth--;
+			features[2] = urlDepth;
+		}
+		// f3: FromWikipedia score for d (1 if the rawUrl contains
+		// "wikipedia.org",
+		// otherwise 0).
+		if (!this.featureDisable.contains(3)) {
+			double wikiScore = rawUrl.contains("wikipedia.org") ? 1 : 0;
+			// String rawUrl = Idx.getAttribute ("rawUrl", docid);
+			features[3] = wikiScore;
+		}
+		// f4: PageRank score for d (read from file).
+		if (!this.featureDisable.contains(4)) {
+			double pageRank = Double.MIN_VALUE;
+			if (this.prMap.containsKey(externalDocid)) {
+				pageRank = this.prMap.get(externalDocid);
+			}
+			features[4] = pageRank;
+		}
+
+		String[] fields = { "body", "title", "url", "inlink" };
+		// f5-f16: BM25, Indri and term overlap scores for <q, field>.
+		// Each field's term vector is read once for all three.
+		double[] scores = new double[3];
+		double bodyOverlap = 0;
+		for (int i = 0; i < fields.length; i++) {
+			boolean needed = (i == 0) && !(this.featureDisable.contains(17) && this.featureDisable.contains(18));
+			for (int k = 0; k < 3; k++) {
+				needed |= !this.featureDisable.contains(5 + i * 3 + k);
+			}
+			if (!needed) {
+				continue;
+			}
+			this.sop.getFieldScores(model, docid, fields[i], qTerms, termStats, scores);
+			for (int k = 0; k < 3; k++) {
+				if (!this.featureDisable.contains(5 + i * 3 + k)) {
+					features[5 + i * 3 + k] = scores[k];
+				}
+			}
+			if (i == 0) {
+				bodyOverlap = scores[2];
+			}
+		}
+
+		// f17: A custom feature - use your imagination.
+		// term overlap score for <q, dbody>
+		if (!this.featureDisable.contains(17)) {
+			features[17] = bodyOverlap;
+		}
+		// f18: A custom feature - use your imagination.
+		if (!this.featureDisable.contains(18)) {
+			features[18] = bodyOverlap;
 		}
 
+		return features;
 	}
 
 }
@@ -1,14 +1,10 @@
-/** 
+/**
  *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
 import java.util.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -17,8 +13,17 @@ import org.apache.lucene.util.BytesRef;
  *  Most homework assignments only require a single index.  However,
  *  several distinct indexes can be open simultaneously (e.g., for
  *  federated search).  The Idx class designates one index the
- *  <i>current</i> index.  All requests are satisfied from the current
- *  index.  setCurrentIndex changes the current index.
+ *  <i>current</i> index.  The static methods of this class are
+ *  satisfied from the current index.  setCurrentIndex changes the
+ *  current index.
+ *  </p>
+ *  <p>
+ *  Each open index is an IndexHandle.  Query operators are initialized
+ *  with a handle (by default, the current index) and use it for the
+ *  rest of the query, so changing the current index doesn't affect
+ *  queries that are already running, and queries against different
+ *  indexes can run at the same time.  Opening an index and changing
+ *  the current index are synchronized.
  *  </p>
  */
 public class Idx {
@@ -26,16 +31,15 @@ public class Idx {
   //  --------------- Constants and variables ---------------------
 
   /**
-   *  The Lucene index that is considered the current index.
+   *  The Lucene index that is considered the current index.  It is the
+   *  index reader of the current IndexHandle.
    */
-  public static IndexReader INDEXREADER=null;
+  public static volatile IndexReader INDEXREADER=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  private static volatile IndexHandle CURRENTINDEX=null;
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
+  private static HashMap<String,IndexHandle> openIndexes =
+    new HashMap<String,IndexHandle> ();
 
   //  --------------- Methods ---------------------------------------
 
@@ -48,9 +52,15 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
+    return Idx.CURRENTINDEX.getAttribute (attributeName, docid);
+  }
 
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
+  /**
+   *  Get the current index.
+   *  @return The handle of the current index.
+   */
+  public static IndexHandle getCurrentIndex () {
+    return Idx.CURRENTINDEX;
   }
 
   /**
@@ -61,7 +71,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CURRENTINDEX.getDocCount (fieldName);
   }
 
   /**
@@ -72,9 +82,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
-    return eid;
+    return Idx.CURRENTINDEX.getExternalDocid (iid);
   }
 
   /**
@@ -86,7 +94,26 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return Idx.CURRENTINDEX.getFieldLength (fieldName, docid);
+  }
+
+  /**
+   *  Get an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The handle of the index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static synchronized IndexHandle getIndex (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexHandle index = openIndexes.get (indexPath);
+
+    if (index == null) {
+      throw new IllegalArgumentException (
+        "The index " + indexPath + " isn't open");
+    }
+
+    return index;
   }
 
   /**
@@ -99,20 +126,7 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
-
-    Query q = new TermQuery(new Term("externalId", externalId));
-
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-    if (hits.length < 1) {
-//      throw new Exception("External id not found.");
-    	return -1;
-    } else {
-      return hits[0].doc;
-    }
+    return Idx.CURRENTINDEX.getInternalDocid (externalId);
   }
 
   /**
@@ -121,7 +135,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CURRENTINDEX.getNumDocs ();
   }
 
   /**
@@ -134,7 +148,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CURRENTINDEX.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -149,50 +163,46 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CURRENTINDEX.getTotalTermFreq (fieldName, term);
   }
 
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index and the associated DocLengthStore and
+   *  ExternalIdTable.  The ExternalIdTable is built the first time
+   *  that the index is opened.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
   public static void open (String indexPath)
     throws IllegalArgumentException, IOException {
+    Idx.open (indexPath, DocLengthStore.Mode.LUCENE);
+  }
 
-    IndexReader indexReader;
-    DocLengthStore docLengthStore;
-
-    //  Open the Lucene index
+  /**
+   *  Open a Lucene index and the associated DocLengthStore and
+   *  ExternalIdTable.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param docLengthMode How the DocLengthStore stores lengths.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static synchronized void open (String indexPath,
+					DocLengthStore.Mode docLengthMode)
+    throws IllegalArgumentException, IOException {
 
-    indexReader = 
-      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
-  
-    if (indexReader == null) {
-      throw new IllegalArgumentException ("Unable to open the index.");
-    }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
-
-    docLengthStore = new DocLengthStore (indexReader);
-  
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
-    }
+    IndexHandle index = new IndexHandle (indexPath, docLengthMode);
 
     //  Keep track of the open indexes.
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+    openIndexes.put (indexPath, index);
 
     //  The current index defaults to the first open index.
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
+    if (Idx.CURRENTINDEX == null) {
+      Idx.CURRENTINDEX = index;
+      Idx.INDEXREADER = index.getIndexReader ();
     }
   }
 
@@ -201,18 +211,17 @@ public class Idx {
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexHandle index = openIndexes.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (index == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.CURRENTINDEX = index;
+    Idx.INDEXREADER = index.getIndexReader ();
   }
 }
@@ -0,0 +1,414 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  Precomputed score bounds for the terms of an index.  For each term
+ *  in each field, the file records the largest BM25 tf weight and the
+ *  largest Indri term probability that any document gets from the
+ *  term, overall and for each block of BLOCK_SIZE postings.  Query
+ *  operators use them as upper bounds on their scores for dynamic
+ *  pruning; see QrySop.getMaxScore.
+ *  <p>
+ *  The bounds depend on the BM25 k_1 and b parameters and on the
+ *  Indri mu parameter, so the file records the parameters that it was
+ *  built with, and query operators only use it when their retrieval
+ *  model has the same parameters.  The BM25 bound is a tf weight,
+ *  tf / (tf + k_1 * (1 - b + b * doclen / avgdoclen)); multiply it by
+ *  the idf and user weight to get a score.  The Indri bound is
+ *  (tf + mu * p_mle) / (doclen + mu), before smoothing with lambda.
+ *  Bounds are stored as floats that are rounded up.
+ *  </p><p>
+ *  The file is built offline by BuildImpactIndex and saved in the
+ *  index directory.  IndexHandle memory-maps it when the index is
+ *  opened.  If the file doesn't exist, was built for a different
+ *  version of the index, or is truncated, it is ignored.
+ *  </p><p>
+ *  The file has a header that records the parameters and, for each
+ *  field, the number of terms and blocks.  The field sections follow.
+ *  Each section has a table of term string offsets, a table of the
+ *  first block of each term, each term's overall bounds, the last
+ *  docid and bounds of each block, and the UTF-8 bytes of the terms,
+ *  in Lucene's term order.  Term lookups are a binary search.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the file, in the index directory, that stores the
+   *  bounds.
+   */
+  public static final String FILE_NAME = "qryeval-impacts.bin";
+
+  /**
+   *  The number of postings in a block.  It matches InvList's blocks.
+   */
+  public static final int BLOCK_SIZE = InvList.BLOCK_SIZE;
+
+  static final int MAGIC = 0x494d5058;		// "IMPX"
+  static final int FORMAT = 1;
+  static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  private double k_1;
+  private double b;
+  private double mu;
+  private Map<String,FieldImpacts> fields =
+    new HashMap<String,FieldImpacts> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The bounds of one term.  Blocks are numbered from 0 in docid
+   *  order.
+   */
+  public static class TermImpacts {
+
+    /**
+     *  The bounds of a term that doesn't occur in the field.
+     */
+    public static final TermImpacts EMPTY =
+      new TermImpacts (null, 0, 0, 0, 0, 0, 0, 0);
+
+    private ByteBuffer buffer;
+    private int lastDocidStart;
+    private int bm25Start;
+    private int indriStart;
+    private int numBlocks;
+    private float maxBM25;
+    private float maxIndri;
+
+    private TermImpacts (ByteBuffer buffer, int lastDocidStart,
+			 int bm25Start, int indriStart, int numBlocks,
+			 float maxBM25, float maxIndri, int first) {
+      this.buffer = buffer;
+      this.lastDocidStart = lastDocidStart + 4 * first;
+      this.bm25Start = bm25Start + 4 * first;
+      this.indriStart = indriStart + 4 * first;
+      this.numBlocks = numBlocks;
+      this.maxBM25 = maxBM25;
+      this.maxIndri = maxIndri;
+    }
+
+    /**
+     *  Find the block that would contain a document:  the first block,
+     *  at or after block from, whose last docid is at least docid.
+     *  Callers that visit documents in docid order pass the previous
+     *  result as from, so the search is usually short.
+     *  @param docid An internal docid.
+     *  @param from The block to start searching at.
+     *  @return The block, or getNumBlocks() if docid is after the last
+     *  posting.
+     */
+    public int findBlock (int docid, int from) {
+      //  Start over if docid is before the starting block.
+
+      if ((from < 0) || (from > this.numBlocks) ||
+	  ((from > 0) && (this.getBlockLastDocid (from - 1) >= docid)))
+	from = 0;
+
+      //  Gallop forward from the starting block, then binary search.
+
+      int lo = from;
+      int hi = from;
+      int step = 1;
+
+      while ((hi < this.numBlocks) && (this.getBlockLastDocid (hi) < docid)) {
+	lo = hi + 1;
+	hi += step;
+	step <<= 1;
+      }
+
+      hi = Math.min (hi, this.numBlocks);
+
+      while (lo < hi) {
+	int mid = (lo + hi) >>> 1;
+
+	if (this.getBlockLastDocid (mid) < docid)
+	  lo = mid + 1;
+	else
+	  hi = mid;
+      }
+
+      return lo;
+    }
+
+    /**
+     *  Get the largest BM25 tf weight of a block.
+     *  @param block A block number.
+     *  @return The bound.
+     */
+    public float getBlockBM25 (int block) {
+      return this.buffer.getFloat (this.bm25Start + 4 * block);
+    }
+
+    /**
+     *  Get the largest Indri term probability of a block.
+     *  @param block A block number.
+     *  @return The bound.
+     */
+    public float getBlockIndri (int block) {
+      return this.buffer.getFloat (this.indriStart + 4 * block);
+    }
+
+    /**
+     *  Get the last docid of a block.
+     *  @param block A block number.
+     *  @return The internal docid.
+     */
+    public int getBlockLastDocid (int block) {
+      return this.buffer.getInt (this.lastDocidStart + 4 * block);
+    }
+
+    /**
+     *  Get the largest BM25 tf weight of any document.
+     *  @return The bound, or 0 if the term doesn't occur.
+     */
+    public float getMaxBM25 () {
+      return this.maxBM25;
+    }
+
+    /**
+     *  Get the largest Indri term probability of any document.
+     *  @return The bound, or 0 if the term doesn't occur.
+     */
+    public float getMaxIndri () {
+      return this.maxIndri;
+    }
+
+    /**
+     *  Get the number of blocks.
+     *  @return The number of blocks.
+     */
+    public int getNumBlocks () {
+      return this.numBlocks;
+    }
+  }
+
+  /**
+   *  The section of the file that covers one field.
+   */
+  private static class FieldImpacts {
+
+    private ByteBuffer buffer;	// Only absolute gets, so it can be shared
+    private int numTerms;
+    private int offsetsStart;
+    private int firstBlockStart;
+    private int maxBM25Start;
+    private int maxIndriStart;
+    private int lastDocidStart;
+    private int bm25Start;
+    private int indriStart;
+    private int stringsStart;
+
+    private FieldImpacts (ByteBuffer buffer, int numTerms, int numBlocks) {
+      this.buffer = buffer;
+      this.numTerms = numTerms;
+      this.offsetsStart = 0;
+      this.firstBlockStart = this.offsetsStart + 4 * (numTerms + 1);
+      this.maxBM25Start = this.firstBlockStart + 4 * (numTerms + 1);
+      this.maxIndriStart = this.maxBM25Start + 4 * numTerms;
+      this.lastDocidStart = this.maxIndriStart + 4 * numTerms;
+      this.bm25Start = this.lastDocidStart + 4 * numBlocks;
+      this.indriStart = this.bm25Start + 4 * numBlocks;
+      this.stringsStart = this.indriStart + 4 * numBlocks;
+    }
+
+    private TermImpacts get (String term) {
+      byte[] key = term.getBytes (UTF8);
+      int lo = 0;
+      int hi = this.numTerms - 1;
+
+      while (lo <= hi) {
+	int mid = (lo + hi) >>> 1;
+	int c = this.compareTo (mid, key);
+
+	if (c < 0)
+	  lo = mid + 1;
+	else if (c > 0)
+	  hi = mid - 1;
+	else {
+	  int first = this.buffer.getInt (this.firstBlockStart + 4 * mid);
+	  int next = this.buffer.getInt (this.firstBlockStart + 4 * (mid + 1));
+
+	  return new TermImpacts (this.buffer, this.lastDocidStart,
+				  this.bm25Start, this.indriStart,
+				  next - first,
+				  this.buffer.getFloat (this.maxBM25Start + 4 * mid),
+				  this.buffer.getFloat (this.maxIndriStart + 4 * mid),
+				  first);
+	}
+      }
+
+      return TermImpacts.EMPTY;
+    }
+
+    /**
+     *  Compare the bytes of the i'th term to key, as unsigned bytes,
+     *  which is Lucene's term order.
+     */
+    private int compareTo (int i, byte[] key) {
+      int start = this.buffer.getInt (this.offsetsStart + 4 * i);
+      int end = this.buffer.getInt (this.offsetsStart + 4 * (i + 1));
+      int n = Math.min (end - start, key.length);
+
+      for (int j = 0; j < n; j++) {
+	int d = (this.buffer.get (this.stringsStart + start + j) & 0xFF) -
+	  (key [j] & 0xFF);
+	if (d != 0)
+	  return d;
+      }
+
+      return (end - start) - key.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the bounds of an index.
+   *  @param reader The index.
+   *  @param file The file that stores the bounds.
+   *  @return The bounds, or null if the file doesn't exist, was
+   *  built for a different version of the index, or isn't a complete
+   *  bounds file.
+   *  @throws IOException Error reading the file.
+   */
+  public static ImpactIndex open (IndexReader reader, File file)
+    throws IOException {
+
+    if (! file.canRead ())
+      return null;
+
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+
+    RandomAccessFile f = new RandomAccessFile (file, "r");
+
+    try {
+      DataInputStream header = new DataInputStream (
+        new BufferedInputStream (new FileInputStream (f.getFD ())));
+
+      if ((header.readInt () != MAGIC) ||
+	  (header.readInt () != FORMAT) ||
+	  (header.readLong () != version) ||
+	  (header.readInt () != reader.maxDoc ()) ||
+	  (header.readInt () != BLOCK_SIZE))
+	return null;
+
+      ImpactIndex impacts = new ImpactIndex ();
+
+      impacts.k_1 = header.readDouble ();
+      impacts.b = header.readDouble ();
+      impacts.mu = header.readDouble ();
+
+      int numFields = header.readInt ();
+
+      if ((numFields < 0) || (numFields > f.length () / 18))
+	return null;			// A field takes at least 18 bytes
+
+      long headerLength = 52;		// Up to the field table
+      String[] names = new String[numFields];
+      int[] numTerms = new int[numFields];
+      int[] numBlocks = new int[numFields];
+      long[] lengths = new long[numFields];
+
+      for (int i = 0; i < numFields; i++) {
+	byte[] name = new byte[header.readUnsignedShort ()];
+
+	header.readFully (name);
+	names [i] = new String (name, UTF8);
+	numTerms [i] = header.readInt ();
+	numBlocks [i] = header.readInt ();
+	lengths [i] = header.readLong ();
+	headerLength += 2 + name.length + 16;
+
+	//  A section has its tables, then the term strings.
+
+	if ((numTerms [i] < 0) || (numBlocks [i] < 0) ||
+	    (lengths [i] > Integer.MAX_VALUE) ||
+	    (lengths [i] < 16L * numTerms [i] + 8 + 12L * numBlocks [i]))
+	  return null;
+      }
+
+      //  The file is truncated or has extra bytes if the sections don't
+      //  end at the end of the file.
+
+      long offset = (headerLength + 3) & ~3L;
+      long end = offset;
+
+      for (int i = 0; i < numFields; i++)
+	end += lengths [i];
+
+      if (end != f.length ())
+	return null;
+
+      //  Map each field separately, so that the file can exceed 2GB.
+
+      FileChannel channel = f.getChannel ();
+
+      for (int i = 0; i < numFields; i++) {
+	ByteBuffer buffer =
+	  channel.map (FileChannel.MapMode.READ_ONLY, offset, lengths [i]);
+
+	impacts.fields.put (names [i],
+	  new FieldImpacts (buffer, numTerms [i], numBlocks [i]));
+	offset += lengths [i];
+      }
+
+      return impacts;
+    } catch (EOFException ex) {
+      return null;			// The header is truncated
+    } finally {
+      f.close ();
+    }
+  }
+
+  private ImpactIndex () {
+  }
+
+  /**
+   *  Get the BM25 b parameter that the bounds were built with.
+   *  @return b.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  Get the BM25 k_1 parameter that the bounds were built with.
+   *  @return k_1.
+   */
+  public double getK1 () {
+    return this.k_1;
+  }
+
+  /**
+   *  Get the Indri mu parameter that the bounds were built with.
+   *  @return mu.
+   */
+  public double getMu () {
+    return this.mu;
+  }
+
+  /**
+   *  Get the bounds of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The bounds, TermImpacts.EMPTY if the term doesn't occur in
+   *  the field, or null if the file doesn't cover the field.
+   */
+  public TermImpacts getTermImpacts (String fieldName, String term) {
+    FieldImpacts f = this.fields.get (fieldName);
+
+    return (f == null) ? null : f.get (term);
+  }
+}
@@ -0,0 +1,483 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.*;
+
+/**
+ *  A score-at-a-time evaluator for flat BM25 queries, e.g., #SUM (a b
+ *  c), whose terms are all in one field.  It reads the terms'
+ *  ImpactOrderedIndex segments in descending order of their maximum
+ *  scores and adds each posting's score to the document's accumulator.
+ *  After each segment, it checks whether the rest of the postings can
+ *  change the top k:  if the k'th best accumulator exceeds the (k+1)'th
+ *  best plus the maximum score of the unread postings, no other
+ *  document can enter the top k, so evaluation stops.  Documents that
+ *  the query matches but that were never read can't enter either,
+ *  because their scores are at most the maximum of the unread postings.
+ *  <p>
+ *  The documents in the top k are then scored exactly, one term at a
+ *  time in query order, so their scores and order are the same as
+ *  document-at-a-time evaluation gives them.
+ *  </p><p>
+ *  A limit on the number of postings that are read bounds the latency
+ *  of a query.  If evaluation stops at the limit, the top k are the
+ *  best documents seen so far, which is approximate.
+ *  </p>
+ */
+public class ImpactOrderedEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Accumulators are summed in a different order than exact scores,
+   *  so they may differ in the last bits.  Bounds are inflated by this
+   *  factor.
+   */
+  private static final double SLACK = 1.0 + 1e-9;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Score accumulators in an open-addressing hash table keyed by
+   *  docid, plus a min-heap of the k+1 best accumulators.  The root of
+   *  the heap is the (k+1)'th best, and the k'th best is one of its
+   *  children.  Accumulators only grow, so a document outside the heap
+   *  can only enter it by passing the root.
+   */
+  private static class Accumulators {
+
+    private static final int EMPTY = -1;
+
+    private int[] docids;
+    private double[] scores;
+    private int[] heapPos;	// EMPTY if the slot isn't in the heap
+    private int size = 0;
+
+    private int[] heap;		// Slots
+    private int heapSize = 0;
+
+    private Accumulators (int heapCapacity) {
+      this.heap = new int[heapCapacity];
+      this.allocate (1024);
+    }
+
+    private void allocate (int capacity) {
+      this.docids = new int[capacity];
+      this.scores = new double[capacity];
+      this.heapPos = new int[capacity];
+      Arrays.fill (this.docids, EMPTY);
+      Arrays.fill (this.heapPos, EMPTY);
+    }
+
+    /**
+     *  Add a score to a document's accumulator.
+     */
+    private void add (int docid, double score) {
+      int slot = this.find (docid);
+
+      if (this.docids [slot] == EMPTY) {
+	if (2 * (this.size + 1) > this.docids.length) {
+	  this.grow ();
+	  slot = this.find (docid);
+	}
+
+	this.docids [slot] = docid;
+	this.size ++;
+      }
+
+      this.scores [slot] += score;
+
+      if (this.heapPos [slot] != EMPTY) {
+	this.siftDown (this.heapPos [slot]);
+      } else if (this.heapSize < this.heap.length) {
+	this.heap [this.heapSize] = slot;
+	this.heapPos [slot] = this.heapSize;
+	this.siftUp (this.heapSize ++);
+      } else if (this.scores [slot] > this.scores [this.heap [0]]) {
+	this.heapPos [this.heap [0]] = EMPTY;
+	this.heap [0] = slot;
+	this.heapPos [slot] = 0;
+	this.siftDown (0);
+      }
+    }
+
+    /**
+     *  The slot of a docid, or the empty slot where it belongs.
+     */
+    private int find (int docid) {
+      int mask = this.docids.length - 1;
+      int slot = (docid * 0x9E3779B9) >>> Integer.numberOfLeadingZeros (mask);
+
+      while ((this.docids [slot] != EMPTY) && (this.docids [slot] != docid))
+	slot = (slot + 1) & mask;
+
+      return slot;
+    }
+
+    private void grow () {
+      int[] oldDocids = this.docids;
+      double[] oldScores = this.scores;
+      int[] oldHeapPos = this.heapPos;
+
+      this.allocate (2 * oldDocids.length);
+
+      for (int i = 0; i < oldDocids.length; i++) {
+	if (oldDocids [i] == EMPTY)
+	  continue;
+
+	int slot = this.find (oldDocids [i]);
+
+	this.docids [slot] = oldDocids [i];
+	this.scores [slot] = oldScores [i];
+
+	if (oldHeapPos [i] != EMPTY) {
+	  this.heapPos [slot] = oldHeapPos [i];
+	  this.heap [oldHeapPos [i]] = slot;
+	}
+      }
+    }
+
+    /**
+     *  The k'th best accumulator, or negative infinity if fewer than k
+     *  documents have been seen.
+     */
+    private double getKthScore (int k) {
+      if (this.heapSize < k)
+	return Double.NEGATIVE_INFINITY;
+
+      if (this.heapSize == k)
+	return this.scores [this.heap [0]];
+
+      double s = this.scores [this.heap [1]];
+
+      if (this.heapSize > 2)
+	s = Math.min (s, this.scores [this.heap [2]]);
+
+      return s;
+    }
+
+    /**
+     *  The (k+1)'th best accumulator, or 0 if at most k documents have
+     *  been seen, because unseen documents have accumulators of 0.
+     */
+    private double getNextScore (int k) {
+      return (this.heapSize > k) ? this.scores [this.heap [0]] : 0.0;
+    }
+
+    private void siftUp (int i) {
+      while (i > 0) {
+	int parent = (i - 1) / 2;
+
+	if (this.scores [this.heap [i]] >= this.scores [this.heap [parent]])
+	  break;
+
+	this.swap (i, parent);
+	i = parent;
+      }
+    }
+
+    private void siftDown (int i) {
+      while (true) {
+	int child = 2 * i + 1;
+
+	if (child >= this.heapSize)
+	  break;
+
+	if ((child + 1 < this.heapSize) &&
+	    (this.scores [this.heap [child + 1]] < this.scores [this.heap [child]]))
+	  child ++;
+
+	if (this.scores [this.heap [child]] >= this.scores [this.heap [i]])
+	  break;
+
+	this.swap (i, child);
+	i = child;
+      }
+    }
+
+    private void swap (int i, int j) {
+      int s = this.heap [i];
+      this.heap [i] = this.heap [j];
+      this.heap [j] = s;
+      this.heapPos [this.heap [i]] = i;
+      this.heapPos [this.heap [j]] = j;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate a query score-at-a-time, if it can be.  The query must
+   *  be a BM25 SCORE or SUM of SCORE operators over TERM operators in
+   *  one field, the index must have an ImpactOrderedIndex for the
+   *  field that was built with the model's parameters, and k must be
+   *  positive.  The query doesn't need to be initialized.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param k The number of documents to return.
+   *  @param index The index to search.
+   *  @return The top k documents, or null if the query can't be
+   *  evaluated score-at-a-time.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (Qry q, RetrievalModel r, int k,
+				    IndexHandle index)
+    throws IOException {
+
+    ImpactOrderedIndex ordered = index.getImpactOrderedIndex ();
+
+    if ((ordered == null) || (k <= 0) ||
+	(! (r instanceof RetrievalModelBM25)))
+      return null;
+
+    RetrievalModelBM25 model = (RetrievalModelBM25) r;
+
+    if ((model.k_1 != ordered.getK1 ()) || (model.b != ordered.getB ()))
+      return null;
+
+    //  Find the query terms.
+
+    List<Qry> scores = (q instanceof QrySopScore) ?
+      Collections.singletonList (q) :
+      (q instanceof QrySopSum) ? q.args : null;
+
+    if (scores == null)
+      return null;
+
+    int n = scores.size ();
+    String field = null;
+    String[] terms = new String[n];
+
+    for (int i = 0; i < n; i++) {
+      Qry q_i = scores.get (i);
+
+      if ((! (q_i instanceof QrySopScore)) ||
+	  (! (q_i.args.get (0) instanceof QryIopTerm)))
+	return null;
+
+      QryIopTerm t = (QryIopTerm) q_i.args.get (0);
+
+      if ((field != null) && (! field.equals (t.getField ())))
+	return null;
+
+      field = t.getField ();
+      terms [i] = t.getTerm ();
+    }
+
+    ImpactOrderedIndex.TermSegments[] lists =
+      new ImpactOrderedIndex.TermSegments[n];
+
+    for (int i = 0; i < n; i++) {
+      lists [i] = ordered.getTermSegments (field, terms [i]);
+
+      if (lists [i] == null)
+	return null;		// The field isn't covered
+    }
+
+    //  Initialize the SCORE operators for their idf and user weight,
+    //  so that postings get the scores that QrySopScore gives them.
+    //  Streaming TERM operators only open their postings; they aren't
+    //  read.
+
+    RetrievalModelBM25 streaming =
+      new RetrievalModelBM25 (model.k_1, model.b, model.k_3);
+    streaming.streamingTerms = true;
+
+    QrySopScore[] weights = new QrySopScore[n];
+
+    for (int i = 0; i < n; i++) {
+      weights [i] = (QrySopScore) scores.get (i);
+      weights [i].initialize (streaming, index);
+    }
+
+    return evaluate (model, k, index, field, terms, weights, lists);
+  }
+
+  /**
+   *  Evaluate the terms score-at-a-time.
+   */
+  private static ScoreList evaluate (RetrievalModelBM25 model, int k,
+				     IndexHandle index, String field,
+				     String[] terms, QrySopScore[] weights,
+				     ImpactOrderedIndex.TermSegments[] lists)
+    throws IOException {
+
+    int n = terms.length;
+    CollectionStats stats = index.getCollectionStats ();
+    DocLengthStore docLengths = index.getDocLengthStore ();
+    int fieldOrd = docLengths.fieldOrdinal (field);
+    double avg_len = stats.getAvgFieldLength (field);
+
+    //  The document-independent parts of each term's score, from its
+    //  initialized SCORE operator.
+
+    double[] idf = new double[n];
+    double[] user_weight = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      idf [i] = weights [i].idf;
+      user_weight [i] = weights [i].user_weight;
+    }
+
+    //  Order every segment of every term by its maximum score.  Each
+    //  term's segments are already in descending order, so the merged
+    //  order reads each term's segments in order.
+
+    int numSegments = 0;
+
+    for (int i = 0; i < n; i++)
+      numSegments += lists [i].getNumSegments ();
+
+    int[] segTerm = new int[numSegments];
+    int[] segIndex = new int[numSegments];
+    double[] segBound = new double[numSegments];
+
+    for (int i = 0, s = 0; i < n; i++) {
+      for (int j = 0; j < lists [i].getNumSegments (); j++, s++) {
+	double bound = idf [i] * lists [i].getSegmentBound (j) * user_weight [i];
+	int pos = s;
+
+	//  Queries have few segments, so an insertion sort is fine.
+
+	while ((pos > 0) && (segBound [pos - 1] < bound)) {
+	  segTerm [pos] = segTerm [pos - 1];
+	  segIndex [pos] = segIndex [pos - 1];
+	  segBound [pos] = segBound [pos - 1];
+	  pos --;
+	}
+
+	segTerm [pos] = i;
+	segIndex [pos] = j;
+	segBound [pos] = bound;
+      }
+    }
+
+    //  remaining [i] is the maximum score of term i's unread postings.
+
+    double[] remaining = new double[n];
+
+    for (int i = 0; i < n; i++)
+      remaining [i] = (lists [i].getNumSegments () > 0) ?
+	idf [i] * lists [i].getSegmentBound (0) * user_weight [i] : 0.0;
+
+    Accumulators acc = new Accumulators (k + 1);
+    long budget = (model.impactOrderedMaxPostings > 0) ?
+      model.impactOrderedMaxPostings : Long.MAX_VALUE;
+
+    for (int s = 0; s < numSegments; s++) {
+
+      //  Stop if the unread postings can't change the top k.
+
+      double unread = 0.0;
+
+      for (int i = 0; i < n; i++)
+	unread += remaining [i];
+
+      if (acc.getKthScore (k) > (acc.getNextScore (k) + unread) * SLACK)
+	break;
+
+      if (budget <= 0)
+	break;
+
+      int i = segTerm [s];
+      int j = segIndex [s];
+      ImpactOrderedIndex.TermSegments list = lists [i];
+      int start = list.getSegmentStart (j);
+      int end = list.getSegmentEnd (j);
+
+      if (end - start > budget)
+	end = start + (int) budget;
+
+      for (int p = start; p < end; p++) {
+	int docid = list.getDocid (p);
+	double tf_weight = QrySopScore.tfWeightBM25 (
+	  list.getTf (p), docLengths.getDocLength (fieldOrd, docid),
+	  model.k_1, model.b, avg_len);
+
+	acc.add (docid, idf [i] * tf_weight * user_weight [i]);
+      }
+
+      budget -= end - start;
+      remaining [i] = (j + 1 < list.getNumSegments ()) ?
+	idf [i] * list.getSegmentBound (j + 1) * user_weight [i] : 0.0;
+    }
+
+    //  The candidates are the documents whose accumulators are close
+    //  enough to the k'th best that their exact scores could tie it.
+
+    double kth = acc.getKthScore (k);
+    int[] candidates = new int[acc.size];
+    int numCandidates = 0;
+
+    for (int slot = 0; slot < acc.docids.length; slot++) {
+      if ((acc.docids [slot] != Accumulators.EMPTY) &&
+	  (acc.scores [slot] * SLACK >= kth))
+	candidates [numCandidates++] = acc.docids [slot];
+    }
+
+    Arrays.sort (candidates, 0, numCandidates);
+
+    return rescore (model, k, index, field, terms, idf, user_weight,
+		    candidates, numCandidates);
+  }
+
+  /**
+   *  Score the candidates exactly and keep the top k.  Each term's
+   *  Lucene postings are read in docid order, and a document's score
+   *  is summed in query order, the way that QrySopSum sums it.
+   */
+  private static ScoreList rescore (RetrievalModelBM25 model, int k,
+				    IndexHandle index, String field,
+				    String[] terms, double[] idf,
+				    double[] user_weight, int[] candidates,
+				    int numCandidates)
+    throws IOException {
+
+    IndexReader reader = index.getIndexReader ();
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    DocLengthStore docLengths = index.getDocLengthStore ();
+    int fieldOrd = docLengths.fieldOrdinal (field);
+    double avg_len = index.getCollectionStats ().getAvgFieldLength (field);
+    double[] scores = new double[numCandidates];
+
+    for (int i = 0; i < terms.length; i++) {
+      DocsEnum docs =
+	MultiFields.getTermDocsEnum (reader, liveDocs, field,
+				     new BytesRef (terms [i]),
+				     DocsEnum.FLAG_FREQS);
+
+      if (docs == null)
+	continue;
+
+      for (int c = 0; c < numCandidates; c++) {
+	int docid = docs.docID ();
+
+	if (docid < candidates [c])
+	  docid = docs.advance (candidates [c]);
+
+	if (docid == DocIdSetIterator.NO_MORE_DOCS)
+	  break;
+
+	if (docid == candidates [c]) {
+	  double tf_weight = QrySopScore.tfWeightBM25 (
+	    docs.freq (), docLengths.getDocLength (fieldOrd, docid),
+	    model.k_1, model.b, avg_len);
+
+	  scores [c] += idf [i] * tf_weight * user_weight [i];
+	}
+      }
+    }
+
+    TopKCollector topK = new TopKCollector (k, index);
+
+    for (int c = 0; c < numCandidates; c++)
+      topK.add (candidates [c], scores [c]);
+
+    return topK.getScoreList ();
+  }
+}
@@ -0,0 +1,370 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  Impact-ordered posting lists for some fields of an index.  Each
+ *  term's postings are grouped into segments by their quantized BM25
+ *  tf weight:  the weight, which is in [0, 1), is divided into
+ *  numBands bands of equal width, and each segment holds the
+ *  postings of one band.  A term's segments are in descending order
+ *  of weight, and the postings of a segment are in docid order.  Each
+ *  segment records the largest tf weight of its postings, rounded up.
+ *  ImpactOrderedEvaluator reads the segments of a query's terms in
+ *  descending order of score, so that it can stop when the rest of the
+ *  postings can't change the top k documents.
+ *  <p>
+ *  The tf weights depend on the BM25 k_1 and b parameters, so the
+ *  file records the parameters that it was built with.  Postings
+ *  store the docid and tf, and scores are computed from them at query
+ *  time, so a posting gets the same score that QrySopScore gives it.
+ *  </p><p>
+ *  The file is built offline by BuildImpactIndex (-ordered) and saved
+ *  in the index directory.  IndexHandle memory-maps it when the index
+ *  is opened.  If the file doesn't exist, was built for a different
+ *  version of the index, or is truncated, it is ignored.
+ *  </p><p>
+ *  The file has a header that records the parameters and, for each
+ *  field, the number of terms, segments and postings.  The field
+ *  sections follow.  Each section has a table of term string offsets,
+ *  a table of the first segment of each term, a table of the first
+ *  posting of each segment, each segment's bound, the postings as
+ *  (docid, tf) pairs, and the UTF-8 bytes of the terms, in Lucene's
+ *  term order.  A section must be smaller than 2GB.
+ *  </p>
+ */
+public class ImpactOrderedIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the file, in the index directory, that stores the
+   *  impact-ordered lists.
+   */
+  public static final String FILE_NAME = "qryeval-impactOrdered.bin";
+
+  static final int MAGIC = 0x494f5244;		// "IORD"
+  static final int FORMAT = 1;
+
+  private double k_1;
+  private double b;
+  private int numBands;
+  private Map<String,FieldSegments> fields =
+    new HashMap<String,FieldSegments> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The impact-ordered postings of one term.  Segments are numbered
+   *  from 0, in descending order of weight.
+   */
+  public static class TermSegments {
+
+    /**
+     *  The postings of a term that doesn't occur in the field.
+     */
+    public static final TermSegments EMPTY =
+      new TermSegments (null, 0, 0, 0, 0, 0);
+
+    private ByteBuffer buffer;
+    private int segmentStartStart;
+    private int boundStart;
+    private int postingsStart;
+    private int first;
+    private int numSegments;
+
+    private TermSegments (ByteBuffer buffer, int segmentStartStart,
+			  int boundStart, int postingsStart, int first,
+			  int numSegments) {
+      this.buffer = buffer;
+      this.segmentStartStart = segmentStartStart;
+      this.boundStart = boundStart;
+      this.postingsStart = postingsStart;
+      this.first = first;
+      this.numSegments = numSegments;
+    }
+
+    /**
+     *  Get the document frequency of the term:  its number of postings.
+     *  @return The df.
+     */
+    public int getDf () {
+      return (this.numSegments == 0) ? 0 :
+	this.getSegmentEnd (this.numSegments - 1) - this.getSegmentStart (0);
+    }
+
+    /**
+     *  Get the docid of a posting.
+     *  @param posting A posting number, from getSegmentStart.
+     *  @return The internal docid.
+     */
+    public int getDocid (int posting) {
+      return this.buffer.getInt (this.postingsStart + 8 * posting);
+    }
+
+    /**
+     *  Get the number of segments.
+     *  @return The number of segments.
+     */
+    public int getNumSegments () {
+      return this.numSegments;
+    }
+
+    /**
+     *  Get the largest BM25 tf weight of the postings of a segment.
+     *  @param segment A segment number.
+     *  @return The bound.
+     */
+    public float getSegmentBound (int segment) {
+      return this.buffer.getFloat (this.boundStart + 4 * (this.first + segment));
+    }
+
+    /**
+     *  Get the posting number after the last posting of a segment.
+     *  @param segment A segment number.
+     *  @return The posting number.
+     */
+    public int getSegmentEnd (int segment) {
+      return this.getSegmentStart (segment + 1);
+    }
+
+    /**
+     *  Get the posting number of the first posting of a segment.
+     *  @param segment A segment number.
+     *  @return The posting number.
+     */
+    public int getSegmentStart (int segment) {
+      return this.buffer.getInt (this.segmentStartStart + 4 * (this.first + segment));
+    }
+
+    /**
+     *  Get the term frequency of a posting.
+     *  @param posting A posting number, from getSegmentStart.
+     *  @return The tf.
+     */
+    public int getTf (int posting) {
+      return this.buffer.getInt (this.postingsStart + 8 * posting + 4);
+    }
+  }
+
+  /**
+   *  The section of the file that covers one field.
+   */
+  private static class FieldSegments {
+
+    private ByteBuffer buffer;	// Only absolute gets, so it can be shared
+    private int numTerms;
+    private int offsetsStart;
+    private int firstSegmentStart;
+    private int segmentStartStart;
+    private int boundStart;
+    private int postingsStart;
+    private int stringsStart;
+
+    private FieldSegments (ByteBuffer buffer, int numTerms, int numSegments,
+			   int numPostings) {
+      this.buffer = buffer;
+      this.numTerms = numTerms;
+      this.offsetsStart = 0;
+      this.firstSegmentStart = this.offsetsStart + 4 * (numTerms + 1);
+      this.segmentStartStart = this.firstSegmentStart + 4 * (numTerms + 1);
+      this.boundStart = this.segmentStartStart + 4 * (numSegments + 1);
+      this.postingsStart = this.boundStart + 4 * numSegments;
+      this.stringsStart = this.postingsStart + 8 * numPostings;
+    }
+
+    private TermSegments get (String term) {
+      byte[] key = term.getBytes (ImpactIndex.UTF8);
+      int lo = 0;
+      int hi = this.numTerms - 1;
+
+      while (lo <= hi) {
+	int mid = (lo + hi) >>> 1;
+	int c = this.compareTo (mid, key);
+
+	if (c < 0)
+	  lo = mid + 1;
+	else if (c > 0)
+	  hi = mid - 1;
+	else {
+	  int first = this.buffer.getInt (this.firstSegmentStart + 4 * mid);
+	  int next = this.buffer.getInt (this.firstSegmentStart + 4 * (mid + 1));
+
+	  return new TermSegments (this.buffer, this.segmentStartStart,
+				   this.boundStart, this.postingsStart,
+				   first, next - first);
+	}
+      }
+
+      return TermSegments.EMPTY;
+    }
+
+    /**
+     *  Compare the bytes of the i'th term to key, as unsigned bytes,
+     *  which is Lucene's term order.
+     */
+    private int compareTo (int i, byte[] key) {
+      int start = this.buffer.getInt (this.offsetsStart + 4 * i);
+      int end = this.buffer.getInt (this.offsetsStart + 4 * (i + 1));
+      int n = Math.min (end - start, key.length);
+
+      for (int j = 0; j < n; j++) {
+	int d = (this.buffer.get (this.stringsStart + start + j) & 0xFF) -
+	  (key [j] & 0xFF);
+	if (d != 0)
+	  return d;
+      }
+
+      return (end - start) - key.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the impact-ordered lists of an index.
+   *  @param reader The index.
+   *  @param file The file that stores the lists.
+   *  @return The lists, or null if the file doesn't exist, was built
+   *  for a different version of the index, or isn't a complete file.
+   *  @throws IOException Error reading the file.
+   */
+  public static ImpactOrderedIndex open (IndexReader reader, File file)
+    throws IOException {
+
+    if (! file.canRead ())
+      return null;
+
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+
+    RandomAccessFile f = new RandomAccessFile (file, "r");
+
+    try {
+      DataInputStream header = new DataInputStream (
+        new BufferedInputStream (new FileInputStream (f.getFD ())));
+
+      if ((header.readInt () != MAGIC) ||
+	  (header.readInt () != FORMAT) ||
+	  (header.readLong () != version) ||
+	  (header.readInt () != reader.maxDoc ()))
+	return null;
+
+      ImpactOrderedIndex ordered = new ImpactOrderedIndex ();
+
+      ordered.k_1 = header.readDouble ();
+      ordered.b = header.readDouble ();
+      ordered.numBands = header.readInt ();
+
+      int numFields = header.readInt ();
+
+      if ((numFields < 0) || (numFields > f.length () / 22))
+	return null;			// A field takes at least 22 bytes
+
+      long headerLength = 44;		// Up to the field table
+      String[] names = new String[numFields];
+      int[] numTerms = new int[numFields];
+      int[] numSegments = new int[numFields];
+      int[] numPostings = new int[numFields];
+      long[] lengths = new long[numFields];
+
+      for (int i = 0; i < numFields; i++) {
+	byte[] name = new byte[header.readUnsignedShort ()];
+
+	header.readFully (name);
+	names [i] = new String (name, ImpactIndex.UTF8);
+	numTerms [i] = header.readInt ();
+	numSegments [i] = header.readInt ();
+	numPostings [i] = header.readInt ();
+	lengths [i] = header.readLong ();
+	headerLength += 2 + name.length + 20;
+
+	//  A section has its tables and postings, then the term strings.
+
+	if ((numTerms [i] < 0) || (numSegments [i] < 0) ||
+	    (numPostings [i] < 0) || (lengths [i] > Integer.MAX_VALUE) ||
+	    (lengths [i] < 8L * (numTerms [i] + 1) + 8L * numSegments [i] + 4 +
+	     8L * numPostings [i]))
+	  return null;
+      }
+
+      //  The file is truncated or has extra bytes if the sections don't
+      //  end at the end of the file.
+
+      long offset = (headerLength + 3) & ~3L;
+      long end = offset;
+
+      for (int i = 0; i < numFields; i++)
+	end += lengths [i];
+
+      if (end != f.length ())
+	return null;
+
+      //  Map each field separately, so that the file can exceed 2GB.
+
+      FileChannel channel = f.getChannel ();
+
+      for (int i = 0; i < numFields; i++) {
+	ByteBuffer buffer =
+	  channel.map (FileChannel.MapMode.READ_ONLY, offset, lengths [i]);
+
+	ordered.fields.put (names [i],
+	  new FieldSegments (buffer, numTerms [i], numSegments [i],
+			     numPostings [i]));
+	offset += lengths [i];
+      }
+
+      return ordered;
+    } catch (EOFException ex) {
+      return null;			// The header is truncated
+    } finally {
+      f.close ();
+    }
+  }
+
+  private ImpactOrderedIndex () {
+  }
+
+  /**
+   *  Get the BM25 b parameter that the lists were built with.
+   *  @return b.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  Get the BM25 k_1 parameter that the lists were built with.
+   *  @return k_1.
+   */
+  public double getK1 () {
+    return this.k_1;
+  }
+
+  /**
+   *  Get the number of bands that tf weights are quantized into.
+   *  @return The number of bands.
+   */
+  public int getNumBands () {
+    return this.numBands;
+  }
+
+  /**
+   *  Get the impact-ordered postings of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The postings, TermSegments.EMPTY if the term doesn't occur
+   *  in the field, or null if the file doesn't cover the field.
+   */
+  public TermSegments getTermSegments (String fieldName, String term) {
+    FieldSegments f = this.fields.get (fieldName);
+
+    return (f == null) ? null : f.get (term);
+  }
+}
@@ -0,0 +1,278 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An open index:  a Lucene index and the auxiliary data structures
+ *  that the search engine uses with it (DocLengthStore,
+ *  ExternalIdTable and, if they have been built, ImpactIndex and
+ *  ImpactOrderedIndex), plus the CollectionStats of the index and
+ *  caches of the inverted lists of its terms and of the lists that
+ *  #NEAR, #WINDOW and #SYN operators derive from them.
+ *  <p>
+ *  An IndexHandle is immutable after it is opened, apart from its
+ *  caches, which are thread-safe, so one handle can
+ *  be shared by threads that evaluate queries concurrently, and
+ *  queries against different handles can run at the same time.  Query
+ *  operators get their handle from Qry.initialize.  Idx keeps a table
+ *  of open handles and designates one of them the current index.
+ *  </p>
+ */
+public class IndexHandle {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final String indexPath;
+  private final IndexReader reader;
+  private final DocLengthStore docLengthStore;
+  private final ExternalIdTable externalIdTable;
+  private final ImpactIndex impactIndex;
+  private final ImpactOrderedIndex impactOrderedIndex;
+
+  /**
+   *  Collection statistics, computed when the index is opened.
+   */
+  private final CollectionStats collectionStats;
+
+  /**
+   *  Inverted lists of terms that queries have used.  It is disabled
+   *  until it is given a size.
+   */
+  private final InvListCache postingCache = new InvListCache ();
+
+  /**
+   *  Inverted lists that query operators derived from other lists,
+   *  keyed by operator signature.  It is disabled until it is given a
+   *  size.
+   */
+  private final InvListCache derivedCache = new InvListCache ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a Lucene index and its auxiliary data structures.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexHandle (String indexPath)
+    throws IllegalArgumentException, IOException {
+    this (indexPath, DocLengthStore.Mode.LUCENE);
+  }
+
+  /**
+   *  Open a Lucene index and its auxiliary data structures.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param docLengthMode How the DocLengthStore stores lengths.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexHandle (String indexPath, DocLengthStore.Mode docLengthMode)
+    throws IllegalArgumentException, IOException {
+
+    this.indexPath = indexPath;
+
+    //  Open the Lucene index
+
+    this.reader =
+      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
+
+    if (this.reader == null) {
+      throw new IllegalArgumentException ("Unable to open the index.");
+    }
+
+    //  Lucene doesn't store field lengths the way that we want them,
+    //  so we have our own document length store.
+
+    this.docLengthStore =
+      new DocLengthStore (this.reader, docLengthMode, indexPath);
+
+    //  Map external docids to internal docids and back without
+    //  reading stored documents or searching the index.
+
+    this.externalIdTable = ExternalIdTable.open (this.reader,
+      new File (indexPath, ExternalIdTable.FILE_NAME));
+
+    //  Score bounds for dynamic pruning and impact-ordered lists for
+    //  score-at-a-time evaluation, if BuildImpactIndex has built them
+    //  for this version of the index.
+
+    this.impactIndex = ImpactIndex.open (this.reader,
+      new File (indexPath, ImpactIndex.FILE_NAME));
+
+    this.impactOrderedIndex = ImpactOrderedIndex.open (this.reader,
+      new File (indexPath, ImpactOrderedIndex.FILE_NAME));
+
+    this.collectionStats = new CollectionStats (this.reader);
+  }
+
+  /**
+   *  Get the collection statistics of the index.
+   *  @return The collection statistics.
+   */
+  public CollectionStats getCollectionStats () {
+    return this.collectionStats;
+  }
+
+  /**
+   *  Get the document length store of the index.
+   *  @return The document length store.
+   */
+  public DocLengthStore getDocLengthStore () {
+    return this.docLengthStore;
+  }
+
+  /**
+   *  Get the cache of the inverted lists of terms.
+   *  @return The cache.
+   */
+  public InvListCache getPostingCache () {
+    return this.postingCache;
+  }
+
+  /**
+   *  Get the cache of the inverted lists that operators such as #NEAR,
+   *  #WINDOW and #SYN derive from their arguments.
+   *  @return The cache.
+   */
+  public InvListCache getDerivedCache () {
+    return this.derivedCache;
+  }
+
+  /**
+   *  Get the precomputed score bounds of the index.
+   *  @return The score bounds, or null if they haven't been built.
+   */
+  public ImpactIndex getImpactIndex () {
+    return this.impactIndex;
+  }
+
+  /**
+   *  Get the impact-ordered posting lists of the index.
+   *  @return The lists, or null if they haven't been built.
+   */
+  public ImpactOrderedIndex getImpactOrderedIndex () {
+    return this.impactOrderedIndex;
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document d = this.reader.document (docid);
+    return d.get (attributeName);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocCount (String fieldName) throws IOException {
+    return this.collectionStats.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocFreq (String fieldName, String term) throws IOException {
+    return this.reader.docFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid (int iid) throws IOException {
+    return this.externalIdTable.getExternalDocid (iid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (String fieldName, int docid)
+    throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the Lucene index.
+   *  @return The index reader.
+   */
+  public IndexReader getIndexReader () {
+    return this.reader;
+  }
+
+  /**
+   *  Get the directory that contains the index.
+   *  @return The index path.
+   */
+  public String getIndexPath () {
+    return this.indexPath;
+  }
+
+  /**
+   *  Get the internal document id for a document specified by its
+   *  external id.
+   *  @param externalId The external docid in the Lucene index.
+   *  @return The internal docid, or -1 if no such document exists.
+   */
+  public int getInternalDocid (String externalId) {
+    return this.externalIdTable.getInternalDocid (externalId);
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.collectionStats.getNumDocs ();
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getSumOfFieldLengths (String fieldName) throws IOException {
+    return this.collectionStats.getSumOfFieldLengths (fieldName);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+    return this.reader.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A block evaluator for flat Indri queries, e.g., #AND (a b c) or
+ *  #WAND (0.7 a 0.3 b.title), whose arguments are all SCORE operators.
+ *  It scores the matching documents a block of docids at a time, in
+ *  log space:  a document's score is exp (sum (w_i * log p_i) / sum
+ *  (w_i)), where p_i is argument i's term probability, or its default
+ *  score if argument i doesn't match the document.
+ *  <p>
+ *  The sum is split into two parts.  The first is the sum of the
+ *  weighted logs of every argument's default score.  A default score
+ *  only depends on the length of the argument's field, so this part is
+ *  computed once per distinct field length and cached.  The second is
+ *  the sum, over the arguments that match the document, of the
+ *  weighted log of the ratio of the term probability to the default
+ *  score.  Within a block, each argument's postings are read in one
+ *  pass, and their ratios are added to a primitive array of
+ *  accumulators.  The cost of a document is proportional to the number
+ *  of arguments that match it, rather than the number of arguments,
+ *  which matters for the long queries that query expansion produces.
+ *  </p><p>
+ *  Term probabilities and default scores are computed by QrySopScore
+ *  from the parameters of the initialized SCORE operators, but the
+ *  logs are summed in a different order than QrySopAnd and QrySopWAnd
+ *  sum them, so scores may differ in the last bits.
+ *  </p>
+ */
+public class IndriBlockEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of docids in a block.
+   */
+  static final int BLOCK_SIZE = 4096;
+
+  /**
+   *  Sums of default scores are cached for field lengths below this.
+   */
+  private static final int MAX_CACHED_LENGTH = 1 << 16;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The arguments whose terms are in one field, and the cached sums
+   *  of the weighted logs of their default scores, indexed by field
+   *  length.  NaN marks a length that hasn't been seen yet.
+   */
+  private static class FieldGroup {
+
+    private int fieldOrd;
+    private int[] args;
+    private double[] logDefaults = new double[0];
+
+    private FieldGroup (int fieldOrd, int[] args) {
+      this.fieldOrd = fieldOrd;
+      this.args = args;
+    }
+
+    /**
+     *  The sum of the weighted logs of the group's default scores for a
+     *  field length.
+     */
+    private double getLogDefault (int len, Terms t) {
+      if ((len < this.logDefaults.length) &&
+	  (! Double.isNaN (this.logDefaults [len])))
+	return this.logDefaults [len];
+
+      double logDefault = 0.0;
+
+      for (int i : this.args)
+	logDefault += t.weight [i] * Math.log (t.getDefaultScore (i, len));
+
+      if (len < MAX_CACHED_LENGTH) {
+	if (len >= this.logDefaults.length) {
+	  int n = Math.min (Math.max (2 * this.logDefaults.length, len + 1),
+			    MAX_CACHED_LENGTH);
+	  int old = this.logDefaults.length;
+
+	  this.logDefaults = Arrays.copyOf (this.logDefaults, n);
+	  Arrays.fill (this.logDefaults, old, n, Double.NaN);
+	}
+
+	this.logDefaults [len] = logDefault;
+      }
+
+      return logDefault;
+    }
+  }
+
+  /**
+   *  The document-independent parts of each argument's score, in
+   *  primitive arrays indexed by argument.
+   */
+  private static class Terms {
+
+    private QryIop[] iops;
+    private int[] fieldOrd;
+    private double[] weight;
+    private double[] mu;
+    private double[] one_minus_lambda;
+    private double[] mu_mle;
+    private double[] lambda_mle;
+
+    private Terms (int n) {
+      this.iops = new QryIop[n];
+      this.fieldOrd = new int[n];
+      this.weight = new double[n];
+      this.mu = new double[n];
+      this.one_minus_lambda = new double[n];
+      this.mu_mle = new double[n];
+      this.lambda_mle = new double[n];
+    }
+
+    private double getDefaultScore (int i, double doc_len) {
+      return this.getScore (i, 0, doc_len);
+    }
+
+    private double getScore (int i, double tf, double doc_len) {
+      return QrySopScore.scoreIndri (tf, doc_len, this.mu [i],
+				     this.one_minus_lambda [i],
+				     this.mu_mle [i], this.lambda_mle [i]);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate a query a block at a time, if it can be.  The query must
+   *  be an Indri AND or WAND operator whose arguments are all SCORE
+   *  operators over inverted list operators.  The query doesn't need to
+   *  be initialized.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param k The number of documents to return, or 0 to return all of
+   *  the documents that match.
+   *  @param index The index to search.
+   *  @return The results, or null if the query can't be evaluated a
+   *  block at a time.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (Qry q, RetrievalModel r, int k,
+				    IndexHandle index)
+    throws IOException {
+
+    if ((! (r instanceof RetrievalModelIndri)) ||
+	(! ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd))) ||
+	(q.args.size () == 0))
+      return null;
+
+    for (Qry q_i : q.args) {
+      if ((! (q_i instanceof QrySopScore)) ||
+	  (! (q_i.args.get (0) instanceof QryIop)))
+	return null;
+    }
+
+    q.initialize (r, index);
+
+    //  The document-independent parts of each argument's score, from
+    //  its initialized SCORE operator.
+
+    int n = q.args.size ();
+    Terms t = new Terms (n);
+    double sumWeight = 0.0;
+
+    for (int i = 0; i < n; i++) {
+      QrySopScore s = (QrySopScore) q.args.get (i);
+
+      t.iops [i] = (QryIop) s.args.get (0);
+      t.fieldOrd [i] = s.fieldOrd;
+      t.weight [i] = (q instanceof QrySopWAnd) ?
+	((QrySopWAnd) q).weight_list.get (i) : 1.0;
+      t.mu [i] = s.mu;
+      t.one_minus_lambda [i] = s.one_minus_lambda;
+      t.mu_mle [i] = s.mu_mle;
+      t.lambda_mle [i] = s.lambda_mle;
+      sumWeight += t.weight [i];
+    }
+
+    //  Group the arguments by field, so that default scores are
+    //  computed once per field length.
+
+    Map<Integer,List<Integer>> byField = new TreeMap<Integer,List<Integer>> ();
+
+    for (int i = 0; i < n; i++) {
+      if (! byField.containsKey (t.fieldOrd [i]))
+	byField.put (t.fieldOrd [i], new ArrayList<Integer> ());
+      byField.get (t.fieldOrd [i]).add (i);
+    }
+
+    FieldGroup[] groups = new FieldGroup[byField.size ()];
+    int g = 0;
+
+    for (Map.Entry<Integer,List<Integer>> e : byField.entrySet ()) {
+      int[] args = new int[e.getValue ().size ()];
+
+      for (int j = 0; j < args.length; j++)
+	args [j] = e.getValue ().get (j);
+
+      groups [g++] = new FieldGroup (e.getKey (), args);
+    }
+
+    return evaluate (r, k, index, t, groups, sumWeight);
+  }
+
+  /**
+   *  Score the documents that match any argument, a block of docids at
+   *  a time.
+   */
+  private static ScoreList evaluate (RetrievalModel r, int k,
+				     IndexHandle index, Terms t,
+				     FieldGroup[] groups, double sumWeight)
+    throws IOException {
+
+    DocLengthStore docLengths = index.getDocLengthStore ();
+    TopKCollector topK = (k > 0) ? new TopKCollector (k, index) : null;
+    ScoreList results = (k > 0) ? null : new ScoreList (index);
+    int n = t.iops.length;
+
+    //  logRatios [j] accumulates the log ratios of docid base + j.
+    //  seen [j] is the number of the block in which the docid was
+    //  last added to the candidates.
+
+    double[] logRatios = new double[BLOCK_SIZE];
+    int[] seen = new int[BLOCK_SIZE];
+    int[] candidates = new int[BLOCK_SIZE];
+    int block = 0;
+
+    while (true) {
+
+      //  Start the block at the smallest docid that an argument matches.
+
+      int base = Integer.MAX_VALUE;
+
+      for (int i = 0; i < n; i++) {
+	if (t.iops [i].docIteratorHasMatch (r))
+	  base = Math.min (base, t.iops [i].docIteratorGetMatch ());
+      }
+
+      if (base == Integer.MAX_VALUE)
+	break;
+
+      long end = (long) base + BLOCK_SIZE;
+      int numCandidates = 0;
+
+      block ++;
+
+      //  Read each argument's postings in the block.
+
+      for (int i = 0; i < n; i++) {
+	QryIop iop = t.iops [i];
+	double w = t.weight [i];
+	int fieldOrd = t.fieldOrd [i];
+
+	while (iop.docIteratorHasMatch (r)) {
+	  int docid = iop.docIteratorGetMatch ();
+
+	  if (docid >= end)
+	    break;
+
+	  int j = docid - base;
+
+	  if (seen [j] != block) {
+	    seen [j] = block;
+	    logRatios [j] = 0.0;
+	    candidates [numCandidates++] = j;
+	  }
+
+	  double doc_len = docLengths.getDocLength (fieldOrd, docid);
+	  double score = t.getScore (i, iop.docIteratorGetMatchTf (), doc_len);
+
+	  logRatios [j] += w * Math.log (score / t.getDefaultScore (i, doc_len));
+	  iop.docIteratorAdvancePast (docid);
+	}
+      }
+
+      //  Add the default scores and collect the block's documents in
+      //  docid order.
+
+      Arrays.sort (candidates, 0, numCandidates);
+
+      for (int c = 0; c < numCandidates; c++) {
+	int j = candidates [c];
+	int docid = base + j;
+	double logScore = logRatios [j];
+
+	for (FieldGroup group : groups)
+	  logScore += group.getLogDefault (
+	    docLengths.getDocLength (group.fieldOrd, docid), t);
+
+	double score = Math.exp (logScore / sumWeight);
+
+	if (topK != null)
+	  topK.add (docid, score);
+	else
+	  results.add (docid, score);
+      }
+    }
+
+    return (topK != null) ? topK.getScoreList () : results;
+  }
+}
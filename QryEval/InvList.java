@@ -14,11 +14,29 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in a compressed form.  They are grouped into
+ *  blocks of BLOCK_SIZE postings.  Each block stores, for each
+ *  posting, the docid gap, the term frequency, and the number of
+ *  bytes used by the posting's positions, all variable-byte encoded.
+ *  Positions are gap encoded in a separate byte stream, so they are
+ *  only decoded when a caller asks for them.  A small skip table
+ *  records the last docid and the stream offsets of each block.
+ *  </p><p>
+ *  Use a Cursor to iterate over the postings efficiently.  An InvList
+ *  does not change after it is built, so several cursors may read it
+ *  at the same time.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The number of postings in a block of the compressed list.
+   */
+  public static final int BLOCK_SIZE = 128;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -32,22 +50,40 @@ public class InvList {
   public int df = 0;
 
   /**
-   *  The field covered by the inverted list.
+   *  The largest term frequency in the list.  Query operators use it
+   *  to bound the score that a document can get from the list.
    */
-  public String field;
+  public int maxTf = 0;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The field covered by the inverted list.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+  public String field;
+
+  //  Docid gaps, term frequencies and position byte lengths.
+
+  private byte[] docBytes = new byte[16];
+  private int docBytesLength = 0;
+
+  //  Position gaps.
+
+  private byte[] posBytes = new byte[16];
+  private int posBytesLength = 0;
+
+  //  The skip table:  one entry per block.
+
+  private int[] blockLastDocid = new int[1];
+  private int[] blockDocOffset = new int[1];
+  private int[] blockPosOffset = new int[1];
+
+  private int lastDocid = -1;
 
   //  --------------- Nested classes --------------------------------
 
   /**
    *  Utility class that makes it easier to construct postings.
    */
-  public class DocPosting {
+  public static class DocPosting {
 
     /**
      *  The internal id of a document that contains the term in
@@ -65,20 +101,162 @@ public class InvList {
      *  The locations where the term occurs in the specified field
      *  of the document.
      */
-    public Vector<Integer> positions = new Vector<Integer>();
+    public int[] positions;
 
     public DocPosting(int d, int... locations) {
       this.docid = d;
       this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
+      this.positions = locations;
     }
 
     public DocPosting(int d, List<Integer> locations) {
       this.docid = d;
       this.tf = locations.size();
+      this.positions = new int[this.tf];
       for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
+        this.positions[i] = locations.get(i);
+    }
+  }
+
+  /**
+   *  A cursor over the postings of an inverted list.  The cursor
+   *  keeps the decoded copy of the current block and, when asked, the
+   *  positions of the current posting.  Arrays returned by the cursor
+   *  are reused, so they are only valid until the cursor moves.
+   */
+  public class Cursor {
+
+    private int index = 0;
+
+    //  The decoded block.
+
+    private int block = -1;
+    private int blockCount = 0;
+    private int[] docids = new int[BLOCK_SIZE];
+    private int[] tfs = new int[BLOCK_SIZE];
+    private int[] posOffsets = new int[BLOCK_SIZE];
+
+    //  The decoded positions of one posting.
+
+    private int positionsIndex = -1;
+    private int[] positions = new int[16];
+
+    /**
+     *  Get the index of the posting that the cursor points to.
+     *  @return The index of the current posting.
+     */
+    public int getIndex () {
+      return this.index;
+    }
+
+    /**
+     *  Move the cursor to the n'th posting.
+     *  @param n The index of a posting.
+     */
+    public void setIndex (int n) {
+      this.index = n;
+    }
+
+    /**
+     *  Move the cursor to the next posting.
+     */
+    public void next () {
+      this.index ++;
+    }
+
+    /**
+     *  Move the cursor to the first posting whose docid is at least
+     *  target, or past the end of the list if there is none.  The
+     *  cursor never moves backwards.  The skip table is searched
+     *  first, then the decoded block, both with a galloping search,
+     *  so the cost grows with the log of the distance moved rather
+     *  than with the number of postings skipped.
+     *  @param target An internal document id.
+     */
+    public void advanceTo (int target) {
+      if (this.index >= df)
+        return;
+
+      int b = this.index / BLOCK_SIZE;
+
+      if (blockLastDocid [b] < target) {
+
+        //  The target is in a later block, or in no block.
+
+        b = gallop (blockLastDocid, b + 1, getBlockCount (), target);
+
+        if (b == getBlockCount ()) {
+          this.index = df;
+          return;
+        }
+
+        this.index = b * BLOCK_SIZE;
+      }
+
+      load ();
+
+      int i = gallop (this.docids, this.index % BLOCK_SIZE, this.blockCount, target);
+      this.index = b * BLOCK_SIZE + i;
+    }
+
+    /**
+     *  Indicates whether the cursor points to a posting.
+     *  @return True if the cursor points to a posting.
+     */
+    public boolean hasPosting () {
+      return (this.index < df);
+    }
+
+    /**
+     *  @return The docid of the current posting.
+     */
+    public int getDocid () {
+      load ();
+      return this.docids [this.index % BLOCK_SIZE];
+    }
+
+    /**
+     *  @return The term frequency of the current posting.
+     */
+    public int getTf () {
+      load ();
+      return this.tfs [this.index % BLOCK_SIZE];
+    }
+
+    /**
+     *  Get the positions of the current posting.  Only the first
+     *  getTf() entries of the array are valid.
+     *  @return The positions of the current posting.
+     */
+    public int[] getPositions () {
+      if (this.positionsIndex != this.index) {
+        load ();
+        int i = this.index % BLOCK_SIZE;
+        int tf = this.tfs [i];
+
+        if (this.positions.length < tf)
+          this.positions = new int [Math.max (tf, this.positions.length * 2)];
+
+        decodePositions (this.posOffsets [i], tf, this.positions);
+        this.positionsIndex = this.index;
+      }
+
+      return this.positions;
+    }
+
+    /**
+     *  Make sure that the block that contains the current posting is
+     *  decoded.  A block is decoded again if postings were appended
+     *  to it since it was decoded.
+     */
+    private void load () {
+      int b = this.index / BLOCK_SIZE;
+
+      if ((b != this.block) || (this.blockCount != blockLength (b))) {
+        this.blockCount = decodeBlock (b, this.docids, this.tfs, this.posOffsets);
+        this.block = b;
+        this.positionsIndex = -1;
+      }
     }
   }
 
@@ -99,12 +277,26 @@ public class InvList {
   }
 
   /**
-   *  Get an inverted list from the index.
+   *  Get an inverted list from the current index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
    *  @param fieldString The field that the term occurs in.
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (Idx.getCurrentIndex (), termString, fieldString);
+  }
+
+  /**
+   *  Get an inverted list from an index.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexHandle index, String termString, String fieldString)
+    throws IOException {
+
+    IndexReader reader = index.getIndexReader ();
 
     //  Store the field name.  This is used by other query operators.
 
@@ -115,14 +307,14 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if (reader.docFreq(term) < 1)
       return;
 
     //  Lookup the inverted list.
 
     DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				       MultiFields.getLiveDocs(Idx.INDEXREADER),
+      MultiFields.getTermPositionsEnum(reader,
+				       MultiFields.getLiveDocs(reader),
 				       fieldString, termBytes);
 
     //  Copy from Lucene inverted list format to our inverted list
@@ -130,17 +322,19 @@ public class InvList {
     //  operators such as #SYN and #NEAR/n to be insulated from the
     //  details of Lucene inverted list implementations.
 
+    int[] positions = new int[16];
+
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      if (positions.length < tf)
+        positions = new int[Math.max (tf, positions.length * 2)];
 
       for (int j = 0; j < tf; j++)
         positions[j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      this.appendPosting (iList.docID(), positions, tf);
     }
   }
 
@@ -152,29 +346,88 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
+    int[] p = new int[positions.size()];
+
+    for (int i = 0; i < p.length; i++)
+      p[i] = positions.get(i);
+
+    return this.appendPosting (docid, p, p.length);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array of positions, in ascending order.
+   *  @param tf The number of valid entries in positions.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int tf) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) && (this.lastDocid >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    //  Start a new block when the last one is full.
+
+    int b = this.df / BLOCK_SIZE;
+
+    if (this.df % BLOCK_SIZE == 0) {
+      if (b == this.blockLastDocid.length) {
+        this.blockLastDocid = Arrays.copyOf (this.blockLastDocid, b * 2);
+        this.blockDocOffset = Arrays.copyOf (this.blockDocOffset, b * 2);
+        this.blockPosOffset = Arrays.copyOf (this.blockPosOffset, b * 2);
+      }
+
+      this.blockDocOffset [b] = this.docBytesLength;
+      this.blockPosOffset [b] = this.posBytesLength;
+    }
+
+    //  Positions are gap encoded.
+
+    int posStart = this.posBytesLength;
+    int prev = 0;
+
+    for (int i = 0; i < tf; i++) {
+      this.writePos (positions [i] - prev);
+      prev = positions [i];
+    }
+
+    //  The first docid of a list is stored as a gap from -1, so
+    //  that docid 0 is not confused with a repeated docid.
 
-    this.postings.add (p);
+    this.writeDoc (docid - this.lastDocid);
+    this.writeDoc (tf);
+    this.writeDoc (this.posBytesLength - posStart);
+
+    this.blockLastDocid [b] = docid;
+    this.lastDocid = docid;
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.maxTf = Math.max (this.maxTf, tf);
     return true;
   }
 
   /**
-   *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  Get a new cursor that points to the first posting.
+   *  @return A cursor.
+   */
+  public Cursor cursor () {
+    return new Cursor ();
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.  Random access
+   *  decodes a block, so iterate with a Cursor when possible.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    Cursor c = new Cursor ();
+    c.setIndex (n);
+    return c.getDocid ();
   }
 
   /**
@@ -183,7 +436,61 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    Cursor c = new Cursor ();
+    c.setIndex (n);
+    return c.getTf ();
+  }
+
+  /**
+   *  Get the positions in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The document's positions.
+   */
+  public int[] getPositions(int n) {
+    Cursor c = new Cursor ();
+    c.setIndex (n);
+    return Arrays.copyOf (c.getPositions (), c.getTf ());
+  }
+
+  /**
+   *  Get the number of blocks in the inverted list.
+   *  @return The number of blocks.
+   */
+  public int getBlockCount () {
+    return (this.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+  }
+
+  /**
+   *  Get the last docid in a block of the inverted list.
+   *  @param b The index of the block.
+   *  @return The internal document id.
+   */
+  public int getBlockLastDocid (int b) {
+    return this.blockLastDocid [b];
+  }
+
+  /**
+   *  Release the unused capacity of the list's arrays.  Call it when a
+   *  list is complete and will be kept for a while, e.g., in an
+   *  InvListCache.  Postings can still be appended afterwards.
+   */
+  public void trimToSize () {
+    int blocks = Math.max (this.getBlockCount (), 1);
+
+    this.docBytes = Arrays.copyOf (this.docBytes, this.docBytesLength);
+    this.posBytes = Arrays.copyOf (this.posBytes, this.posBytesLength);
+    this.blockLastDocid = Arrays.copyOf (this.blockLastDocid, blocks);
+    this.blockDocOffset = Arrays.copyOf (this.blockDocOffset, blocks);
+    this.blockPosOffset = Arrays.copyOf (this.blockPosOffset, blocks);
+  }
+
+  /**
+   *  Get the approximate number of bytes used by the inverted list.
+   *  @return The number of bytes.
+   */
+  public long sizeInBytes () {
+    return this.docBytes.length + this.posBytes.length +
+           12L * this.blockLastDocid.length + 64;
   }
 
   /**
@@ -193,15 +500,146 @@ public class InvList {
 
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
-    for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+    for (Cursor c = new Cursor (); c.hasPosting (); c.next ()) {
+      System.out.print("docid:  " + c.getDocid () + ", tf: "
+          + c.getTf () + ", locs: ");
+
+      int[] positions = c.getPositions ();
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < c.getTf (); j++) {
+        System.out.print(positions[j] + " ");
       }
 
       System.out.println();
     }
   }
+
+  //  --------------- Encoding and decoding -------------------------
+
+  /**
+   *  Find the first entry in a[from..to) that is at least target, or
+   *  to if there is none.  a must be in ascending order.  Probe
+   *  distances double until the target is passed, then a binary
+   *  search finishes the job.
+   */
+  private static int gallop (int[] a, int from, int to, int target) {
+    int lo = from;
+    int hi = from;
+    int step = 1;
+
+    while ((hi < to) && (a [hi] < target)) {
+      lo = hi + 1;
+      hi += step;
+      step <<= 1;
+    }
+
+    hi = Math.min (hi, to);
+
+    //  a[lo-1] < target, and a[hi] >= target or hi == to.
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a [mid] < target)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  The number of postings in block b.
+   */
+  private int blockLength (int b) {
+    return Math.min (BLOCK_SIZE, this.df - b * BLOCK_SIZE);
+  }
+
+  /**
+   *  Decode the docids, term frequencies and position offsets of
+   *  block b.
+   *  @return The number of postings in the block.
+   */
+  private int decodeBlock (int b, int[] docids, int[] tfs, int[] posOffsets) {
+    int count = blockLength (b);
+    int docid = (b == 0) ? -1 : this.blockLastDocid [b - 1];
+    int posOffset = this.blockPosOffset [b];
+    int p = this.blockDocOffset [b];
+
+    for (int i = 0; i < count; i++) {
+      int v, shift;
+
+      //  Variable-byte decoding is unrolled here because this loop
+      //  is on the query evaluation path.
+
+      for (v = 0, shift = 0; ; shift += 7) {
+        byte x = this.docBytes [p++];
+        v |= (x & 0x7F) << shift;
+        if (x >= 0) break;
+      }
+      docid += v;
+      docids [i] = docid;
+
+      for (v = 0, shift = 0; ; shift += 7) {
+        byte x = this.docBytes [p++];
+        v |= (x & 0x7F) << shift;
+        if (x >= 0) break;
+      }
+      tfs [i] = v;
+
+      for (v = 0, shift = 0; ; shift += 7) {
+        byte x = this.docBytes [p++];
+        v |= (x & 0x7F) << shift;
+        if (x >= 0) break;
+      }
+      posOffsets [i] = posOffset;
+      posOffset += v;
+    }
+
+    return count;
+  }
+
+  /**
+   *  Decode tf gap-encoded positions that start at posOffset.
+   */
+  private void decodePositions (int posOffset, int tf, int[] positions) {
+    int p = posOffset;
+    int loc = 0;
+
+    for (int j = 0; j < tf; j++) {
+      int v = 0;
+
+      for (int shift = 0; ; shift += 7) {
+        byte x = this.posBytes [p++];
+        v |= (x & 0x7F) << shift;
+        if (x >= 0) break;
+      }
+
+      loc += v;
+      positions [j] = loc;
+    }
+  }
+
+  private void writeDoc (int v) {
+    if (this.docBytesLength + 5 > this.docBytes.length)
+      this.docBytes = Arrays.copyOf (this.docBytes, this.docBytes.length * 2 + 5);
+
+    while ((v & ~0x7F) != 0) {
+      this.docBytes [this.docBytesLength++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    this.docBytes [this.docBytesLength++] = (byte) v;
+  }
+
+  private void writePos (int v) {
+    if (this.posBytesLength + 5 > this.posBytes.length)
+      this.posBytes = Arrays.copyOf (this.posBytes, this.posBytes.length * 2 + 5);
+
+    while ((v & ~0x7F) != 0) {
+      this.posBytes [this.posBytesLength++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    this.posBytes [this.posBytesLength++] = (byte) v;
+  }
 }
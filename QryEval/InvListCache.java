@@ -0,0 +1,174 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A cache of inverted lists that is shared by the queries that are
+ *  evaluated against an index, so that the inverted list of a term
+ *  that many queries use, e.g., a frequent term or a fielded term such
+ *  as apple.title, is copied from Lucene once rather than once per
+ *  query.  Lists are stored in InvList's compressed form and are
+ *  keyed by a string, e.g., the field and the term.
+ *  <p>
+ *  The cache is bounded by the number of bytes that its lists use.
+ *  When it is full, the least recently used lists are evicted.  A list
+ *  that is larger than the whole cache isn't cached.  A cache with a
+ *  bound of 0 is disabled; it never has lists and doesn't count
+ *  lookups.
+ *  </p><p>
+ *  The cache is safe for concurrent use.  An InvList doesn't change
+ *  after it is built, so several query operators, in one or several
+ *  threads, can iterate over a cached list at the same time, each
+ *  with its own Cursor.  Callers must not append postings to a list
+ *  after it is put in the cache.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private long maxBytes = 0;
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private final LinkedHashMap<String,InvList> lists =
+    new LinkedHashMap<String,InvList> (16, 0.75f, true);
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the cache key of a term's inverted list.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The key.
+   */
+  public static String getKey (String fieldName, String term) {
+    return fieldName + "\t" + term;
+  }
+
+  /**
+   *  Get a cached inverted list.
+   *  @param key The list's key.
+   *  @return The list, or null if it isn't cached.
+   */
+  public synchronized InvList get (String key) {
+    if (this.maxBytes == 0)
+      return null;
+
+    InvList list = this.lists.get (key);
+
+    if (list == null)
+      this.misses ++;
+    else
+      this.hits ++;
+
+    return list;
+  }
+
+  /**
+   *  Cache an inverted list, evicting the least recently used lists
+   *  if the cache is full.  The list's arrays are trimmed first.
+   *  @param key The list's key.
+   *  @param list The list, which must not change afterwards.
+   */
+  public synchronized void put (String key, InvList list) {
+    if (this.maxBytes == 0)
+      return;
+
+    list.trimToSize ();
+
+    long size = getSize (key, list);
+
+    if (size > this.maxBytes)
+      return;
+
+    InvList old = this.lists.put (key, list);
+
+    if (old != null)
+      this.bytes -= getSize (key, old);
+
+    this.bytes += size;
+    this.evict ();
+  }
+
+  /**
+   *  Set the number of bytes that the cache may use.  Lists are
+   *  evicted if the cache is over the new bound.
+   *  @param maxBytes The bound, or 0 to disable the cache.
+   */
+  public synchronized void setMaxBytes (long maxBytes) {
+    if (maxBytes < 0)
+      throw new IllegalArgumentException ("The cache size can't be negative.");
+
+    this.maxBytes = maxBytes;
+    this.evict ();
+  }
+
+  /**
+   *  Evict the least recently used lists until the cache is within its
+   *  bound.
+   */
+  private void evict () {
+    Iterator<Map.Entry<String,InvList>> it = this.lists.entrySet ().iterator ();
+
+    while ((this.bytes > this.maxBytes) && it.hasNext ()) {
+      Map.Entry<String,InvList> e = it.next ();
+
+      this.bytes -= getSize (e.getKey (), e.getValue ());
+      it.remove ();
+    }
+  }
+
+  /**
+   *  The number of bytes that a cached list uses, including its key.
+   */
+  private static long getSize (String key, InvList list) {
+    return list.sizeInBytes () + 2L * key.length () + 64;
+  }
+
+  /**
+   *  Get the number of bytes that the cached lists use.
+   *  @return The number of bytes.
+   */
+  public synchronized long getBytes () {
+    return this.bytes;
+  }
+
+  /**
+   *  Get the number of lookups that found a list.
+   *  @return The number of hits.
+   */
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  Get the number of lookups that didn't find a list.
+   *  @return The number of misses.
+   */
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Get the fraction of lookups that found a list.
+   *  @return The hit ratio, or 0 if there were no lookups.
+   */
+  public synchronized double getHitRatio () {
+    long lookups = this.hits + this.misses;
+
+    return (lookups == 0) ? 0.0 : (double) this.hits / lookups;
+  }
+
+  /**
+   *  Get a string version of the cache's counters.
+   *  @return The string version of the cache.
+   */
+  public synchronized String toString () {
+    return this.hits + " hits, " + this.misses + " misses (" +
+      (int) (100 * this.getHitRatio ()) + "% hits), " +
+      this.lists.size () + " lists, " + this.bytes + " of " +
+      this.maxBytes + " bytes";
+  }
+}
@@ -91,6 +91,12 @@ public abstract class Qry {
    */
   private String displayName = new String ("Unnamed");
 
+  /**
+   *  The index that the query is evaluated against.  It is set when the
+   *  query operator is initialized.
+   */
+  protected IndexHandle index = null;
+
   /**
    *  docIteratorHasMatch caches the matching docid so that
    *  docIteratorGetMatch and getScore don't have to recompute it.
@@ -359,7 +365,7 @@ public abstract class Qry {
    *  Set the matching docid cache.
    *  @param docid The internal document id to store in the cache.
    */
-  private void docIteratorSetMatchCache (int docid) {
+  protected void docIteratorSetMatchCache (int docid) {
     this.docIteratorMatchCache = docid;
   }
 
@@ -382,14 +388,27 @@ public abstract class Qry {
     return this.displayName;
   }
 
+  /**
+   *  Initialize the query operator (and its arguments), including any
+   *  internal iterators; this method must be called before iteration
+   *  can begin.  The query is evaluated against the current index.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize(RetrievalModel r) throws IOException {
+    this.initialize (r, Idx.getCurrentIndex ());
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public abstract void initialize(RetrievalModel r, IndexHandle index)
+    throws IOException;
 
   /**
    *  Removes an argument from the list of query operator arguments.
@@ -6,6 +6,7 @@
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 /**
  * This software illustrates the architecture for the portion of a search engine
@@ -24,6 +25,11 @@ public class QryEval {
 
     private static Map<String, String> parameters = null;
 
+    /**
+     * Cached query results, or null if resultCacheSize isn't set.
+     */
+    private static QryResultCache resultCache = null;
+
     // --------------- Methods ---------------------------------------
 
     /**
@@ -54,8 +60,38 @@ public class QryEval {
 
         // Open the index and initialize the retrieval model.
 
-        Idx.open(parameters.get("indexPath")); // Open a Lucene index and the
-                                               // associated DocLengthStore.
+        // Open a Lucene index and the associated DocLengthStore. The
+        // docLengths parameter (lucene, heap, or mmap) controls how
+        // document lengths are stored.
+
+        DocLengthStore.Mode docLengthMode = DocLengthStore.Mode.LUCENE;
+        if (parameters.containsKey("docLengths")) {
+            docLengthMode = DocLengthStore.Mode.valueOf(parameters.get("docLengths").toUpperCase());
+        }
+        Idx.open(parameters.get("indexPath"), docLengthMode);
+
+        // Cache the results of up to resultCacheSize queries, so that
+        // repeated queries aren't evaluated again.
+
+        if (parameters.containsKey("resultCacheSize") && Integer.parseInt(parameters.get("resultCacheSize")) > 0) {
+            resultCache = new QryResultCache(Integer.parseInt(parameters.get("resultCacheSize")));
+        }
+
+        // Cache the inverted lists of terms, up to postingCacheBytes
+        // bytes, so that terms that many queries share are copied from
+        // Lucene once.
+
+        if (parameters.containsKey("postingCacheBytes")) {
+            Idx.getCurrentIndex().getPostingCache().setMaxBytes(Long.parseLong(parameters.get("postingCacheBytes")));
+        }
+
+        // Cache the inverted lists that #NEAR, #WINDOW and #SYN derive,
+        // up to derivedCacheBytes bytes, so that a phrase that many
+        // queries share is matched once.
+
+        if (parameters.containsKey("derivedCacheBytes")) {
+            Idx.getCurrentIndex().getDerivedCache().setMaxBytes(Long.parseLong(parameters.get("derivedCacheBytes")));
+        }
 
         // System.out.println("docid
         // "+Idx.getInternalDocid("clueweb09-en0010-06-08067"));
@@ -67,6 +103,15 @@ public class QryEval {
             processQueryFile(parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"), model);
         }
         timer.stop();
+        if (resultCache != null) {
+            System.out.println(resultCache);
+        }
+        if (parameters.containsKey("postingCacheBytes")) {
+            System.out.println("Posting cache:  " + Idx.getCurrentIndex().getPostingCache());
+        }
+        if (parameters.containsKey("derivedCacheBytes")) {
+            System.out.println("Derived cache:  " + Idx.getCurrentIndex().getDerivedCache());
+        }
         System.out.println("Time:  " + timer);
     }
 
@@ -95,7 +140,7 @@ public class QryEval {
         // get expanded term
         for (int i = 0; i < docNum; i++) {
             int doc_id = score_list.getDocid(i);
-            TermVector vec = new TermVector(doc_id, "body");
+            TermVector vec = TermVector.get(Idx.getCurrentIndex(), doc_id, "body");
             // termVecMap.put(doc_id, vec);
             // p(I/d)
             double docScore = score_list.getDocidScore(i);
@@ -156,7 +201,6 @@ public class QryEval {
                 if (doc_list.contains(doc_id))
                     continue;
                 // if docid is not in inverted list
-                TermVector vec = new TermVector(doc_id, "body");
                 double docScore = score_list.getDocidScore(i);
                 double docLen = Idx.getFieldLength("body", doc_id);
                 long tf = 0;
@@ -278,28 +322,70 @@ public class QryEval {
             fVec.setPageRank(((RetrievalModelLetor) model).pageRankFile);
             fVec.setRel(((RetrievalModelLetor) model).trainingQrelsFile);
             fVec.getFeatures((RetrievalModelLetor) model, 0);
-            trainSVM((RetrievalModelLetor) model);
+            if (((RetrievalModelLetor) model).svmRankInProcess) {
+                ((RetrievalModelLetor) model).ranker = RankSvm.train(fVec.getQueries(),
+                        ((RetrievalModelLetor) model).svmRankParamC);
+            } else {
+                trainSVM((RetrievalModelLetor) model);
+            }
             System.out.println("SVM training completed");
 
             // initialize test feature vector file
             RetrievalModel bm25Model = new RetrievalModelBM25(((RetrievalModelLetor) model).k_1,
                     ((RetrievalModelLetor) model).b, ((RetrievalModelLetor) model).k_3);
+            initializeEvaluationOptions(bm25Model);
             Map<Integer, Map<String, Integer>> relMap = processQueryFile(parameters.get("queryFilePath"), bm25Model);
             fVec.setRel(relMap);
             Map<Integer, List<String>> docList = fVec.getFeatures((RetrievalModelLetor) model, 1);
 
-            testSVM((RetrievalModelLetor) model);
+            ArrayDeque<Double> svmScores;
+            if (((RetrievalModelLetor) model).svmRankInProcess) {
+                svmScores = new ArrayDeque<Double>();
+                for (RankSvm.Query q : fVec.getQueries()) {
+                    for (double[] x : q.features) {
+                        svmScores.add(((RetrievalModelLetor) model).ranker.score(x));
+                    }
+                }
+            } else {
+                testSVM((RetrievalModelLetor) model);
+                svmScores = (ArrayDeque<Double>) readScores(((RetrievalModelLetor) model).testingDocumentScores);
+            }
             System.out.println("SVM test completed");
 
-            getLetorScore(((RetrievalModelLetor) model).testingDocumentScores, parameters.get("trecEvalOutputPath"),
-                    model, docList);
+            getLetorScore(svmScores, parameters.get("trecEvalOutputPath"), model, docList);
         } else {
             throw new IllegalArgumentException("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
         }
 
+        initializeEvaluationOptions(model);
         return model;
     }
 
+    /**
+     * Set the optional parameters that control how queries are evaluated,
+     * for example streamingTerms=true.
+     * 
+     * @param model
+     *            The retrieval model to configure.
+     */
+    private static void initializeEvaluationOptions(RetrievalModel model) {
+        if (parameters.containsKey("streamingTerms")) {
+            model.streamingTerms = parameters.get("streamingTerms").toLowerCase().equals("true");
+        }
+        if (parameters.containsKey("impactOrdered")) {
+            model.impactOrdered = parameters.get("impactOrdered").toLowerCase().equals("true");
+        }
+        if (parameters.containsKey("impactOrdered:maxPostings")) {
+            model.impactOrderedMaxPostings = Long.parseLong(parameters.get("impactOrdered:maxPostings"));
+        }
+        if (parameters.containsKey("indriBlockScoring")) {
+            model.indriBlockScoring = parameters.get("indriBlockScoring").toLowerCase().equals("true");
+        }
+        if (parameters.containsKey("compiledPlans")) {
+            model.compiledPlans = parameters.get("compiledPlans").toLowerCase().equals("true");
+        }
+    }
+
     public static void trainSVM(RetrievalModelLetor model) throws Exception {
         Process cmdProc = Runtime.getRuntime().exec(new String[] { model.svmRankLearnPath, "-c",
                 String.valueOf(model.svmRankParamC), model.trainingFeatureVectorsFile, model.svmRankModelFile });
@@ -360,9 +446,8 @@ public class QryEval {
         }
     }
 
-    static void getLetorScore(String testingDocumentScores, String trecEvalOutputPath, RetrievalModel model,
+    static void getLetorScore(ArrayDeque<Double> svmScores, String trecEvalOutputPath, RetrievalModel model,
             Map<Integer, List<String>> docList) throws Exception {
-        ArrayDeque<Double> svmScores = (ArrayDeque<Double>) readScores(testingDocumentScores);
         Iterator<Entry<Integer, List<String>>> iter = docList.entrySet().iterator();
         BufferedWriter output = new BufferedWriter(new FileWriter(trecEvalOutputPath));
 
@@ -419,29 +504,186 @@ public class QryEval {
      *             Error accessing the index
      */
     static ScoreList processQuery(String qString, RetrievalModel model) throws IOException {
+        return processQuery(qString, model, 0);
+    }
+
+    /**
+     * Process one query, keeping only the k best documents if k is
+     * positive. The top k are kept in a TopKCollector instead of adding
+     * every matching document to the ScoreList.
+     * 
+     * @param qString
+     *            A string that contains a query.
+     * @param model
+     *            The retrieval model determines how matching and scoring is
+     *            done.
+     * @param k
+     *            The number of documents to keep, or 0 to keep them all.
+     * @return Search results
+     * @throws IOException
+     *             Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, int k) throws IOException {
+        return processQuery(qString, model, k, Idx.getCurrentIndex());
+    }
+
+    /**
+     * Process one query against a specific index, keeping only the k best
+     * documents if k is positive.
+     * 
+     * @param qString
+     *            A string that contains a query.
+     * @param model
+     *            The retrieval model determines how matching and scoring is
+     *            done.
+     * @param k
+     *            The number of documents to keep, or 0 to keep them all.
+     * @param index
+     *            The index to search.
+     * @return Search results
+     * @throws IOException
+     *             Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, int k, IndexHandle index)
+            throws IOException {
 
-        QryParser.initiate();
         // System.out.println("qString " + qString);
         Qry q = QryParser.getQuery(qString); // get query tree
         // Show the query that is evaluated
-        System.out.println(q.args.size());
-        System.out.println("    --> " + q);
+        System.out.println(describeQuery(q));
+
+        return processQuery(q, model, k, index);
+    }
+
+    /**
+     * Describe a parsed query as processQuery shows it:  the number of
+     * arguments, and the query after it is rewritten.
+     * 
+     * @param q
+     *            The parsed query.
+     * @return The description.
+     */
+    private static String describeQuery(Qry q) {
+        return q.args.size() + "\n    --> " + q;
+    }
+
+    /**
+     * Process one parsed query against a specific index, keeping only the
+     * k best documents if k is positive. The query isn't shown.
+     * 
+     * @param q
+     *            The parsed query.
+     * @param model
+     *            The retrieval model determines how matching and scoring is
+     *            done.
+     * @param k
+     *            The number of documents to keep, or 0 to keep them all.
+     * @param index
+     *            The index to search.
+     * @return Search results
+     * @throws IOException
+     *             Error accessing the index
+     */
+    private static ScoreList processQuery(Qry q, RetrievalModel model, int k, IndexHandle index)
+            throws IOException {
 
         if (q != null) {
-            ScoreList r = new ScoreList();
+            if (resultCache == null) {
+                return evaluateQuery(q, model, k, index);
+            }
+            String key = QryResultCache.getKey(q, model, k, index);
+            ScoreList r = resultCache.get(key, index);
+            if (r == null) {
+                r = evaluateQuery(q, model, k, index);
+                resultCache.put(key, r);
+            }
+            return r;
+        } else
+            return null;
+    }
+
+    /**
+     * Evaluate a parsed query against an index, keeping only the k best
+     * documents if k is positive.
+     * 
+     * @param q
+     *            The optimized query.
+     * @param model
+     *            The retrieval model determines how matching and scoring is
+     *            done.
+     * @param k
+     *            The number of documents to keep, or 0 to keep them all.
+     * @param index
+     *            The index to search.
+     * @return Search results
+     * @throws IOException
+     *             Error accessing the index
+     */
+    private static ScoreList evaluateQuery(Qry q, RetrievalModel model, int k, IndexHandle index)
+            throws IOException {
+
+        if ((k > 0) && model.impactOrdered) {
+            ScoreList r = ImpactOrderedEvaluator.evaluate(q, model, k, index);
+            if (r != null) {
+                return r;
+            }
+        }
+        if (model.indriBlockScoring) {
+            ScoreList r = IndriBlockEvaluator.evaluate(q, model, k, index);
+            if (r != null) {
+                return r;
+            }
+        }
+        if (model.compiledPlans) {
+            QryPlan plan = QryPlan.compile(q, model, index);
+            if (plan != null) {
+                return plan.evaluate(k);
+            }
+        }
+        if (k > 0) {
+            TopKCollector topK = new TopKCollector(k, index);
             if (q.args.size() > 0) { // Ignore empty queries
-                q.initialize(model);
+                q.initialize(model, index);
                 while (q.docIteratorHasMatch(model)) {
                     int docid = q.docIteratorGetMatch();
                     double score = ((QrySop) q).getScore(model);
-                    if (score >= 0)
-                        r.add(docid, score);
+                    if (score >= 0) {
+                        topK.add(docid, score);
+                        ((QrySop) q).setScoreThreshold(topK.getThreshold());
+                    }
                     q.docIteratorAdvancePast(docid);
                 }
             }
-            return r;
-        } else
-            return null;
+            return topK.getScoreList();
+        }
+        ScoreList r = new ScoreList(index);
+        if (q.args.size() > 0) { // Ignore empty queries
+            q.initialize(model, index);
+            while (q.docIteratorHasMatch(model)) {
+                int docid = q.docIteratorGetMatch();
+                double score = ((QrySop) q).getScore(model);
+                if (score >= 0)
+                    r.add(docid, score);
+                q.docIteratorAdvancePast(docid);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Get the number of documents that processQuery should keep when the
+     * caller only uses the first n results. If topK=true, only n are kept;
+     * otherwise every matching document is kept.
+     * 
+     * @param n
+     *            The number of results that the caller uses.
+     * @return The k to pass to processQuery.
+     */
+    private static int resultDepth(int n) {
+        if (parameters.containsKey("topK") && parameters.get("topK").toLowerCase().equals("true")) {
+            return n;
+        }
+        return 0;
     }
 
     /**
@@ -482,20 +724,21 @@ public class QryEval {
 
                 String defaultOp = model.defaultQrySopName();
                 query = defaultOp + "(" + query + ")";
-                r = processQuery(query, model);
+                r = processQuery(query, model, resultDepth(100));
 
-                Map<String, Integer> topDocs = new HashMap<String, Integer>();
+                Map<String, Integer> topDocs = new LinkedHashMap<String, Integer>();
 
                 if (r != null) {
-                    r.sort();
+                    r.sort(100);
                     int result_range = 100;
                     if (r.size() < 100)
                         result_range = r.size();
                     if (r.size() < 1) {
                         System.out.println("\tNo results.");
                     } else {
+                        r.resolveExternalDocids(result_range);
                         for (int i = 0; i < result_range; i++) {
-                            topDocs.put(Idx.getExternalDocid(r.getDocid(i)), 0);
+                            topDocs.put(r.getExternalDocid(i), 0);
                         }
                     }
                 }
@@ -545,14 +788,21 @@ public class QryEval {
 
                 String defaultOp = model.defaultQrySopName();
                 query = defaultOp + "(" + query + ")";
-                r = processQuery(query, model);
+                if (limit) {
+                    r = processQuery(query, model,
+                            resultDepth(Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"))));
+                } else {
+                    r = processQuery(query, model);
+                }
 
                 if (r != null) {
-                    r.sort();
                     int result_range = 0;
                     if (limit) {
                         result_range = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
+                        r.sort(result_range);
                         r.truncate(result_range);
+                    } else {
+                        r.sort();
                     }
                     resMap.put(qid, r);
                     // printResults(qid, r, output,
@@ -679,6 +929,23 @@ public class QryEval {
             input = new BufferedReader(new FileReader(queryFilePath));
             output = new BufferedWriter(new FileWriter(trecEvalOutputPath));
 
+            // Plain queries can be evaluated concurrently.
+
+            int threads = 1;
+            if (parameters.containsKey("threads")) {
+                threads = Integer.parseInt(parameters.get("threads"));
+            }
+
+            if ((threads > 1) && (divModel == null)
+                    && !(parameters.containsKey("fb") && parameters.get("fb").equals("true"))) {
+                int result_range = 100;
+                if (parameters.containsKey("diversity:maxResultRankingLength")) {
+                    result_range = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
+                }
+                processQueryBatch(input, output, model, threads, result_range);
+                return;
+            }
+
             // Each pass of the loop processes one query.
 
             while ((qLine = input.readLine()) != null) {
@@ -697,13 +964,18 @@ public class QryEval {
 
                 ScoreList r = null;
 
+                int result_range = 100;
+                if (parameters.containsKey("diversity:maxResultRankingLength")) {
+                    result_range = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
+                }
+
                 // if not expand query
                 if (!(parameters.containsKey("fb") && parameters.get("fb").equals("true"))) {
                     // if not diversity ranking
                     if (divModel == null) {
                         String defaultOp = model.defaultQrySopName();
                         query = defaultOp + "(" + query + ")";
-                        r = processQuery(query, model);
+                        r = processQuery(query, model, resultDepth(result_range));
                     } else {
                         String diversityAlgorithm = parameters.get("diversity:algorithm").toLowerCase();
                         if (diversityAlgorithm.equals("xquad"))
@@ -724,8 +996,8 @@ public class QryEval {
                     }
                     // check if there's ranking file
                     if (!parameters.containsKey("fbInitialRankingFile")) {
-                        r = processQuery(query, model);
-                        r.sort();
+                        r = processQuery(query, model, resultDepth(Integer.parseInt(parameters.get("fbDocs"))));
+                        r.sort(Integer.parseInt(parameters.get("fbDocs")));
                     } else {
                         Map<Integer, ScoreList> score_list_map = readRankingFile(
                                 parameters.get("fbInitialRankingFile"));
@@ -741,14 +1013,10 @@ public class QryEval {
                     String newQuery = "#wand (" + String.valueOf(fbOrigWeight) + " " + query + " "
                             + String.valueOf(1 - fbOrigWeight) + " " + expandedQuery + " )";
                     // System.out.println(" new Query " + newQuery);
-                    r = processQuery(newQuery, model);
+                    r = processQuery(newQuery, model, resultDepth(result_range));
                 }
 
                 if (r != null) {
-                    int result_range = 100;
-                    if (parameters.containsKey("diversity:maxResultRankingLength")) {
-                        result_range = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
-                    }
                     printResults(qid, r, output, result_range);
                     System.out.println();
                 }
@@ -763,6 +1031,101 @@ public class QryEval {
         }
     }
 
+    /**
+     * Evaluate the queries in a query file on a pool of threads. The
+     * results are written in the same order as the queries in the file.
+     * Queries are parsed, and shown with their results, on the calling
+     * thread, so that the output of one query isn't mixed with another's.
+     * At most 2 * threads queries are in progress or waiting to be
+     * written, so memory use doesn't grow with the number of queries.
+     * 
+     * @param input
+     *            The query file.
+     * @param output
+     *            The trec_eval output file.
+     * @param model
+     *            The retrieval model, shared by all of the threads.
+     * @param threads
+     *            The number of threads.
+     * @param result_range
+     *            The number of results to write for each query.
+     * @throws Exception
+     *             Error accessing the index, or a query syntax error.
+     */
+    private static void processQueryBatch(BufferedReader input, BufferedWriter output, final RetrievalModel model,
+            int threads, final int result_range) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<String> qids = new ArrayDeque<String>();
+        ArrayDeque<String> shown = new ArrayDeque<String>();
+        ArrayDeque<Future<ScoreList>> results = new ArrayDeque<Future<ScoreList>>();
+
+        try {
+            String qLine = null;
+
+            while ((qLine = input.readLine()) != null) {
+                int d = qLine.indexOf(':');
+
+                if (d < 0) {
+                    throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+                }
+
+                final Qry q = QryParser.getQuery(model.defaultQrySopName() + "(" + qLine.substring(d + 1) + ")");
+
+                qids.add(qLine.substring(0, d));
+                shown.add("Query " + qLine + "\n" + describeQuery(q));
+                results.add(executor.submit(new Callable<ScoreList>() {
+                    public ScoreList call() throws Exception {
+                        ScoreList r = processQuery(q, model, resultDepth(result_range), Idx.getCurrentIndex());
+                        if (r != null) {
+                            r.sort(result_range);
+                            r.resolveExternalDocids(result_range);
+                        }
+                        return r;
+                    }
+                }));
+
+                if (results.size() >= 2 * threads) {
+                    printBatchResult(qids.poll(), shown.poll(), results.poll(), output, result_range);
+                }
+            }
+
+            while (!results.isEmpty()) {
+                printBatchResult(qids.poll(), shown.poll(), results.poll(), output, result_range);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for one query in a batch to finish, and print the query and its
+     * results.
+     */
+    private static void printBatchResult(String qid, String query, Future<ScoreList> result,
+            BufferedWriter output, int result_range) throws Exception {
+
+        System.out.println(query);
+
+        ScoreList r = null;
+
+        try {
+            r = result.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+
+        printMemoryUsage(false);
+
+        if (r != null) {
+            printResults(qid, r, output, result_range);
+            System.out.println();
+        }
+    }
+
     /**
      * Print the query results.
      *
@@ -781,19 +1144,20 @@ public class QryEval {
     static void printResults(String queryName, ScoreList result, BufferedWriter output, int result_range)
             throws IOException {
         System.out.println(queryName + ":  ");
-        result.sort();
+        result.sort(result_range);
         if (result.size() < result_range)
             result_range = result.size();
         if (result.size() < 1) {
             System.out.println("\tNo results.");
         } else {
+            result.resolveExternalDocids(result_range);
             for (int i = 0; i < result_range; i++) {
                 // System.out.println("\t" + i + ": " +
                 // Idx.getExternalDocid(result.getDocid(i)) + ", "
                 // + result.getDocidScore(i));
                 // format: QueryID Q0 DocID Rank Score RunID
                 String str = String.format("%s\t%s\t%s\t%d\t%s\t%s\n", queryName, "Q0",
-                        Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i), "runID");
+                        result.getExternalDocid(i), i + 1, result.getDocidScore(i), "runID");
                 System.out.print(str);
                 output.write(str);
             }
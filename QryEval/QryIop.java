@@ -54,14 +54,14 @@ public abstract class QryIop extends Qry {
   protected InvList invertedList = null;
 
   /**
-   *  The index of the document that the docIterator points to now.
+   *  The cursor that the docIterator uses to read the inverted list.
    */
-  private int docIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
+  private InvList.Cursor docIterator = null;
 
   /**
    *  The index of the location that the locIterator points to now.
    */
-  private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
+  protected int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
   /**
    *  Advance the query operator's internal iterator beyond the
@@ -70,11 +70,11 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    if (docid == Integer.MAX_VALUE)
+      this.docIteratorFinish ();
+    else
+      this.docIterator.advanceTo (docid + 1);
+
     this.locIteratorIndex = 0;
   }
 
@@ -85,20 +85,54 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIterator.advanceTo (docid);
     this.locIteratorIndex = 0;
   }
 
+  /**
+   *  Advance the docIterators of several query operators to the next
+   *  document that all of them match, e.g., the arguments of a
+   *  proximity operator.  Each operator leapfrogs to the largest docid
+   *  seen so far, until all of them agree; the docIterators gallop, so
+   *  long runs of docids are skipped cheaply.
+   *  @param iops The query operators.
+   *  @return The docid, or Qry.INVALID_DOCID if there isn't one.
+   */
+  protected static int alignDocids (QryIop[] iops) {
+
+    if (! iops [0].docIteratorHasMatch (null))
+      return Qry.INVALID_DOCID;
+
+    int docid = iops [0].docIteratorGetMatch ();
+    int aligned = 1;			// Operators known to match docid
+    int i = 0;
+
+    while (aligned < iops.length) {
+      i = (i + 1) % iops.length;
+      iops [i].docIteratorAdvanceTo (docid);
+
+      if (! iops [i].docIteratorHasMatch (null))
+        return Qry.INVALID_DOCID;
+
+      int docid_i = iops [i].docIteratorGetMatch ();
+
+      if (docid_i == docid) {
+        aligned ++;
+      } else {
+        docid = docid_i;
+        aligned = 1;
+      }
+    }
+
+    return docid;
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIterator.setIndex (this.invertedList.df);
   }
 
   /**
@@ -109,16 +143,41 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch () {
-    return this.invertedList.getDocid (this.docIteratorIndex);
+    return this.docIterator.getDocid ();
   }
 
   /**
    *  Return the postings for the document that the docIterator points to
    *  now, or throw an error if the docIterator doesn't point at a document.
+   *  The posting is a copy; docIteratorGetMatchTf and
+   *  docIteratorGetMatchPositions are cheaper.
    *  @return A document posting.
    */
   public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+    int tf = this.docIteratorGetMatchTf ();
+    return new InvList.DocPosting (
+      this.docIteratorGetMatch (),
+      Arrays.copyOf (this.docIteratorGetMatchPositions (), tf));
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf).
+   */
+  public int docIteratorGetMatchTf () {
+    return this.docIterator.getTf ();
+  }
+
+  /**
+   *  Return the positions of the document that the docIterator points
+   *  to now.  Only the first docIteratorGetMatchTf entries are valid.
+   *  The array is reused, so it is only valid until the docIterator
+   *  moves.
+   *  @return The locations of the current document, in ascending order.
+   */
+  public int[] docIteratorGetMatchPositions () {
+    return this.docIterator.getPositions ();
   }
 
   /**
@@ -127,7 +186,7 @@ public abstract class QryIop extends Qry {
    *  @return True if the query matches a document, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
-    return (this.docIteratorIndex < this.invertedList.df);
+    return this.docIterator.hasPosting ();
   }
 
   /**
@@ -136,7 +195,7 @@ public abstract class QryIop extends Qry {
    *  object's initialize method is called.
    *  @return The collection term frequency (ctf).
    */
-  public int getCtf () {
+  public long getCtf () {
     return this.invertedList.ctf;
   }
 
@@ -150,6 +209,16 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the largest term frequency in this query operator's inverted
+   *  list.  It is an error to call this method before the object's
+   *  initialize method is called.
+   *  @return The largest tf, or Integer.MAX_VALUE if it isn't known.
+   */
+  public int getMaxTf () {
+    return this.invertedList.maxTf;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -165,27 +234,70 @@ public abstract class QryIop extends Qry {
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Get a canonical signature of the inverted list that this operator
+   *  produces:  the operator and its distance, if any (e.g., #near/1),
+   *  the field, and the signatures of the arguments.  Operators that
+   *  have the same signature produce the same inverted list.
+   *  @return The signature.
+   */
+  public String getSignature () {
+    StringBuilder s = new StringBuilder ();
+
+    s.append (this.getDisplayName ().toLowerCase ());
+    s.append ('.').append (this.field).append ("(");
+
+    for (Qry q_i: this.args)
+      s.append (' ').append (((QryIop) q_i).getSignature ());
+
+    return s.append (" )").toString ();
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model (that is ignored)
+   *  @param index The index that the query is evaluated against
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexHandle index)
+    throws IOException {
+
+    this.index = index;
+
+    //  An operator that has arguments derives its inverted list from
+    //  theirs.  If another query derived the same list, reuse it
+    //  without initializing the arguments.
+
+    InvListCache cache = index.getDerivedCache ();
+    String key = (this.args.size () > 0) ? this.getSignature () : null;
+
+    if (key != null) {
+      this.invertedList = cache.get (key);
+
+      if (this.invertedList != null) {
+        this.docIterator = this.invertedList.cursor ();
+        this.locIteratorIndex = 0;
+        return;
+      }
+    }
 
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).initialize (r, index);
     }
 
     //  Evaluate the operator.
     
     this.evaluate ();
 
+    if (key != null)
+      cache.put (key, this.invertedList);
+
     //  Initialize the internal iterators.
 
-    this.docIteratorIndex = 0;
+    this.docIterator = this.invertedList.cursor ();
     this.locIteratorIndex = 0;
   }
   
@@ -203,11 +315,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.docIteratorGetMatchTf ();
+    int[] positions = this.docIteratorGetMatchPositions ();
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (positions [this.locIteratorIndex] <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -217,8 +329,7 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
-    this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+    this.locIteratorIndex = this.docIteratorGetMatchTf ();
   }
 
   /**
@@ -229,8 +340,7 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.docIteratorGetMatchPositions () [this.locIteratorIndex];
   }
 
   /**
@@ -239,8 +349,7 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
-    return (this.locIteratorIndex <
-            this.invertedList.getTf (this.docIteratorIndex));
+    return (this.locIteratorIndex < this.docIteratorGetMatchTf ());
   }
 
 }
@@ -5,125 +5,127 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The NEAR/n operator for all retrieval models.  A document matches
+ *  if its arguments occur in order, each one at most n positions after
+ *  the previous one.  A match is recorded at the position of the last
+ *  argument.
  */
 public class QryIopNear extends QryIop {
-int n;
-public QryIopNear(int n){
-        this.n=n;
-}
-
-public void initialize(RetrievalModel r) throws IOException {
-        super.initialize(r);
-        process(r);
-}
 
-
-public void process(RetrievalModel r) throws IOException {
-        QryIop q = (QryIop)this.args.get(0);
-        while (q.docIteratorHasMatch(r)) {
-                // get the doc that contains first argument
-                int doc_id = q.docIteratorGetMatch();
-                //System.out.println("doc_id "+doc_id);
-                q.docIteratorAdvanceTo(doc_id);
-                // get the positions of first argument in the matched doc
-                Vector<Integer> final_pos= q.docIteratorGetMatchPosting().positions;
-
-                for (int i=1; i<this.args.size(); i++) {
-                        // check the final matched position of last arument
-                        final_pos=recursive(i,doc_id,final_pos,r);
-                        if (final_pos.isEmpty()) break;
-                }
-
-                if (!final_pos.isEmpty()) {
-                        Collections.sort(final_pos);
-                        this.invertedList.appendPosting (doc_id, final_pos);
-                        //System.out.println("doc_id " + doc_id);
-
-                        //for (Integer i : final_pos) {
-                          //  System.out.println(i);
-                        //}
-
-                }
-                q.docIteratorAdvancePast(doc_id);
+  /**
+   *  The maximum distance from an argument to the next one.
+   */
+  private int n;
+
+  /**
+   *  Scratch buffers for the positions that match a prefix of the
+   *  arguments.  They are reused for every document.
+   */
+  private int[] matches = new int[16];
+  private int[] nextMatches = new int[16];
+
+  /**
+   *  @param n The maximum distance from an argument to the next one.
+   */
+  public QryIopNear (int n) {
+    this.n = n;
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+
+    //  Create an empty inverted list.  If there are no query arguments,
+    //  that's the final result.
+
+    this.invertedList = new InvList (this.getField());
+
+    if (args.size () == 0) {
+      return;
+    }
+
+    QryIop[] iops = new QryIop[this.args.size ()];
+
+    for (int i = 0; i < iops.length; i++)
+      iops [i] = (QryIop) this.args.get (i);
+
+    //  Each pass of the loop finds the next document that all of the
+    //  arguments match, and matches their positions in it.
+
+    while (true) {
+      int docid = alignDocids (iops);
+
+      if (docid == Qry.INVALID_DOCID)
+        break;				// An argument is depleted.  Done.
+
+      int tf = this.matchPositions (iops);
+
+      if (tf > 0)
+        this.invertedList.appendPosting (docid, this.matches, tf);
+
+      iops [0].docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Match the positions of the arguments in the document that they
+   *  all point to.  The positions of each argument are merged in one
+   *  pass with the matches of the arguments before it.  A match is
+   *  kept if the argument's next position is within n positions after
+   *  it; both positions are then consumed.  The matches are produced
+   *  in ascending order.
+   *  @param iops The arguments.
+   *  @return The number of matches, which are in the matches buffer.
+   */
+  private int matchPositions (QryIop[] iops) {
+    int[] left = iops [0].docIteratorGetMatchPositions ();
+    int count = iops [0].docIteratorGetMatchTf ();
+
+    if (iops.length == 1) {
+      this.matches = ensureCapacity (this.matches, count);
+      System.arraycopy (left, 0, this.matches, 0, count);
+      return count;
+    }
+
+    for (int i = 1; (i < iops.length) && (count > 0); i++) {
+      int[] right = iops [i].docIteratorGetMatchPositions ();
+      int tf = iops [i].docIteratorGetMatchTf ();
+      int[] out = ensureCapacity (this.nextMatches, Math.min (count, tf));
+      int l = 0;
+      int r = 0;
+      int m = 0;
+
+      while ((l < count) && (r < tf)) {
+        if (left [l] > right [r]) {
+          r ++;
+        } else if (right [r] - left [l] <= this.n) {
+          out [m++] = right [r];
+          l ++;
+          r ++;
+        } else {
+          l ++;
         }
-
-}
-
-
-/**
- *  Evaluate the query operator; the result is an internal inverted
- *  list that may be accessed via the internal iterators.
- *  @throws IOException Error accessing the Lucene index.
- */
-protected void evaluate () throws IOException {
-        //  Create an empty inverted list.  If there are no query arguments,
-        //  that's the final result.
-        this.invertedList = new InvList (this.getField());
-
-        if (args.size () < 2) {
-                return;
-        }
-}
-
-
-
-/**
- *  Returns all the matched positions of current argument
- *  @param i The current argument to process.
- *  @param doc_id The current doc to process.
- *  @param curr_pos The current final positions of last argument.
- *  @param r The retrieval model that determines how scores are calculated.
- *  @return The final matched positions of current argument.
- *  @throws IOException Error accessing the Lucene index.
- */
-private Vector<Integer> recursive(int i, int doc_id, Vector<Integer> curr_pos,RetrievalModel r) throws IOException {
-        Vector<Integer> final_pos = new Vector<Integer>();
-        Iterator<Integer> left_postings = curr_pos.iterator();
-        QryIop right=(QryIop)this.args.get(i);
-        right.docIteratorAdvanceTo(doc_id);
-        // check if current doc contains current argument
-        if (!right.docIteratorHasMatch(r) || right.docIteratorGetMatch() != doc_id)
-                return final_pos;
-        Iterator<Integer> right_postings = right.docIteratorGetMatchPosting().positions.iterator();
-        if (!(left_postings.hasNext()&&right_postings.hasNext())) {
-                return final_pos;
-        }
-        int left_loc=left_postings.next();
-        int right_loc=right_postings.next();
-        while (true) {
-                //System.out.println("i "+i+"Left: "+left_loc+"Right: "+right_loc);
-                //while (left_loc>right_loc) {
-                if (left_loc>right_loc) {
-                        //right_postings.remove();
-                        if (!right_postings.hasNext()) {
-                                return final_pos;
-                        }
-                        right_loc=right_postings.next();
-                        //System.out.println("i "+i+"Left: "+left_loc+"Right: "+right_loc);
-                }
-                // now left_loc<=right_loc
-                else if (right_loc-left_loc<=this.n) {// then go for the next argument
-                        final_pos.add(right_loc);
-                        //left_postings.remove();
-                        //right_postings.remove();
-                        if (!(left_postings.hasNext()&&right_postings.hasNext())) {
-                                return final_pos;
-                        }
-                        left_loc=left_postings.next();
-                        right_loc=right_postings.next();
-                        //  System.out.println("i "+i+"Left: "+left_loc+"Right: "+right_loc);
-                }
-
-                else { //right_loc-left_loc>this.n
-                        //left_postings.remove();
-                        if (!left_postings.hasNext()) {
-                                return final_pos;
-                        }
-                        left_loc=left_postings.next();
-                        //  System.out.println("i "+i+"Left: "+left_loc+"Right: "+right_loc);
-
-                }
-        }
-}
+      }
+
+      //  The output becomes the input of the next argument.
+
+      this.nextMatches = this.matches;
+      this.matches = out;
+      left = out;
+      count = m;
+    }
+
+    return count;
+  }
+
+  /**
+   *  Return an array that holds at least n values; a new array if a is
+   *  too small.
+   */
+  private static int[] ensureCapacity (int[] a, int n) {
+    return (a.length >= n) ? a : new int[Math.max (n, 2 * a.length)];
+  }
 }
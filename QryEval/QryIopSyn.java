@@ -9,6 +9,12 @@ import java.util.*;
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  Scratch buffer for the positions of the current document.  It is
+   *  reused for every document.
+   */
+  private int[] positions = new int[16];
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -18,56 +24,182 @@ public class QryIopSyn extends QryIop {
 
     //  Create an empty inverted list.  If there are no query arguments,
     //  that's the final result.
-    
+
     this.invertedList = new InvList (this.getField());
 
     if (args.size () == 0) {
       return;
     }
 
+    //  The arguments that have postings left are in a heap ordered by
+    //  their current docids.
+
+    int k = this.args.size ();
+    QryIop[] iops = new QryIop[k];
+    IntHeap docHeap = new IntHeap (k);
+
+    for (int i = 0; i < k; i++) {
+      iops [i] = (QryIop) this.args.get (i);
+
+      if (iops [i].docIteratorHasMatch (null))
+        docHeap.push (i, iops [i].docIteratorGetMatch ());
+    }
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
-    while (true) {
+    int[] group = new int[k];
+    IntHeap posHeap = new IntHeap (k);
+    int[][] groupPositions = new int[k][];
+    int[] groupTf = new int[k];
+    int[] groupIndex = new int[k];
+
+    while (docHeap.size () > 0) {
+
+      //  Remove the arguments that match the minimum docid.
+
+      int minDocid = docHeap.peekKey ();
+      int g = 0;
+
+      while ((docHeap.size () > 0) && (docHeap.peekKey () == minDocid))
+        group [g++] = docHeap.pop ();
+
+      //  Merge their positions.  A position that two arguments share,
+      //  e.g., in #SYN (apple apple), is kept once.
+
+      int tf = 0;
 
-      //  Find the minimum next document id.  If there is none, we're done.
+      if (g == 1) {
+        QryIop q = iops [group [0]];
 
-      int minDocid = Qry.INVALID_DOCID;
+        tf = q.docIteratorGetMatchTf ();
+        this.ensureCapacity (tf);
+        System.arraycopy (q.docIteratorGetMatchPositions (), 0,
+                          this.positions, 0, tf);
+      } else {
+        int total = 0;
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
-          }
+        for (int j = 0; j < g; j++) {
+          QryIop q = iops [group [j]];
+
+          groupPositions [j] = q.docIteratorGetMatchPositions ();
+          groupTf [j] = q.docIteratorGetMatchTf ();
+          groupIndex [j] = 0;
+          total += groupTf [j];
+          posHeap.push (j, groupPositions [j][0]);
         }
-      }
 
-      if (minDocid == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+        this.ensureCapacity (total);
+
+        while (posHeap.size () > 0) {
+          int pos = posHeap.peekKey ();
+          int j = posHeap.pop ();
+
+          if ((tf == 0) || (this.positions [tf - 1] != pos))
+            this.positions [tf++] = pos;
+
+          if (++groupIndex [j] < groupTf [j])
+            posHeap.push (j, groupPositions [j][groupIndex [j]]);
+        }
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      this.invertedList.appendPosting (minDocid, this.positions, tf);
+
+      //  Advance the arguments and return them to the heap.
+
+      for (int j = 0; j < g; j++) {
+        QryIop q = iops [group [j]];
+
+        q.docIteratorAdvancePast (minDocid);
+
+        if (q.docIteratorHasMatch (null))
+          docHeap.push (group [j], q.docIteratorGetMatch ());
+      }
     }
   }
 
+  /**
+   *  Make sure that the positions buffer can hold n positions.
+   */
+  private void ensureCapacity (int n) {
+    if (this.positions.length < n)
+      this.positions = new int[Math.max (n, 2 * this.positions.length)];
+  }
+
+  /**
+   *  A binary min-heap of small ints (e.g., argument indexes), each
+   *  with an int key (e.g., a docid or a position), in primitive
+   *  arrays.  Items with equal keys are ordered by item.
+   */
+  private static class IntHeap {
+
+    private int[] items;
+    private int[] keys;
+    private int size = 0;
+
+    private IntHeap (int capacity) {
+      this.items = new int[capacity];
+      this.keys = new int[capacity];
+    }
+
+    private int size () {
+      return this.size;
+    }
+
+    private int peekKey () {
+      return this.keys [0];
+    }
+
+    private void push (int item, int key) {
+      int h = this.size++;
+
+      while (h > 0) {
+        int parent = (h - 1) / 2;
+
+        if (! less (item, key, this.items [parent], this.keys [parent]))
+          break;
+
+        this.items [h] = this.items [parent];
+        this.keys [h] = this.keys [parent];
+        h = parent;
+      }
+
+      this.items [h] = item;
+      this.keys [h] = key;
+    }
+
+    private int pop () {
+      int top = this.items [0];
+      int item = this.items [--this.size];
+      int key = this.keys [this.size];
+      int h = 0;
+
+      while (true) {
+        int c = 2 * h + 1;
+
+        if (c >= this.size)
+          break;
+
+        if ((c + 1 < this.size) &&
+            less (this.items [c + 1], this.keys [c + 1],
+                  this.items [c], this.keys [c]))
+          c ++;
+
+        if (! less (this.items [c], this.keys [c], item, key))
+          break;
+
+        this.items [h] = this.items [c];
+        this.keys [h] = this.keys [c];
+        h = c;
+      }
+
+      this.items [h] = item;
+      this.keys [h] = key;
+      return top;
+    }
+
+    private static boolean less (int item_a, int key_a, int item_b, int key_b) {
+      return (key_a < key_b) || ((key_a == key_b) && (item_a < item_b));
+    }
+  }
 }
@@ -4,18 +4,40 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  When the retrieval model asks for streaming terms, the TERM operator
+ *  does not copy its inverted list into an InvList.  The docIterator
+ *  reads Lucene's posting list directly, so advancing to a document
+ *  uses Lucene's skip data, and positions are read only when a
+ *  locIterator or a caller asks for them.  df and ctf come from
+ *  Lucene's term statistics, or, if the index has deleted documents,
+ *  from a pass over the live postings, so that they agree with the
+ *  collection statistics.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  //  Streaming state.  postings is null unless the operator streams.
+
+  private DocsAndPositionsEnum postings = null;
+  private int streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+  private int streamDf = 0;
+  private long streamCtf = 0;
+  private int positionsDocid = Qry.INVALID_DOCID;
+  private int[] positions = new int[16];
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,13 +57,271 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.postings == null) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    if ((this.streamDocid <= docid) && (docid < Integer.MAX_VALUE))
+      this.streamAdvance (docid + 1);
+    else if (this.streamDocid <= docid)
+      this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.postings == null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    if (this.streamDocid < docid)
+      this.streamAdvance (docid);
+
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.postings == null)
+      super.docIteratorFinish ();
+    else
+      this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.postings == null)
+      return super.docIteratorGetMatch ();
+
+    return this.streamDocid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf).
+   */
+  public int docIteratorGetMatchTf () {
+    if (this.postings == null)
+      return super.docIteratorGetMatchTf ();
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the Lucene index.", ex);
+    }
+  }
+
+  /**
+   *  Return the positions of the document that the docIterator points
+   *  to now.  When streaming, positions are read from Lucene the first
+   *  time that they are requested for a document.
+   *  @return The locations of the current document, in ascending order.
+   */
+  public int[] docIteratorGetMatchPositions () {
+    if (this.postings == null)
+      return super.docIteratorGetMatchPositions ();
+
+    if (this.positionsDocid != this.streamDocid) {
+      try {
+        int tf = this.postings.freq ();
+
+        if (this.positions.length < tf)
+          this.positions = new int[Math.max (tf, this.positions.length * 2)];
+
+        for (int j = 0; j < tf; j++)
+          this.positions[j] = this.postings.nextPosition ();
+      } catch (IOException ex) {
+        throw new IllegalStateException ("Error reading the Lucene index.", ex);
+      }
+
+      this.positionsDocid = this.streamDocid;
+    }
+
+    return this.positions;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.postings == null)
+      return super.docIteratorHasMatch (r);
+
+    return (this.streamDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public long getCtf () {
+    if (this.postings == null)
+      return super.getCtf ();
+
+    return this.streamCtf;
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    if (this.postings == null)
+      return super.getDf ();
+
+    return this.streamDf;
+  }
+
+  /**
+   *  Get the largest term frequency in the inverted list.  It isn't
+   *  known when streaming.
+   *  @return The largest tf, or Integer.MAX_VALUE if it isn't known.
+   */
+  public int getMaxTf () {
+    if (this.postings == null)
+      return super.getMaxTf ();
+
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get the term string of this query operator.
+   *  @return The term.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    InvListCache cache = this.index.getPostingCache ();
+    String key = InvListCache.getKey (this.field, this.term);
+
+    this.invertedList = cache.get (key);
+
+    if (this.invertedList == null) {
+      this.invertedList = new InvList(this.index, this.term, this.field);
+      cache.put (key, this.invertedList);
+    }
+  }
+
+  /**
+   *  Initialize the query operator.  If the retrieval model asks for
+   *  streaming terms, open Lucene's posting list instead of copying it.
+   *  @param r A retrieval model that guides initialization
+   *  @param index The index that the query is evaluated against
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize(RetrievalModel r, IndexHandle index)
+    throws IOException {
+
+    if ((r == null) || (! r.streamingTerms)) {
+      this.postings = null;
+      super.initialize (r, index);
+      return;
+    }
+
+    this.index = index;
+    IndexReader reader = index.getIndexReader ();
+
+    BytesRef termBytes = new BytesRef(this.term);
+    Term t = new Term(this.field, termBytes);
+
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    if (liveDocs == null) {
+      this.streamDf = reader.docFreq(t);
+      this.streamCtf = reader.totalTermFreq(t);
+    } else {
+
+      //  Lucene's statistics count deleted documents, but the number of
+      //  documents in the collection statistics doesn't.
+
+      this.streamDf = 0;
+      this.streamCtf = 0;
+
+      DocsEnum docs =
+        MultiFields.getTermDocsEnum(reader, liveDocs, this.field, termBytes,
+                                    DocsEnum.FLAG_FREQS);
+
+      if (docs != null) {
+        while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          this.streamDf ++;
+          this.streamCtf += docs.freq();
+        }
+      }
+    }
+
+    this.positionsDocid = Qry.INVALID_DOCID;
+    this.locIteratorIndex = 0;
+
+    if (this.streamDf > 0) {
+      this.postings =
+        MultiFields.getTermPositionsEnum(reader, liveDocs,
+                                         this.field, termBytes);
+    }
+
+    if (this.postings == null) {
+
+      //  The term doesn't occur.  Iterate over an empty InvList.
+
+      super.initialize (r, index);
+      return;
+    }
+
+    this.streamDocid = this.postings.nextDoc ();
+  }
+
+  /**
+   *  Move the streaming iterator to the first document whose docid is
+   *  at least target.
+   */
+  private void streamAdvance (int target) {
+    try {
+      if (target == this.streamDocid + 1)
+        this.streamDocid = this.postings.nextDoc ();
+      else
+        this.streamDocid = this.postings.advance (target);
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the Lucene index.", ex);
+    }
+  }
+
+  /**
+   *  Get a canonical signature of this term's inverted list.
+   *  @return The signature.
+   */
+  public String getSignature () {
+    return (this.term + "." + this.field);
   }
 
   /**
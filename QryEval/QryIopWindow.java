@@ -4,20 +4,26 @@ import java.util.*;
 
 /**
  * Created by Jiati Le on 2/23/16. Andrew ID: jiati l
+ *
+ * The WINDOW/n operator for all retrieval models.  A document matches
+ * if all of the arguments occur, in any order, within a span of fewer
+ * than n positions.  A match is recorded at the largest position in
+ * the span, and the positions in a span aren't used by later matches.
  */
 public class QryIopWindow extends QryIop {
 
     private int n;
 
+    /**
+     * Scratch buffer for the matches in a document.  It is reused for
+     * every document.
+     */
+    private int[] matches = new int[16];
+
     public QryIopWindow(int n) {
         this.n = n;
     }
 
-    public void initialize(RetrievalModel r) throws IOException {
-        super.initialize(r);
-        process(r);
-    }
-
     /**
      * Evaluate the query operator; the result is an internal inverted list that
      * may be accessed via the internal iterators.
@@ -29,140 +35,197 @@ public class QryIopWindow extends QryIop {
         //  that's the final result.
         this.invertedList = new InvList(this.getField());
 
-        if (args.size() < 2) {
+        if (args.size() == 0) {
             return;
         }
-    }
 
-    public void process(RetrievalModel r) throws IOException {
-        // find the min, and let min move advance
-        boolean process_flag = true;
-        while (process_flag) {
-            //System.out.println("process_flag");
-            /**
-             * ---------------------------------------------------- check doc--------------------------------------
-             */
-            List<Integer> doc_id_list = new ArrayList<Integer>();
-            for (Qry qry : this.args) {
-                if (qry.docIteratorHasMatch(r)) {
-                    doc_id_list.add(qry.docIteratorGetMatch());
-                } else {
-                    process_flag = false;
-                    break;
-                }
-                //else
-            }
-            if (!process_flag) {
+        QryIop[] iops = new QryIop[this.args.size()];
+
+        for (int i = 0; i < iops.length; i++) {
+            iops[i] = (QryIop) this.args.get(i);
+        }
+
+        PositionHeap heap = new PositionHeap(iops.length);
+
+        //  Each pass of the loop finds the next document that all of the
+        //  arguments match, and matches their positions in it.
+        while (true) {
+            int docid = alignDocids(iops);
+
+            if (docid == Qry.INVALID_DOCID) {
                 break;
             }
-            //System.out.println("process_flag "+process_flag);
-            boolean doc_flag = false;
-            // if doesn't point to the same doc, move the doc with min index advance
-            while (!doc_flag) {
-                //System.out.println("not "+doc_flag);
-                int min_doc_id = Collections.min(doc_id_list);
-                // check whether point to the same doc;
-                doc_flag = true;
-                //System.out.println(doc_flag);
-                for (Qry qry : this.args) {
-                    if (qry.docIteratorHasMatch(r) && qry.docIteratorGetMatch() != min_doc_id) {
-                        doc_flag = false;
-                    }
-                    if (!qry.docIteratorHasMatch(r)) {
-                        process_flag = false;
-                        break;
-                    }
-                    //System.out.println("testing "+qry.docIteratorGetMatch()+"   "+min_doc_id);
-                }
-                //System.out.println(doc_flag);
-                if (doc_flag) {
-                    //    System.out.println("Ture ");
-                    break;
+
+            int tf = matchPositions(iops, heap);
+
+            if (tf > 0) {
+                this.invertedList.appendPosting(docid, this.matches, tf);
+            }
+
+            iops[0].docIteratorAdvancePast(docid);
+        }
+    }
+
+    /**
+     * Match the positions of the arguments in the document that they all
+     * point to.  The heap orders the arguments by their current positions,
+     * so the span of the current positions is from the heap's minimum to
+     * its maximum.  If the span is narrow enough, it is a match, and every
+     * argument moves to its next position; otherwise the argument with the
+     * smallest position moves.  Matches are produced in ascending order.
+     *
+     * @param iops The arguments.
+     * @param heap A heap with room for the arguments.
+     * @return The number of matches, which are in the matches buffer.
+     */
+    private int matchPositions(QryIop[] iops, PositionHeap heap) {
+        heap.reset(iops);
+
+        int m = 0;
+
+        while (true) {
+            if (heap.getMax() - heap.getMin() < this.n) {
+                if (m == this.matches.length) {
+                    this.matches = Arrays.copyOf(this.matches, 2 * m);
                 }
-                // if not, move the doc with min index advance
-                Qry qry = this.args.get(doc_id_list.indexOf(min_doc_id));
-                qry.docIteratorAdvancePast(min_doc_id);
-                if (qry.docIteratorHasMatch(r)) {
-                    doc_id_list.set(doc_id_list.indexOf(min_doc_id), qry.docIteratorGetMatch());
-                    //System.out.println("min_doc_id "+qry.docIteratorGetMatch());
-                } else {
-                    process_flag = false;
+
+                this.matches[m++] = heap.getMax();
+
+                if (!heap.advanceAll()) {
                     break;
                 }
+            } else if (!heap.advanceMin()) {
+                break;
             }
+        }
 
-            //System.out.println("process_flag 2 "+process_flag);
-            if (!process_flag) {
-                break;
+        return m;
+    }
+
+    /**
+     * An indexed min-heap of cursors over the positions of the arguments
+     * in one document, in primitive arrays.  Cursors are ordered by
+     * position, then by argument, so that ties move the first argument.
+     * The maximum position is tracked as cursors move, since positions
+     * only increase.
+     */
+    private static class PositionHeap {
+
+        private int[][] positions;      // Each argument's positions
+        private int[] tf;               // Each argument's number of positions
+        private int[] index;            // Each argument's current position index
+        private int[] pos;              // Each argument's current position
+        private int[] heap;             // Arguments, in heap order
+        private int max;
+
+        private PositionHeap(int size) {
+            this.positions = new int[size][];
+            this.tf = new int[size];
+            this.index = new int[size];
+            this.pos = new int[size];
+            this.heap = new int[size];
+        }
+
+        /**
+         * Point each cursor at its argument's first position in the
+         * document that the arguments point to.
+         */
+        private void reset(QryIop[] iops) {
+            this.max = Integer.MIN_VALUE;
+
+            for (int i = 0; i < iops.length; i++) {
+                this.positions[i] = iops[i].docIteratorGetMatchPositions();
+                this.tf[i] = iops[i].docIteratorGetMatchTf();
+                this.index[i] = 0;
+                this.pos[i] = this.positions[i][0];
+                this.max = Math.max(this.max, this.pos[i]);
+                this.heap[i] = i;
             }
 
-            // get current doc
-            int curr_doc_id = this.args.get(0).docIteratorGetMatch();
+            this.heapify();
+        }
 
-            //System.out.println("curr_doc_id "+curr_doc_id);
-            /**
-             * ---------------------------------------------------- check loc--------------------------------------
-             */
-            Vector<Integer> final_pos = new Vector<Integer>();
-            List<Integer> loc_list = new ArrayList<Integer>();
+        private int getMin() {
+            return this.pos[this.heap[0]];
+        }
 
-            for (Qry qry : this.args) {
-                if (((QryIop) qry).locIteratorHasMatch()) {
-                    loc_list.add(((QryIop) qry).locIteratorGetMatch());
-                }
+        private int getMax() {
+            return this.max;
+        }
+
+        /**
+         * Move the cursor with the smallest position to its next position.
+         *
+         * @return False if the cursor has no more positions.
+         */
+        private boolean advanceMin() {
+            if (!this.advance(this.heap[0])) {
+                return false;
             }
 
-            boolean loc_flag = true;
-            boolean continue_flag = true;
-            while (loc_flag && continue_flag) {
-                int max_loc = Collections.max(loc_list);
-                int min_loc = Collections.min(loc_list);
-                //System.out.println("max_loc "+max_loc+"min_loc "+min_loc+" n "+this.n);
-                if (max_loc - min_loc < this.n) {
-                    final_pos.add(max_loc);
-                    //System.out.println("match");
-                    loc_list = new ArrayList<Integer>();
-                    for (Qry qry : this.args) {
-                        ((QryIop) qry).locIteratorAdvance();
-                        if (!((QryIop) qry).locIteratorHasMatch()) {
-                            continue_flag = false;
-                            break;
-                        }
-                        loc_list.add(((QryIop) qry).locIteratorGetMatch());
-                    }
-                } else {
-                    Qry qry = this.args.get(loc_list.indexOf(min_loc));
-                    ((QryIop) qry).locIteratorAdvance();
-                    if (((QryIop) qry).locIteratorHasMatch()) {
-                        loc_list.set(loc_list.indexOf(min_loc), ((QryIop) qry).locIteratorGetMatch());
-                    } else {
-                        continue_flag = false;
-                        break;
-                    }
+            this.siftDown(0);
+            return true;
+        }
+
+        /**
+         * Move every cursor to its next position.
+         *
+         * @return False if a cursor has no more positions.
+         */
+        private boolean advanceAll() {
+            for (int i = 0; i < this.heap.length; i++) {
+                if (!this.advance(i)) {
+                    return false;
                 }
             }
 
-            if (!final_pos.isEmpty()) {
-                //System.out.println("not empty ");
-                this.invertedList.appendPosting(curr_doc_id, final_pos);
-                //System.out.println("doc_id "+curr_doc_id);
-                //for (Integer i:final_pos) {
-                //System.out.println(i);
-                //}
+            this.heapify();
+            return true;
+        }
+
+        private boolean advance(int i) {
+            if (++this.index[i] >= this.tf[i]) {
+                return false;
             }
 
-            //System.out.println("FInish loop");
-            for (Qry qry : this.args) {
-                if (qry.docIteratorHasMatch(r)) {
-                    qry.docIteratorAdvancePast(curr_doc_id);
-                } else {
-                    process_flag = false;
+            this.pos[i] = this.positions[i][this.index[i]];
+            this.max = Math.max(this.max, this.pos[i]);
+            return true;
+        }
+
+        private boolean less(int a, int b) {
+            return (this.pos[a] < this.pos[b]) || ((this.pos[a] == this.pos[b]) && (a < b));
+        }
+
+        private void heapify() {
+            for (int h = this.heap.length / 2 - 1; h >= 0; h--) {
+                this.siftDown(h);
+            }
+        }
+
+        private void siftDown(int h) {
+            int a = this.heap[h];
+
+            while (true) {
+                int c = 2 * h + 1;
+
+                if (c >= this.heap.length) {
+                    break;
+                }
+
+                if ((c + 1 < this.heap.length) && this.less(this.heap[c + 1], this.heap[c])) {
+                    c++;
+                }
+
+                if (!this.less(this.heap[c], a)) {
                     break;
                 }
+
+                this.heap[h] = this.heap[c];
+                h = c;
             }
-            //System.out.println("finish "+process_flag);
-        }
 
+            this.heap[h] = a;
+        }
     }
-
 }
@@ -35,7 +35,6 @@ import org.apache.lucene.util.Version;
  */
 public class QryParser {
 
-	static ArrayList<Double> weight_list = new ArrayList<Double>();
 	// --------------- Constants and variables ---------------------
 
 	private static final EnglishAnalyzerConfigurable ANALYZER = new EnglishAnalyzerConfigurable(Version.LUCENE_43);
@@ -69,10 +68,6 @@ public class QryParser {
 		return count;
 	}
 
-	public static void initiate() {
-		weight_list.clear();
-	}
-
 	/**
 	 * Create the desired query operator.
 	 *
@@ -184,7 +179,10 @@ public class QryParser {
 	 */
 	public static Qry getQuery(String queryString) throws IOException, IllegalArgumentException {
 
-		Qry q = parseString(queryString); // An exact parse
+		// The weights of weighted operators are collected in a list
+		// that belongs to this parse, so that several threads can parse
+		// queries at the same time.
+		Qry q = parseString(queryString, new ArrayList<Double>()); // An exact parse
 		q = optimizeQuery(q); // An optimized parse
 		return q;
 	}
@@ -265,13 +263,15 @@ public class QryParser {
 	 *
 	 * @param queryString
 	 *            The query string, in an Indri-style query language.
+	 * @param weight_list
+	 *            The weights parsed so far, shared by the recursive calls.
 	 * @return Qry The query tree for the parsed query.
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 * @throws IllegalArgumentException
 	 *             Query syntax error.
 	 */
-	private static Qry parseString(String queryString) throws IOException, IllegalArgumentException {
+	private static Qry parseString(String queryString, ArrayList<Double> weight_list) throws IOException, IllegalArgumentException {
 
 		// This simple parser is sensitive to parenthensis placement, so
 		// check for basic errors first.
@@ -320,7 +320,7 @@ public class QryParser {
 				// System.out.println("#");
 				p = popSubquery(queryString);
 				qargs = new Qry[1];
-				qargs[0] = parseString(p.getPopped());
+				qargs[0] = parseString(p.getPopped(), weight_list);
 				if (flag1) {
 					weight_list.add(weight);
 				}
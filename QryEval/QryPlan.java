@@ -0,0 +1,758 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A query tree that has been lowered into a flat plan of kernels that
+ *  score a block of candidate documents per call.  Evaluating a QrySop
+ *  tree document-at-a-time makes a chain of virtual calls per document
+ *  per operator, each of which checks the retrieval model and reads
+ *  its arguments' iterators.  A plan checks the model once, when it is
+ *  compiled, and stores the operators in postorder in primitive
+ *  arrays.  Each block of up to BLOCK_SIZE candidates is scored by
+ *  running one kernel per operator, a tight loop over the block, which
+ *  reads its arguments' rows of scores and match flags and writes its
+ *  own.
+ *  <p>
+ *  Candidates are the documents that some "driver" SCORE operators
+ *  match:  all of the SCORE operators below an operator that matches
+ *  any argument, e.g., #SUM or Indri's #AND, and those of the least
+ *  expensive argument of an operator that matches all of them, e.g.,
+ *  Boolean #AND.  The drivers' postings are read while the candidates
+ *  are gathered; the other SCORE operators skip to the candidates.
+ *  </p><p>
+ *  Each kernel computes its scores with the same expressions, in the
+ *  same order, as the operator's getScore and getDefaultScore methods,
+ *  so a plan gives the same scores as document-at-a-time evaluation.
+ *  Operators that a plan doesn't support, or that the retrieval model
+ *  doesn't support, aren't compiled, and the query is evaluated
+ *  document-at-a-time.  Plans don't use dynamic pruning.
+ *  </p>
+ */
+public class QryPlan {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of candidate documents in a block.
+   */
+  public static final int BLOCK_SIZE = InvList.BLOCK_SIZE;
+
+  //  Kernels.  SCORE operators are leaves; the rest combine their
+  //  arguments' rows.
+
+  private static final int SCORE_UNRANKED = 0;	// 1
+  private static final int SCORE_RANKED = 1;	// tf
+  private static final int SCORE_BM25 = 2;
+  private static final int SCORE_INDRI = 3;
+  private static final int ANY_UNRANKED = 4;	// #OR:  1
+  private static final int ALL_UNRANKED = 5;	// #AND:  1
+  private static final int OR_RANKED = 6;	// max
+  private static final int AND_RANKED = 7;	// min
+  private static final int SUM_BM25 = 8;
+  private static final int WAND_INDRI = 9;	// Also #AND, with weights of 1
+  private static final int WSUM_INDRI = 10;
+
+  private RetrievalModel model;
+  private IndexHandle index;
+  private DocLengthStore docLengths;
+
+  //  The operators, in postorder, so the root is last.  An operator's
+  //  arguments are args [firstArg [i]] ... args [firstArg [i+1] - 1].
+
+  private int numNodes;
+  private int[] kernel;
+  private int[] firstArg;
+  private int[] args;
+  private double[] argWeight;
+  private double[] sumWeight;
+
+  //  SCORE operators.  lenSlot indexes the block's rows of field lengths.
+
+  private QryIop[] iop;
+  private int[] lenSlot;
+  private double[] idf;
+  private double[] k_1;
+  private double[] b;
+  private double[] avg_len;
+  private double[] user_weight;
+  private double[] mu;
+  private double[] one_minus_lambda;
+  private double[] mu_mle;
+  private double[] lambda_mle;
+
+  //  The driver SCORE operators, the docids that their iterators point
+  //  to (Integer.MAX_VALUE when exhausted), and each operator's
+  //  postings in the current block, as candidate indexes and tfs.
+
+  private int[] drivers;
+  private int[] driverDocid;
+  private boolean[] isDriver;
+  private int[] numPostings;
+  private int[][] postingCandidate;
+  private int[][] postingTf;
+
+  //  Per-block rows, indexed by node or field slot, then candidate.
+
+  private int[] lenFieldOrd;
+  private int[][] len;
+  private int[][] tf;
+  private double[][] score;
+  private boolean[][] match;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Initialize a query and lower it into a plan, if it can be.  The
+   *  query must be a tree of SCORE, #AND, #OR, #SUM, #WAND and #WSUM
+   *  operators that the retrieval model supports, over inverted list
+   *  operators.
+   *  @param q The query, which is initialized.
+   *  @param r The retrieval model.
+   *  @param index The index to search.
+   *  @return The plan, or null if the query can't be lowered.  The
+   *  query is only initialized if it can be.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static QryPlan compile (Qry q, RetrievalModel r, IndexHandle index)
+    throws IOException {
+
+    if ((q.args.size () == 0) || (countNodes (q, r) < 0))
+      return null;
+
+    q.initialize (r, index);
+
+    QryPlan plan = new QryPlan (countNodes (q, r));
+
+    plan.model = r;
+    plan.index = index;
+    plan.docLengths = index.getDocLengthStore ();
+    plan.lower (q, 0);
+    plan.chooseDrivers ();
+
+    return plan;
+  }
+
+  /**
+   *  Count the operators in a query, or return -1 if the plan doesn't
+   *  support one of them.
+   */
+  private static int countNodes (Qry q, RetrievalModel r) {
+    if (getKernel (q, r) < 0)
+      return -1;
+
+    if (q instanceof QrySopScore)
+      return 1;
+
+    if ((q.args.size () == 0) ||
+	((q instanceof QryWSop) &&
+	 (((QryWSop) q).weight_list.size () != q.args.size ())))
+      return -1;
+
+    int n = 1;
+
+    for (Qry q_i : q.args) {
+      int n_i = countNodes (q_i, r);
+
+      if (n_i < 0)
+	return -1;
+
+      n += n_i;
+    }
+
+    return n;
+  }
+
+  /**
+   *  The kernel of a query operator, or -1 if it has none.
+   */
+  private static int getKernel (Qry q, RetrievalModel r) {
+    boolean unranked = r instanceof RetrievalModelUnrankedBoolean;
+    boolean ranked = r instanceof RetrievalModelRankedBoolean;
+    boolean bm25 = r instanceof RetrievalModelBM25;
+    boolean indri = r instanceof RetrievalModelIndri;
+
+    if (q instanceof QrySopScore) {
+      if (! (q.args.get (0) instanceof QryIop))
+	return -1;
+      return unranked ? SCORE_UNRANKED : ranked ? SCORE_RANKED :
+	bm25 ? SCORE_BM25 : indri ? SCORE_INDRI : -1;
+    } else if (q instanceof QrySopOr) {
+      return unranked ? ANY_UNRANKED : ranked ? OR_RANKED : -1;
+    } else if (q instanceof QrySopAnd) {
+      return unranked ? ALL_UNRANKED : ranked ? AND_RANKED :
+	indri ? WAND_INDRI : -1;
+    } else if (q instanceof QrySopSum) {
+      return bm25 ? SUM_BM25 : -1;
+    } else if (q instanceof QrySopWAnd) {
+      return indri ? WAND_INDRI : -1;
+    } else if (q instanceof QrySopWSum) {
+      return indri ? WSUM_INDRI : -1;
+    }
+
+    return -1;
+  }
+
+  private QryPlan (int numNodes) {
+    this.numNodes = 0;
+    this.kernel = new int[numNodes];
+    this.firstArg = new int[numNodes + 1];
+    this.args = new int[numNodes];
+    this.argWeight = new double[numNodes];
+    this.sumWeight = new double[numNodes];
+
+    this.iop = new QryIop[numNodes];
+    this.lenSlot = new int[numNodes];
+    this.idf = new double[numNodes];
+    this.k_1 = new double[numNodes];
+    this.b = new double[numNodes];
+    this.avg_len = new double[numNodes];
+    this.user_weight = new double[numNodes];
+    this.mu = new double[numNodes];
+    this.one_minus_lambda = new double[numNodes];
+    this.mu_mle = new double[numNodes];
+    this.lambda_mle = new double[numNodes];
+
+    this.isDriver = new boolean[numNodes];
+    this.numPostings = new int[numNodes];
+    this.postingCandidate = new int[numNodes][];
+    this.postingTf = new int[numNodes][];
+
+    this.tf = new int[numNodes][];
+    this.score = new double[numNodes][BLOCK_SIZE];
+    this.match = new boolean[numNodes][BLOCK_SIZE];
+    this.lenFieldOrd = new int[0];
+  }
+
+  /**
+   *  Lower a query operator and its arguments into the plan.
+   *  @param q The query operator.
+   *  @param nextArg The first free entry of the argument table.
+   *  @return The next free entry of the argument table.
+   */
+  private int lower (Qry q, int nextArg) {
+
+    //  Lower the arguments first, and remember where they went.
+
+    int[] argNodes = new int[q.args.size ()];
+
+    if (! (q instanceof QrySopScore)) {
+      for (int i = 0; i < argNodes.length; i++) {
+	nextArg = this.lower (q.args.get (i), nextArg);
+	argNodes [i] = this.numNodes - 1;
+      }
+    }
+
+    int node = this.numNodes ++;
+
+    this.kernel [node] = getKernel (q, this.model);
+    this.firstArg [node] = nextArg;
+
+    if (q instanceof QrySopScore) {
+      QrySopScore s = (QrySopScore) q;
+
+      this.iop [node] = (QryIop) q.args.get (0);
+      this.idf [node] = s.idf;
+      this.k_1 [node] = s.k_1;
+      this.b [node] = s.b;
+      this.avg_len [node] = s.avg_len;
+      this.user_weight [node] = s.user_weight;
+      this.mu [node] = s.mu;
+      this.one_minus_lambda [node] = s.one_minus_lambda;
+      this.mu_mle [node] = s.mu_mle;
+      this.lambda_mle [node] = s.lambda_mle;
+      this.tf [node] = new int[BLOCK_SIZE];
+      this.lenSlot [node] = -1;
+
+      if ((this.kernel [node] == SCORE_BM25) ||
+	  (this.kernel [node] == SCORE_INDRI))
+	this.lenSlot [node] = this.getLenSlot (s.fieldOrd);
+    } else {
+      double sum = 0;
+
+      for (int i = 0; i < argNodes.length; i++) {
+	double w = (q instanceof QryWSop) ?
+	  ((QryWSop) q).weight_list.get (i) : 1.0;
+
+	this.args [nextArg] = argNodes [i];
+	this.argWeight [nextArg] = w;
+	nextArg ++;
+	sum += w;
+      }
+
+      this.sumWeight [node] = sum;
+    }
+
+    this.firstArg [node + 1] = nextArg;
+    return nextArg;
+  }
+
+  /**
+   *  The row of field lengths for a field ordinal.
+   */
+  private int getLenSlot (int fieldOrd) {
+    for (int i = 0; i < this.lenFieldOrd.length; i++)
+      if (this.lenFieldOrd [i] == fieldOrd)
+	return i;
+
+    int n = this.lenFieldOrd.length;
+
+    this.lenFieldOrd = Arrays.copyOf (this.lenFieldOrd, n + 1);
+    this.lenFieldOrd [n] = fieldOrd;
+    return n;
+  }
+
+  /**
+   *  Choose the SCORE operators whose postings generate candidates.
+   */
+  private void chooseDrivers () {
+    this.addDrivers (this.numNodes - 1);
+
+    int n = 0;
+
+    for (int node = 0; node < this.numNodes; node++)
+      if (this.isDriver [node])
+	n ++;
+
+    this.drivers = new int[n];
+    this.driverDocid = new int[n];
+    this.len = new int[this.lenFieldOrd.length][BLOCK_SIZE];
+    n = 0;
+
+    for (int node = 0; node < this.numNodes; node++) {
+      if (this.isDriver [node]) {
+	this.drivers [n++] = node;
+	this.postingCandidate [node] = new int[BLOCK_SIZE];
+	this.postingTf [node] = new int[BLOCK_SIZE];
+      }
+    }
+  }
+
+  /**
+   *  Mark the drivers of a node:  the drivers of its cheapest argument
+   *  if it only matches documents that all of its arguments match, and
+   *  the drivers of all of its arguments otherwise.
+   */
+  private void addDrivers (int node) {
+    int k = this.kernel [node];
+
+    if (this.iop [node] != null) {
+      this.isDriver [node] = true;
+    } else if ((k == ALL_UNRANKED) || (k == AND_RANKED)) {
+      int best = -1;
+      long bestCost = Long.MAX_VALUE;
+
+      for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+	long cost = this.getCost (this.args [a]);
+
+	if (cost < bestCost) {
+	  best = this.args [a];
+	  bestCost = cost;
+	}
+      }
+
+      this.addDrivers (best);
+    } else {
+      for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++)
+	this.addDrivers (this.args [a]);
+    }
+  }
+
+  /**
+   *  An estimate of the number of candidates that a node's drivers
+   *  would generate.
+   */
+  private long getCost (int node) {
+    int k = this.kernel [node];
+
+    if (this.iop [node] != null)
+      return this.iop [node].getDf ();
+
+    long cost = ((k == ALL_UNRANKED) || (k == AND_RANKED)) ? Long.MAX_VALUE : 0;
+
+    for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+      long c = this.getCost (this.args [a]);
+
+      cost = ((k == ALL_UNRANKED) || (k == AND_RANKED)) ?
+	Math.min (cost, c) : cost + c;
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Evaluate the plan.
+   *  @param k The number of documents to return, or 0 to return all of
+   *  the documents that match.
+   *  @return The results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList evaluate (int k) throws IOException {
+
+    TopKCollector topK = (k > 0) ? new TopKCollector (k, this.index) : null;
+    ScoreList results = (k > 0) ? null : new ScoreList (this.index);
+    int[] candidates = new int[BLOCK_SIZE];
+    int root = this.numNodes - 1;
+
+    for (int d = 0; d < this.drivers.length; d++) {
+      QryIop q = this.iop [this.drivers [d]];
+
+      this.driverDocid [d] = q.docIteratorHasMatch (this.model) ?
+	q.docIteratorGetMatch () : Integer.MAX_VALUE;
+    }
+
+    while (true) {
+      int n = this.gather (candidates);
+
+      if (n == 0)
+	break;
+
+      this.scoreBlock (candidates, n);
+
+      double[] rootScore = this.score [root];
+      boolean[] rootMatch = this.match [root];
+
+      for (int j = 0; j < n; j++) {
+	if (rootMatch [j] && (rootScore [j] >= 0)) {
+	  if (topK != null)
+	    topK.add (candidates [j], rootScore [j]);
+	  else
+	    results.add (candidates [j], rootScore [j]);
+	}
+      }
+    }
+
+    return (topK != null) ? topK.getScoreList () : results;
+  }
+
+  /**
+   *  Gather the next block of candidates, in docid order, and the
+   *  drivers' postings for them.
+   *  @return The number of candidates.
+   */
+  private int gather (int[] candidates) {
+    int[] docids = this.driverDocid;
+    int n = 0;
+
+    for (int node : this.drivers)
+      this.numPostings [node] = 0;
+
+    while (n < BLOCK_SIZE) {
+      int docid = Integer.MAX_VALUE;
+
+      for (int d = 0; d < docids.length; d++)
+	docid = Math.min (docid, docids [d]);
+
+      if (docid == Integer.MAX_VALUE)
+	break;
+
+      for (int d = 0; d < docids.length; d++) {
+	if (docids [d] == docid) {
+	  int node = this.drivers [d];
+	  QryIop q = this.iop [node];
+	  int p = this.numPostings [node] ++;
+
+	  this.postingCandidate [node][p] = n;
+	  this.postingTf [node][p] = q.docIteratorGetMatchTf ();
+	  q.docIteratorAdvancePast (docid);
+	  docids [d] = q.docIteratorHasMatch (this.model) ?
+	    q.docIteratorGetMatch () : Integer.MAX_VALUE;
+	}
+      }
+
+      candidates [n++] = docid;
+    }
+
+    return n;
+  }
+
+  /**
+   *  Run each node's kernel on a block of candidates.
+   */
+  private void scoreBlock (int[] candidates, int n) {
+
+    for (int s = 0; s < this.len.length; s++) {
+      int[] l = this.len [s];
+      int fieldOrd = this.lenFieldOrd [s];
+
+      for (int j = 0; j < n; j++)
+	l [j] = this.docLengths.getDocLength (fieldOrd, candidates [j]);
+    }
+
+    for (int node = 0; node < this.numNodes; node++) {
+      switch (this.kernel [node]) {
+      case SCORE_UNRANKED:
+      case SCORE_RANKED:
+      case SCORE_BM25:
+      case SCORE_INDRI:
+	this.readPostings (node, candidates, n);
+	this.scoreTerm (node, n);
+	break;
+
+      case ANY_UNRANKED:
+      case ALL_UNRANKED:
+	this.scoreBoolean (node, n);
+	break;
+
+      case OR_RANKED:
+	this.scoreOrRanked (node, n);
+	break;
+
+      case AND_RANKED:
+	this.scoreAndRanked (node, n);
+	break;
+
+      case SUM_BM25:
+	this.scoreSum (node, n);
+	break;
+
+      case WAND_INDRI:
+	this.scoreWAnd (node, n);
+	break;
+
+      case WSUM_INDRI:
+	this.scoreWSum (node, n);
+	break;
+      }
+    }
+  }
+
+  /**
+   *  Set a SCORE operator's match flags and tfs for the block.  A
+   *  driver's postings were read when the block was gathered; other
+   *  operators skip to each candidate.
+   */
+  private void readPostings (int node, int[] candidates, int n) {
+    boolean[] m = this.match [node];
+    int[] t = this.tf [node];
+
+    Arrays.fill (m, 0, n, false);
+    Arrays.fill (t, 0, n, 0);
+
+    if (this.isDriver [node]) {
+      int[] c = this.postingCandidate [node];
+      int[] pt = this.postingTf [node];
+
+      for (int p = 0; p < this.numPostings [node]; p++) {
+	m [c [p]] = true;
+	t [c [p]] = pt [p];
+      }
+    } else {
+      QryIop q = this.iop [node];
+
+      for (int j = 0; j < n; j++) {
+	q.docIteratorAdvanceTo (candidates [j]);
+
+	if (! q.docIteratorHasMatch (this.model))
+	  break;
+
+	if (q.docIteratorGetMatch () == candidates [j]) {
+	  m [j] = true;
+	  t [j] = q.docIteratorGetMatchTf ();
+	}
+      }
+    }
+  }
+
+  /**
+   *  The SCORE kernels.  See QrySopScore.  Indri's default score is the
+   *  term score with a tf of 0.
+   */
+  private void scoreTerm (int node, int n) {
+    double[] s = this.score [node];
+    boolean[] m = this.match [node];
+    int[] t = this.tf [node];
+
+    switch (this.kernel [node]) {
+    case SCORE_UNRANKED:
+      for (int j = 0; j < n; j++)
+	s [j] = 1.0;
+      break;
+
+    case SCORE_RANKED:
+      for (int j = 0; j < n; j++)
+	s [j] = t [j];
+      break;
+
+    case SCORE_BM25: {
+      int[] l = this.len [this.lenSlot [node]];
+      double idf = this.idf [node];
+      double k_1 = this.k_1 [node];
+      double b = this.b [node];
+      double avg_len = this.avg_len [node];
+      double user_weight = this.user_weight [node];
+
+      for (int j = 0; j < n; j++) {
+	s [j] = 0;
+	if (m [j]) {
+	  double tf_weight =
+	    QrySopScore.tfWeightBM25 (t [j], l [j], k_1, b, avg_len);
+
+	  s [j] = idf * tf_weight * user_weight;
+	}
+      }
+      break;
+    }
+
+    case SCORE_INDRI: {
+      int[] l = this.len [this.lenSlot [node]];
+      double mu = this.mu [node];
+      double one_minus_lambda = this.one_minus_lambda [node];
+      double mu_mle = this.mu_mle [node];
+      double lambda_mle = this.lambda_mle [node];
+
+      for (int j = 0; j < n; j++) {
+	double doc_len = l [j];
+
+	s [j] = one_minus_lambda * (t [j] + mu_mle) / (doc_len + mu) + lambda_mle;
+      }
+      break;
+    }
+    }
+  }
+
+  /**
+   *  Unranked Boolean #OR and #AND:  every match scores 1.
+   */
+  private void scoreBoolean (int node, int n) {
+    boolean all = (this.kernel [node] == ALL_UNRANKED);
+    boolean[] m = this.match [node];
+    double[] s = this.score [node];
+
+    Arrays.fill (m, 0, n, all);
+
+    for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+      boolean[] m_a = this.match [this.args [a]];
+
+      for (int j = 0; j < n; j++)
+	m [j] = all ? (m [j] & m_a [j]) : (m [j] | m_a [j]);
+    }
+
+    Arrays.fill (s, 0, n, 1.0);
+  }
+
+  /**
+   *  Ranked Boolean #OR:  the largest score of the matching arguments.
+   */
+  private void scoreOrRanked (int node, int n) {
+    boolean[] m = this.match [node];
+    double[] s = this.score [node];
+
+    Arrays.fill (m, 0, n, false);
+    Arrays.fill (s, 0, n, 0);
+
+    for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+      boolean[] m_a = this.match [this.args [a]];
+      double[] s_a = this.score [this.args [a]];
+
+      for (int j = 0; j < n; j++) {
+	if (m_a [j]) {
+	  m [j] = true;
+	  if (s_a [j] > s [j])
+	    s [j] = s_a [j];
+	}
+      }
+    }
+  }
+
+  /**
+   *  Ranked Boolean #AND:  the smallest score of the arguments, if they
+   *  all match.
+   */
+  private void scoreAndRanked (int node, int n) {
+    boolean[] m = this.match [node];
+    double[] s = this.score [node];
+
+    Arrays.fill (m, 0, n, true);
+    Arrays.fill (s, 0, n, Double.MAX_VALUE);
+
+    for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+      boolean[] m_a = this.match [this.args [a]];
+      double[] s_a = this.score [this.args [a]];
+
+      for (int j = 0; j < n; j++) {
+	m [j] &= m_a [j];
+	if (s_a [j] < s [j])
+	  s [j] = s_a [j];
+      }
+    }
+  }
+
+  /**
+   *  BM25 #SUM:  the sum of the scores of the matching arguments.
+   */
+  private void scoreSum (int node, int n) {
+    boolean[] m = this.match [node];
+    double[] s = this.score [node];
+
+    Arrays.fill (m, 0, n, false);
+    Arrays.fill (s, 0, n, 0);
+
+    for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+      boolean[] m_a = this.match [this.args [a]];
+      double[] s_a = this.score [this.args [a]];
+
+      for (int j = 0; j < n; j++) {
+	if (m_a [j]) {
+	  m [j] = true;
+	  s [j] += s_a [j];
+	}
+      }
+    }
+  }
+
+  /**
+   *  Indri #AND and #WAND:  the weighted geometric mean of the
+   *  arguments' scores, which are default scores if they don't match,
+   *  computed in log space.
+   */
+  private void scoreWAnd (int node, int n) {
+    boolean[] m = this.match [node];
+    double[] s = this.score [node];
+
+    Arrays.fill (m, 0, n, false);
+    Arrays.fill (s, 0, n, 0.0);
+
+    for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+      boolean[] m_a = this.match [this.args [a]];
+      double[] s_a = this.score [this.args [a]];
+      double w = this.argWeight [a];
+
+      for (int j = 0; j < n; j++) {
+	m [j] |= m_a [j];
+	s [j] += w * Math.log (s_a [j]);
+      }
+    }
+
+    double sumWeight = this.sumWeight [node];
+
+    for (int j = 0; j < n; j++)
+      s [j] = Math.exp (s [j] / sumWeight);
+  }
+
+  /**
+   *  Indri #WSUM:  the weighted mean of the arguments' scores, which
+   *  are default scores if they don't match.
+   */
+  private void scoreWSum (int node, int n) {
+    boolean[] m = this.match [node];
+    double[] s = this.score [node];
+    double sumWeight = this.sumWeight [node];
+
+    Arrays.fill (m, 0, n, false);
+    Arrays.fill (s, 0, n, 0.0);
+
+    for (int a = this.firstArg [node]; a < this.firstArg [node + 1]; a++) {
+      boolean[] m_a = this.match [this.args [a]];
+      double[] s_a = this.score [this.args [a]];
+      double w = this.argWeight [a];
+
+      for (int j = 0; j < n; j++) {
+	m [j] |= m_a [j];
+	s [j] += s_a [j] * w / sumWeight;
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A bounded cache of query results, so that a query that is
+ *  evaluated again, e.g., an intent query that diversification
+ *  re-runs, is answered without evaluating it.  Results are keyed by
+ *  the string version of the optimized query tree, the retrieval model
+ *  and its parameters, the number of documents that were kept, and the
+ *  index.  Each entry stores the results' docids and scores in
+ *  primitive arrays; a hit returns a new ScoreList, so callers may sort
+ *  or truncate it.
+ *  <p>
+ *  The cache holds at most a fixed number of results, and evicts the
+ *  least recently used result when it is full.  It is safe for
+ *  concurrent use, and counts hits and misses.
+ *  </p>
+ */
+public class QryResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int capacity;
+  private final LinkedHashMap<String,Entry> entries;
+  private long hits = 0;
+  private long misses = 0;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The docids and scores of one result list, in ScoreList order.
+   */
+  private static class Entry {
+    private int[] docids;
+    private double[] scores;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param capacity The number of results to keep.
+   */
+  public QryResultCache (int capacity) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException ("The result cache size must be positive.");
+
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<String,Entry> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<String,Entry> eldest) {
+	return this.size () > QryResultCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   *  Get the cache key of a query.  Evaluation options that can change
+   *  the results, such as a limit on the postings that score-at-a-time
+   *  evaluation reads, are part of the key.
+   *  @param q The optimized query.
+   *  @param r The retrieval model.
+   *  @param k The number of documents that are kept, or 0 for all.
+   *  @param index The index that the query is evaluated against.
+   *  @return The key.
+   */
+  public static String getKey (Qry q, RetrievalModel r, int k,
+			       IndexHandle index) {
+    return index.getIndexPath () + "\t" + r +
+      "\t" + (r.impactOrdered ? r.impactOrderedMaxPostings : -1) +
+      "\t" + r.indriBlockScoring + "\t" + k +
+      "\t" + q.toString ().toLowerCase ();
+  }
+
+  /**
+   *  Get the cached results of a query.
+   *  @param key The query's key, from getKey.
+   *  @param index The index that the docids refer to.
+   *  @return A copy of the results, or null if they aren't cached.
+   */
+  public ScoreList get (String key, IndexHandle index) {
+    Entry e;
+
+    synchronized (this) {
+      e = this.entries.get (key);
+
+      if (e == null) {
+	this.misses ++;
+	return null;
+      }
+
+      this.hits ++;
+    }
+
+    ScoreList r = new ScoreList (index);
+
+    for (int i = 0; i < e.docids.length; i++)
+      r.add (e.docids [i], e.scores [i]);
+
+    return r;
+  }
+
+  /**
+   *  Cache the results of a query.
+   *  @param key The query's key, from getKey.
+   *  @param r The results, which are copied.
+   */
+  public void put (String key, ScoreList r) {
+    Entry e = new Entry ();
+
+    e.docids = new int[r.size ()];
+    e.scores = new double[r.size ()];
+
+    for (int i = 0; i < e.docids.length; i++) {
+      e.docids [i] = r.getDocid (i);
+      e.scores [i] = r.getDocidScore (i);
+    }
+
+    synchronized (this) {
+      this.entries.put (key, e);
+    }
+  }
+
+  /**
+   *  Get the number of lookups that found results.
+   *  @return The number of hits.
+   */
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  Get the number of lookups that didn't find results.
+   *  @return The number of misses.
+   */
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Get the number of cached results.
+   *  @return The number of results.
+   */
+  public synchronized int size () {
+    return this.entries.size ();
+  }
+
+  /**
+   *  Get a string version of the cache's counters.
+   *  @return The string version of the cache.
+   */
+  public synchronized String toString () {
+    long lookups = this.hits + this.misses;
+
+    return "Result cache:  " + this.hits + " hits, " + this.misses +
+      " misses (" +
+      ((lookups == 0) ? 0 : (100 * this.hits / lookups)) + "% hits), " +
+      this.entries.size () + " of " + this.capacity + " results cached";
+  }
+}
@@ -13,6 +13,35 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  The score that a document must reach to enter the top k results,
+   *  or negative infinity if every matching document is wanted.
+   */
+  private double scoreThreshold = Double.NEGATIVE_INFINITY;
+
+  /**
+   *  MaxScore pruning state:  argument indexes in ascending order of
+   *  their maximum scores, each argument's maximum score, and the
+   *  combined maximum score of the arguments up to and including each
+   *  one.  Computed the first time that pruning is used.
+   */
+  private int[] pruneOrder = null;
+  private double[] pruneArgBound;
+  private double[] pruneBound;
+
+  /**
+   *  True if the arguments can bound the scores of particular
+   *  documents more tightly than their maximum scores, which they can
+   *  when the index has an ImpactIndex.
+   */
+  private boolean pruneDocBounds;
+
+  /**
+   *  Scores that are combined in different orders may differ in the
+   *  last bits, so maximum scores are inflated by this factor.
+   */
+  private static final double PRUNE_SLACK = 1.0 + 1e-9;
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -25,17 +54,208 @@ public abstract class QrySop extends Qry {
 
     public abstract double getDefaultScore (RetrievalModel r, int doc_id)
       throws IOException;
+  /**
+   *  Get an upper bound on the score that this query operator can
+   *  give any document.  Operators that can't bound their scores
+   *  return positive infinity, which disables pruning.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The maximum score.
+   */
+  public double getMaxScore (RetrievalModel r) {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the score that this query operator can
+   *  give a particular document.  Operators that have per-block
+   *  bounds (see ImpactIndex) return the bound of the block that would
+   *  contain the document; others return getMaxScore (r).  The query
+   *  operator's iterators don't move.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal docid.
+   *  @return The maximum score of the document.
+   */
+  public double getMaxScore (RetrievalModel r, int docid) {
+    return this.getMaxScore (r);
+  }
+
+  /**
+   *  Tell the query operator the score that a document must reach to
+   *  enter the top k results.  Operators that support dynamic pruning
+   *  use it to skip documents that can't reach it.  A document whose
+   *  score equals the threshold is not skipped, because ties are
+   *  broken by external docid.
+   *  @param threshold The lowest score that can enter the top k.
+   */
+  public void setScoreThreshold (double threshold) {
+    this.scoreThreshold = threshold;
+  }
+
+  /**
+   *  An instantiation of docIteratorHasMatch that uses MaxScore
+   *  dynamic pruning for operators whose score is the sum (e.g., #SUM)
+   *  or the maximum (e.g., #OR) of their arguments' scores.  Arguments
+   *  are ordered by their maximum scores.  The low-scoring arguments
+   *  whose combined maximum is below the threshold are non-essential:
+   *  a document that only they match can't enter the top k, so
+   *  candidates come from the other arguments.  A candidate is
+   *  skipped if its best possible score is below the threshold.  Until
+   *  a threshold is set, this is docIteratorHasMatchMin.
+   *  @param r The retrieval model that determines what is a match
+   *  @param sum True if scores are summed, false if the maximum is used
+   *  @return True if the query matches, otherwise false.
+   */
+  protected boolean docIteratorHasMatchMaxScore (RetrievalModel r,
+						  boolean sum) {
+
+    if (this.scoreThreshold == Double.NEGATIVE_INFINITY)
+      return this.docIteratorHasMatchMin (r);
+
+    int n = this.args.size ();
+
+    if (this.pruneOrder == null)
+      this.initializePruning (r, sum);
+
+    //  Count the non-essential arguments.
+
+    int nonEssential = 0;
+
+    while ((nonEssential < n) &&
+	   (this.pruneBound [nonEssential] < this.scoreThreshold))
+      nonEssential ++;
+
+    double nonEssentialBound =
+      (nonEssential > 0) ? this.pruneBound [nonEssential - 1] : 0.0;
+
+    while (true) {
+
+      //  The candidate is the smallest docid of an essential argument.
+
+      int candidate = Qry.INVALID_DOCID;
+
+      for (int i = nonEssential; i < n; i++) {
+	Qry q_i = this.args.get (this.pruneOrder [i]);
+
+	if (q_i.docIteratorHasMatch (r)) {
+	  int docid = q_i.docIteratorGetMatch ();
+
+	  if ((candidate == Qry.INVALID_DOCID) || (docid < candidate))
+	    candidate = docid;
+	}
+      }
+
+      if (candidate == Qry.INVALID_DOCID)
+	return false;
+
+      //  The best score that the candidate can get.
+
+      double bound = nonEssentialBound;
+
+      if (this.pruneDocBounds) {
+	bound = 0.0;
+
+	for (int i = 0; i < nonEssential; i++)
+	  bound = this.pruneCombine (bound, this.pruneDocBound (r, i, candidate), sum);
+      }
+
+      for (int i = nonEssential; i < n; i++) {
+	Qry q_i = this.args.get (this.pruneOrder [i]);
+
+	if (q_i.docIteratorHasMatch (r) &&
+	    (q_i.docIteratorGetMatch () == candidate)) {
+	  double b_i = this.pruneDocBounds ?
+	    this.pruneDocBound (r, i, candidate) : this.pruneArgBound [i];
+
+	  bound = this.pruneCombine (bound, b_i, sum);
+	}
+      }
+
+      if (bound * PRUNE_SLACK < this.scoreThreshold) {
+	for (int i = nonEssential; i < n; i++)
+	  this.args.get (this.pruneOrder [i]).docIteratorAdvancePast (candidate);
+	continue;
+      }
+
+      //  Score the candidate.  The non-essential arguments skip to it.
+
+      for (int i = 0; i < nonEssential; i++)
+	this.args.get (this.pruneOrder [i]).docIteratorAdvanceTo (candidate);
+
+      this.docIteratorSetMatchCache (candidate);
+      return true;
+    }
+  }
+
+  /**
+   *  Combine the bound of an argument with the bound of the others.
+   */
+  private double pruneCombine (double bound, double argBound, boolean sum) {
+    return sum ? bound + argBound : Math.max (bound, argBound);
+  }
+
+  /**
+   *  The bound of the i'th argument, in pruning order, for a document.
+   */
+  private double pruneDocBound (RetrievalModel r, int i, int docid) {
+    QrySop q_i = (QrySop) this.args.get (this.pruneOrder [i]);
+
+    return Math.min (this.pruneArgBound [i],
+		     q_i.getMaxScore (r, docid) * PRUNE_SLACK);
+  }
+
+  /**
+   *  Order the arguments by their maximum scores.
+   */
+  private void initializePruning (RetrievalModel r, boolean sum) {
+
+    int n = this.args.size ();
+
+    this.pruneOrder = new int[n];
+    this.pruneArgBound = new double[n];
+    this.pruneBound = new double[n];
+    this.pruneDocBounds = (this.index != null) &&
+      (this.index.getImpactIndex () != null);
+
+    //  Queries have few arguments, so an insertion sort is fine.
+
+    for (int i = 0; i < n; i++) {
+      double bound = ((QrySop) this.args.get (i)).getMaxScore (r) * PRUNE_SLACK;
+      int j = i;
+
+      while ((j > 0) && (this.pruneArgBound [j - 1] > bound)) {
+	this.pruneOrder [j] = this.pruneOrder [j - 1];
+	this.pruneArgBound [j] = this.pruneArgBound [j - 1];
+	j --;
+      }
+
+      this.pruneOrder [j] = i;
+      this.pruneArgBound [j] = bound;
+    }
+
+    double combined = 0.0;
+
+    for (int i = 0; i < n; i++) {
+      combined = this.pruneCombine (combined, this.pruneArgBound [i], sum);
+      this.pruneBound [i] = combined * PRUNE_SLACK;
+    }
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexHandle index)
+    throws IOException {
+    this.index = index;
+    this.scoreThreshold = Double.NEGATIVE_INFINITY;
+    this.pruneOrder = null;
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (r, index);
     }
   }
 }
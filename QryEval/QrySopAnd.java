@@ -83,27 +83,42 @@ private double getScoreRankedBoolean (RetrievalModel r) throws IOException {
 }
 
 
+/**
+ *  Get the score of a document that none of the arguments match.  The
+ *  geometric mean of the arguments' default scores is computed as the
+ *  mean of their logs, which doesn't underflow for long queries.
+ *  @param r The retrieval model that determines how scores are calculated.
+ *  @param docid The internal docid.
+ *  @return The default score.
+ *  @throws IOException Error accessing the Lucene index
+ */
 public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-    double lambda = ((RetrievalModelIndri) r).lambda;
-    double mu = ((RetrievalModelIndri) r).mu;
-    double score = 1.0;
+    double logScore = 0.0;
     for (Qry qry : this.args) {
-        score *= ((QrySop)qry).getDefaultScore(r, docid);
+        logScore += Math.log(((QrySop)qry).getDefaultScore(r, docid));
     }
-    return Math.pow(score, 1.0 / this.args.size());
+    return Math.exp(logScore / this.args.size());
 }
 
 
+/**
+ *  getScore for the Indri retrieval model.  The geometric mean of the
+ *  arguments' scores is computed in log space, because the product of
+ *  many term probabilities underflows.
+ *  @param r The retrieval model that determines how scores are calculated.
+ *  @return The document score.
+ *  @throws IOException Error accessing the Lucene index
+ */
 public double getScoreIndri(RetrievalModel r) throws IOException {
-    double score = 1;
+    double logScore = 0.0;
     int docid = this.docIteratorGetMatch();
     for (Qry qry : this.args) {
         if (qry.docIteratorHasMatch(r) && qry.docIteratorGetMatch() == docid)
-            score *= ((QrySop) qry).getScore(r);
+            logScore += Math.log(((QrySop) qry).getScore(r));
         else
-            score *= ((QrySop) qry).getDefaultScore(r, docid);
+            logScore += Math.log(((QrySop) qry).getDefaultScore(r, docid));
     }
-    return Math.pow(score, 1.0 / this.args.size());
+    return Math.exp(logScore / this.args.size());
 }
 
 }
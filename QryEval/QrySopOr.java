@@ -15,7 +15,27 @@ public class QrySopOr extends QrySop {
  *  @return True if the query matches, otherwise false.
  */
 public boolean docIteratorHasMatch (RetrievalModel r) {
-        return this.docIteratorHasMatchMin (r);
+        return this.docIteratorHasMatchMaxScore (r, false);
+}
+
+/**
+ *  Get an upper bound on the score of any document:  the largest of
+ *  the arguments' upper bounds.
+ *  @param r The retrieval model that determines how scores are calculated.
+ *  @return The maximum score.
+ */
+public double getMaxScore (RetrievalModel r) {
+        if (r instanceof RetrievalModelUnrankedBoolean) {
+                return 1.0;
+        } else if (! (r instanceof RetrievalModelRankedBoolean)) {
+                return Double.POSITIVE_INFINITY;
+        }
+
+        double max = 0;
+        for (Qry qry:this.args) {
+                max = Math.max (max, ((QrySop) qry).getMaxScore (r));
+        }
+        return max;
 }
 
 /**
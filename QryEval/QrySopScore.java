@@ -12,12 +12,37 @@ import java.util.List;
  */
 public class QrySopScore extends QrySop {
 
-	// static long N = 0;
-
 	/**
 	 * Document-independent values that should be determined just once. Some
-	 * retrieval models have these, some don't.
+	 * retrieval models have these, some don't. They are computed by
+	 * initialize from the CollectionStats of the index, so scoring a
+	 * document is arithmetic on the document's tf and field length.
+	 * QryPlan copies them when it lowers the query.
+	 */
+	private String field;
+	private DocLengthStore docLengths;
+	int fieldOrd;
+
+	// BM25
+	double idf;
+	double k_1;
+	double b;
+	double avg_len;
+	double user_weight;
+
+	// Indri
+	double mu;
+	double one_minus_lambda;
+	double mu_mle;
+	double lambda_mle;
+
+	/**
+	 * Precomputed score bounds of the term, if the index has an
+	 * ImpactIndex that was built with the retrieval model's parameters,
+	 * and the block that the last bound lookup found.
 	 */
+	private ImpactIndex.TermImpacts impacts;
+	private int impactBlock;
 
 	/**
 	 * Indicates whether the query has a match.
@@ -56,6 +81,68 @@ public class QrySopScore extends QrySop {
 		}
 	}
 
+	/**
+	 * Get an upper bound on the score of any document. For BM25, the tf
+	 * weight grows with tf and shrinks with the document length, so it is
+	 * bounded by the list's largest tf in a document of length 0, or
+	 * more tightly by the term's ImpactIndex bound. For ranked Boolean,
+	 * the score is the tf.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @return The maximum score.
+	 */
+	@Override
+	public double getMaxScore(RetrievalModel r) {
+		Qry q = this.args.get(0);
+
+		if (r instanceof RetrievalModelUnrankedBoolean) {
+			return 1.0;
+		} else if (r instanceof RetrievalModelRankedBoolean) {
+			return ((QryIop) q).getMaxTf();
+		} else if (r instanceof RetrievalModelBM25) {
+			if (this.impacts != null) {
+				return this.idf * this.impacts.getMaxBM25() * this.user_weight;
+			}
+			int maxTf = ((QryIop) q).getMaxTf();
+			if (maxTf == 0) {
+				return 0;
+			}
+			double tf_weight = 1.0;
+			if (maxTf != Integer.MAX_VALUE) {
+				tf_weight = maxTf / (maxTf + this.k_1 * (1 - this.b));
+			}
+			return this.idf * tf_weight * this.user_weight;
+		} else if ((r instanceof RetrievalModelIndri) && (this.impacts != null)) {
+			return this.one_minus_lambda * this.impacts.getMaxIndri() + this.lambda_mle;
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Get an upper bound on the BM25 score of a particular document from
+	 * the ImpactIndex bound of the block that would contain it.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @param docid
+	 *            An internal docid.
+	 * @return The maximum score of the document.
+	 */
+	@Override
+	public double getMaxScore(RetrievalModel r, int docid) {
+		if ((this.impacts == null) || !(r instanceof RetrievalModelBM25)) {
+			return this.getMaxScore(r);
+		}
+
+		this.impactBlock = this.impacts.findBlock(docid, this.impactBlock);
+
+		if (this.impactBlock == this.impacts.getNumBlocks()) {
+			return 0;
+		}
+		return this.idf * this.impacts.getBlockBM25(this.impactBlock) * this.user_weight;
+	}
+
 	public void locAdvance() throws IOException {
 		Qry q = this.args.get(0);
 		if (q instanceof QryIop) {
@@ -83,79 +170,98 @@ public class QrySopScore extends QrySop {
 	public double getScoreRankedBoolean(RetrievalModel r) throws IOException {
 		Qry q = this.args.get(0);
 		if (q.docIteratorHasMatch(r))
-			return ((QryIop) q).docIteratorGetMatchPosting().tf;
+			return ((QryIop) q).docIteratorGetMatchTf();
 		return 0;
 	}
 
 	public double getScoreBM25(RetrievalModel r) throws IOException {
 		Qry q = this.args.get(0);
 		if (q.docIteratorHasMatch(r)) {
-			// get idf
-			long N = Idx.getNumDocs();
-			double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-			double df = ((QryIop) q).getDf();
+			double tf = ((QryIop) q).docIteratorGetMatchTf();
+			double doc_len = this.docLengths.getDocLength(this.fieldOrd, q.docIteratorGetMatch());
 
-			double idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
+			double tf_weight = tfWeightBM25(tf, doc_len, this.k_1, this.b, this.avg_len);
 
-			// get tf weight
-			double k_1 = ((RetrievalModelBM25) r).k_1;
-			double b = ((RetrievalModelBM25) r).b;
-			double k_3 = ((RetrievalModelBM25) r).k_3;
-
-			String field = ((QryIop) q).getField();
-			double doc_len = Idx.getFieldLength(field, q.docIteratorGetMatch());
-			double avg_len = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
-
-			double tf_weight = tf / (tf + k_1 * (1 - b + b * doc_len / avg_len));
-
-			// get user weight
-			double user_weight = (k_3 + 1) * 1 / (k_3 + 1);// qtf, term
-															// frequency in
-															// query.
-			// System.out.println("idf "+idf+"tf_wight "+tf_weight+ "user_weight
-			// "+user_weight+"final "+idf*tf_weight*user_weight);
-			return idf * tf_weight * user_weight;
+			return this.idf * tf_weight * this.user_weight;
 		}
 		return 0;
 	}
 
-	@Override
-	public double getDefaultScore(RetrievalModel r, int doc_id) throws IOException {
-		Qry q = this.args.get(0);
-		double lambda = ((RetrievalModelIndri) r).lambda;
-		double mu = ((RetrievalModelIndri) r).mu;
+	/**
+	 * The BM25 idf of a term, floored at 0.
+	 * 
+	 * @param N
+	 *            The number of documents in the corpus.
+	 * @param df
+	 *            The document frequency of the term.
+	 * @return The idf.
+	 */
+	static double idfBM25(long N, double df) {
+		// If df > N, e.g., if df counts deleted documents, the log's
+		// argument is negative, and Math.max doesn't floor a NaN.
+		if (N - df + 0.5 <= 0) {
+			return 0;
+		}
+		return Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
+	}
 
-		double ctf = ((QryIop) q).getCtf();
+	/**
+	 * The BM25 tf weight of a term in a document.
+	 * 
+	 * @param tf
+	 *            The term frequency.
+	 * @param doc_len
+	 *            The length of the field in the document.
+	 * @param k_1
+	 *            The BM25 k_1 parameter.
+	 * @param b
+	 *            The BM25 b parameter.
+	 * @param avg_len
+	 *            The average length of the field.
+	 * @return The tf weight.
+	 */
+	static double tfWeightBM25(double tf, double doc_len, double k_1, double b, double avg_len) {
+		return tf / (tf + k_1 * (1 - b + b * doc_len / avg_len));
+	}
 
-		String field = ((QryIop) q).getField();
-		double doc_len = Idx.getFieldLength(field, doc_id);
-		double collection_len = Idx.getSumOfFieldLengths(field);
+	/**
+	 * The Indri term probability of a term in a document, smoothed with
+	 * Dirichlet priors and then linearly. A tf of 0 gives the default
+	 * score.
+	 * 
+	 * @param tf
+	 *            The term frequency.
+	 * @param doc_len
+	 *            The length of the field in the document.
+	 * @param mu
+	 *            The Indri mu parameter.
+	 * @param one_minus_lambda
+	 *            1 - the Indri lambda parameter.
+	 * @param mu_mle
+	 *            mu times the term's collection probability.
+	 * @param lambda_mle
+	 *            lambda times the term's collection probability.
+	 * @return The term probability.
+	 */
+	static double scoreIndri(double tf, double doc_len, double mu, double one_minus_lambda, double mu_mle,
+			double lambda_mle) {
+		return one_minus_lambda * (tf + mu_mle) / (doc_len + mu) + lambda_mle;
+	}
 
-		// mle
-		double mle = ctf / collection_len;
+	@Override
+	public double getDefaultScore(RetrievalModel r, int doc_id) throws IOException {
+		double doc_len = this.docLengths.getDocLength(this.fieldOrd, doc_id);
 
-		return (1 - lambda) * (mu * mle) / (doc_len + mu) + lambda * mle;
+		return scoreIndri(0, doc_len, this.mu, this.one_minus_lambda, this.mu_mle, this.lambda_mle);
 	}
 
 	public double getScoreIndri(RetrievalModel r) throws IOException {
 		Qry q = this.args.get(0);
 		if (q.docIteratorHasMatch(r)) {
+			double tf = ((QryIop) q).docIteratorGetMatchTf();
+			double doc_len = this.docLengths.getDocLength(this.fieldOrd, q.docIteratorGetMatch());
 
-			double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-
-			double lambda = ((RetrievalModelIndri) r).lambda;
-			double mu = ((RetrievalModelIndri) r).mu;
-
-			double ctf = ((QryIop) q).getCtf();
-
-			String field = ((QryIop) q).getField();
-			double doc_len = Idx.getFieldLength(field, q.docIteratorGetMatch());
-			double collection_len = Idx.getSumOfFieldLengths(field);
-
-			// mle
-			double mle = ctf / collection_len;
-
-			return (1 - lambda) * (tf + mu * mle) / (doc_len + mu) + lambda * mle;
+			return scoreIndri(tf, doc_len, this.mu, this.one_minus_lambda, this.mu_mle, this.lambda_mle);
 		}
 		return 0;
 	}
@@ -168,14 +274,72 @@ public class QrySopScore extends QrySop {
 	 * 
 	 * @param r
 	 *            A retrieval model that guides initialization
+	 * @param index
+	 *            The index that the query is evaluated against
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 */
 	@Override
-	public void initialize(RetrievalModel r) throws IOException {
+	public void initialize(RetrievalModel r, IndexHandle index) throws IOException {
 
+		this.index = index;
+		this.impacts = null;
+		this.impactBlock = 0;
 		Qry q = this.args.get(0);
-		q.initialize(r);
+		q.initialize(r, index);
+
+		// Compute the document-independent parts of the score.
+
+		if (!(q instanceof QryIop)) {
+			return;
+		}
+
+		CollectionStats stats = index.getCollectionStats();
+		this.field = ((QryIop) q).getField();
+		this.docLengths = index.getDocLengthStore();
+		this.fieldOrd = this.docLengths.fieldOrdinal(this.field);
+
+		if (r instanceof RetrievalModelBM25) {
+			long N = stats.getNumDocs();
+			double df = ((QryIop) q).getDf();
+			double k_3 = ((RetrievalModelBM25) r).k_3;
+
+			this.idf = idfBM25(N, df);
+			this.k_1 = ((RetrievalModelBM25) r).k_1;
+			this.b = ((RetrievalModelBM25) r).b;
+			this.avg_len = stats.getAvgFieldLength(this.field);
+
+			// qtf, term frequency in query.
+			this.user_weight = (k_3 + 1) * 1 / (k_3 + 1);
+		} else if (r instanceof RetrievalModelIndri) {
+			double lambda = ((RetrievalModelIndri) r).lambda;
+			double ctf = ((QryIop) q).getCtf();
+			double mle = ctf / (double) stats.getSumOfFieldLengths(this.field);
+
+			this.mu = ((RetrievalModelIndri) r).mu;
+			this.one_minus_lambda = 1 - lambda;
+			this.mu_mle = this.mu * mle;
+			this.lambda_mle = lambda * mle;
+		}
+
+		// Use the precomputed score bounds of the term if they were built
+		// with this retrieval model's parameters.
+
+		ImpactIndex impactIndex = index.getImpactIndex();
+
+		if ((impactIndex != null) && (q instanceof QryIopTerm)) {
+			boolean sameParameters = false;
+
+			if (r instanceof RetrievalModelBM25) {
+				sameParameters = (this.k_1 == impactIndex.getK1()) && (this.b == impactIndex.getB());
+			} else if (r instanceof RetrievalModelIndri) {
+				sameParameters = (this.mu == impactIndex.getMu());
+			}
+
+			if (sameParameters) {
+				this.impacts = impactIndex.getTermImpacts(this.field, ((QryIopTerm) q).getTerm());
+			}
+		}
 	}
 
 	/**
@@ -184,16 +348,19 @@ public class QrySopScore extends QrySop {
 	 * @param docid
 	 * @param field
 	 * @param qTerms
+	 * @param termStats
+	 *            The df and ctf of the query terms.
 	 * @return
 	 * @throws IOException
 	 */
-	public double getScoreBM25(RetrievalModel r, int docid, String field, List<String> qTerms) throws IOException {
+	public double getScoreBM25(RetrievalModel r, int docid, String field, List<String> qTerms,
+			QueryTermStats termStats) throws IOException {
 		double score = 0;
-		double doc_len = Idx.getFieldLength(field, docid);
-		double avg_len = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
-		long N = Idx.getNumDocs();
-		TermVector vec = new TermVector(docid, field);
-		if (vec.positionsLength() == 0 || vec.stemsLength() == 0)
+		double doc_len = termStats.getIndex().getFieldLength(field, docid);
+		double avg_len = termStats.getCollectionStats().getAvgFieldLength(field);
+		long N = termStats.getCollectionStats().getNumDocs();
+		TermVector vec = TermVector.get(termStats.getIndex(), docid, field);
+		if (vec.stemsLength() == 0)
 			return Double.MIN_VALUE;
 		for (String stem : qTerms) {
 			// get idf
@@ -203,9 +370,9 @@ public class QrySopScore extends QrySop {
 				continue;
 			}
 			double tf = vec.stemFreq(i);
-			double df = vec.stemDf(i);
+			double df = termStats.getDf(field, stem);
 
-			double idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
+			double idf = idfBM25(N, df);
 
 			// get tf weight
 			double k_1 = ((RetrievalModelLetor) r).k_1;
@@ -229,20 +396,23 @@ public class QrySopScore extends QrySop {
 	 * @param docid
 	 * @param field
 	 * @param qTerms
+	 * @param termStats
+	 *            The df and ctf of the query terms.
 	 * @return
 	 * @throws IOException
 	 */
-	public double getScoreIndri(RetrievalModel r, int docid, String field, List<String> qTerms) throws IOException {
+	public double getScoreIndri(RetrievalModel r, int docid, String field, List<String> qTerms,
+			QueryTermStats termStats) throws IOException {
 		double score = 1;
-		double doc_len = Idx.getFieldLength(field, docid);
-		double collection_len = Idx.getSumOfFieldLengths(field);
-		TermVector vec = new TermVector(docid, field);
+		double doc_len = termStats.getIndex().getFieldLength(field, docid);
+		double collection_len = termStats.getCollectionStats().getSumOfFieldLengths(field);
+		TermVector vec = TermVector.get(termStats.getIndex(), docid, field);
 		boolean match = false;
-		if (vec.positionsLength() == 0 || vec.stemsLength() == 0)
+		if (vec.stemsLength() == 0)
 			return Double.MIN_VALUE;
 		for (String stem : qTerms) {
 			double tf = 0;
-			double ctf = Idx.getTotalTermFreq(field, stem);
+			double ctf = termStats.getCtf(field, stem);
 			int i = vec.indexOfStem(stem);
 			if (i != -1) {
 				match = true;
@@ -266,15 +436,18 @@ public class QrySopScore extends QrySop {
 	 * @param docid
 	 * @param field
 	 * @param qTerms
+	 * @param termStats
+	 *            The statistics of the query terms, and their index.
 	 * @return
 	 * @throws IOException
 	 */
-	public double getScoreOverlap(int docid, String field, List<String> qTerms) throws IOException {
+	public double getScoreOverlap(int docid, String field, List<String> qTerms, QueryTermStats termStats)
+			throws IOException {
 		if (qTerms.size() < 1)
 			return 0;
 		int count = 0;
-		TermVector vec = new TermVector(docid, field);
-		if (vec.positionsLength() == 0 || vec.stemsLength() == 0)
+		TermVector vec = TermVector.get(termStats.getIndex(), docid, field);
+		if (vec.stemsLength() == 0)
 			return Double.MIN_VALUE;
 		for (String stem : qTerms) {
 			int i = vec.indexOfStem(stem);
@@ -290,41 +463,109 @@ public class QrySopScore extends QrySop {
 	 * @param docid
 	 * @param field
 	 * @param qTerms
+	 * @param termStats
+	 *            The df and ctf of the query terms.
 	 * @return
 	 * @throws IOException
 	 */
-	public double getScoreTfidf(int docid, String field, List<String> qTerms) throws IOException {
+	public double getScoreTfidf(int docid, String field, List<String> qTerms, QueryTermStats termStats)
+			throws IOException {
 		double score = 0;
-		long N = Idx.getNumDocs();
-		TermVector vec = new TermVector(docid, field);
+		long N = termStats.getCollectionStats().getNumDocs();
+		TermVector vec = TermVector.get(termStats.getIndex(), docid, field);
 		for (String stem : qTerms) {
 			int i = vec.indexOfStem(stem);
 			if (i == -1)
 				continue;
 
 			int tf = vec.stemFreq(i);
-			int df = vec.stemDf(i);
+			int df = termStats.getDf(field, stem);
 
-			double idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
+			double idf = idfBM25(N, df);
 			score += tf * idf;
 		}
 
 		return score;
 	}
 
+	/**
+	 * Gets the BM25, Indri and term overlap scores of a query for one
+	 * field of a document, with one TermVector and one pass over the query
+	 * stems. The scores are the same as those of getScoreBM25,
+	 * getScoreIndri and getScoreOverlap.
+	 * 
+	 * @param r
+	 * @param docid
+	 * @param field
+	 * @param qTerms
+	 * @param termStats
+	 *            The df and ctf of the query terms.
+	 * @param scores
+	 *            Set to the BM25 score, the Indri score and the term overlap
+	 *            score, in that order.
+	 * @throws IOException
+	 */
+	public void getFieldScores(RetrievalModel r, int docid, String field, List<String> qTerms,
+			QueryTermStats termStats, double[] scores) throws IOException {
+		RetrievalModelLetor model = (RetrievalModelLetor) r;
+		double doc_len = termStats.getIndex().getFieldLength(field, docid);
+		double avg_len = termStats.getCollectionStats().getAvgFieldLength(field);
+		double collection_len = termStats.getCollectionStats().getSumOfFieldLengths(field);
+		long N = termStats.getCollectionStats().getNumDocs();
+		TermVector vec = TermVector.get(termStats.getIndex(), docid, field);
+
+		if (vec.stemsLength() == 0) {
+			scores[0] = Double.MIN_VALUE;
+			scores[1] = Double.MIN_VALUE;
+			scores[2] = (qTerms.size() < 1) ? 0 : Double.MIN_VALUE;
+			return;
+		}
+
+		double bm25 = 0;
+		double indri = 1;
+		int count = 0;
+
+		for (String stem : qTerms) {
+			int i = vec.indexOfStem(stem);
+			double tf = 0;
+
+			if (i != -1) {
+				tf = vec.stemFreq(i);
+				count++;
+
+				// BM25
+				double df = termStats.getDf(field, stem);
+				double idf = idfBM25(N, df);
+				double tf_weight = tf / (tf + model.k_1 * (1 - model.b + model.b * doc_len / avg_len));
+				double user_weight = (model.k_3 + 1) * 1 / (model.k_3 + 1);
+				bm25 += idf * tf_weight * user_weight;
+			}
+
+			// Indri
+			double mle = termStats.getCtf(field, stem) / collection_len;
+			indri *= (1 - model.lambda) * (tf + model.mu * mle) / (doc_len + model.mu) + model.lambda * mle;
+		}
+
+		scores[0] = bm25;
+		scores[1] = (count == 0) ? 0 : Math.pow(indri, 1.0 / qTerms.size());
+		scores[2] = (qTerms.size() < 1) ? 0 : count / (double) qTerms.size();
+	}
+
 	/**
 	 * Gets feature 18, total term frequency / filed length
 	 * 
 	 * @param docid
 	 * @param field
 	 * @param qTerms
+	 * @param termStats
+	 *            The statistics of the query terms, and their index.
 	 * @return
 	 * @throws IOException
 	 */
-	public double getScoreTotalTf(int docid, String field, List<String> qTerms) throws IOException {
+	public double getScoreTotalTf(int docid, String field, List<String> qTerms, QueryTermStats termStats)
+			throws IOException {
 		double totalTf = 0;
-		long N = Idx.getNumDocs();
-		TermVector vec = new TermVector(docid, field);
+		TermVector vec = TermVector.get(termStats.getIndex(), docid, field);
 		double fieldLength = vec.positionsLength();
 		for (String stem : qTerms) {
 			int i = vec.indexOfStem(stem);
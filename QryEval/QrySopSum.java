@@ -17,7 +17,46 @@ public class QrySopSum extends QrySop {
      * @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch(RetrievalModel r) {
-        return this.docIteratorHasMatchMin(r);
+        return this.docIteratorHasMatchMaxScore(r, true);
+    }
+
+    /**
+     * Get an upper bound on the score of any document: the sum of the
+     * arguments' upper bounds.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum score.
+     */
+    public double getMaxScore(RetrievalModel r) {
+        if (!(r instanceof RetrievalModelBM25)) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double max = 0;
+        for (Qry qry : this.args) {
+            max += ((QrySop) qry).getMaxScore(r);
+        }
+        return max;
+    }
+
+    /**
+     * Get an upper bound on the score of a particular document: the sum
+     * of the arguments' upper bounds for the document.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @param docid An internal docid.
+     * @return The maximum score of the document.
+     */
+    public double getMaxScore(RetrievalModel r, int docid) {
+        if (!(r instanceof RetrievalModelBM25)) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double max = 0;
+        for (Qry qry : this.args) {
+            max += ((QrySop) qry).getMaxScore(r, docid);
+        }
+        return max;
     }
 
     public double getScore(RetrievalModel r) throws IOException {
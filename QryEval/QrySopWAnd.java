@@ -21,16 +21,27 @@ public class QrySopWAnd extends QryWSop {
 		return this.docIteratorHasMatchMin(r);
 	}
 
+	/**
+	 * Get the score of a document that none of the arguments match: the
+	 * weighted geometric mean of the arguments' default scores, computed
+	 * as a weighted mean of their logs so that it doesn't underflow.
+	 *
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @param doc_id
+	 *            The internal docid.
+	 * @return The default score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
 	public double getDefaultScore(RetrievalModel r, int doc_id) throws IOException {
-		double mu = ((RetrievalModelIndri) r).mu;
-		double lambda = ((RetrievalModelIndri) r).lambda;
-		double score = 1.0;
+		double logScore = 0.0;
 		int weight_index = 0;
 		for (Qry qry : this.args) {
 			double weight = this.weight_list.get(weight_index++);
-			score *= Math.pow(((QrySop) qry).getDefaultScore(r, doc_id), weight / this.getSumWeight());
+			logScore += weight * Math.log(((QrySop) qry).getDefaultScore(r, doc_id));
 		}
-		return score;
+		return Math.exp(logScore / this.getSumWeight());
 	}
 
 	/**
@@ -47,18 +58,18 @@ public class QrySopWAnd extends QryWSop {
 		if (!(r instanceof RetrievalModelIndri)) {
 			throw new IllegalArgumentException(r.getClass().getName() + " doesn't support the WAND operator.");
 		}
-		double score = 1;
+		double logScore = 0.0;
 		int doc_id = this.docIteratorGetMatch();
 		int weight_index = 0;
 		for (Qry qry : this.args) {
 			double weight = (double) (this.weight_list.get(weight_index++));
 			if (qry.docIteratorHasMatch(r) && qry.docIteratorGetMatch() == doc_id)
-				score *= Math.pow(((QrySop) qry).getScore(r), weight / this.getSumWeight());
+				logScore += weight * Math.log(((QrySop) qry).getScore(r));
 			else
-				score *= Math.pow(((QrySop) qry).getDefaultScore(r, doc_id), weight / this.getSumWeight());
+				logScore += weight * Math.log(((QrySop) qry).getDefaultScore(r, doc_id));
 		}
 
-		return score;
+		return Math.exp(logScore / this.getSumWeight());
 	}
 
 }
@@ -32,6 +32,23 @@ public abstract class QryWSop extends QrySop {
   }
 
 
+  /**
+   *  Get a string version of this query operator, including the
+   *  weights, e.g., #WAND( 0.3 a.body 0.7 b.body ).
+   *  @return The string version of this query operator.
+   */
+  @Override public String toString () {
+    String result = new String ();
+
+    for (int i=0; i<this.args.size(); i++) {
+      if (i < this.weight_list.size ())
+        result += this.weight_list.get (i) + " ";
+      result += this.args.get (i) + " ";
+    }
+
+    return (this.getDisplayName () + "( " + result + ")");
+  }
+
   public double getSumWeight() {
       double sum = 0;
       for(Double d : weight_list) {
@@ -57,11 +74,14 @@ public abstract class QryWSop extends QrySop {
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexHandle index)
+    throws IOException {
+    this.index = index;
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (r, index);
     }
   }
 }
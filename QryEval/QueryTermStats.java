@@ -0,0 +1,87 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  The df and ctf of the terms of one query, looked up in the index
+ *  the first time that they are needed and remembered for the rest of
+ *  the query.  Feature extraction scores many documents for the same
+ *  query terms, so each term's statistics are read from Lucene once
+ *  per query instead of once per document.
+ *  <p>
+ *  A QueryTermStats object belongs to one query.  It is safe for
+ *  concurrent use by the threads that extract the query's features; a
+ *  term that two threads look up at the same time may be read from
+ *  Lucene twice.
+ *  </p>
+ */
+public class QueryTermStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  private IndexHandle index;
+  private Map<String,long[]> stats = new ConcurrentHashMap<String,long[]> ();	// {df, ctf}
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param index The index that the query is evaluated against.
+   */
+  public QueryTermStats (IndexHandle index) {
+    this.index = index;
+  }
+
+  /**
+   *  Get the collection statistics of the index.
+   *  @return The collection statistics.
+   */
+  public CollectionStats getCollectionStats () {
+    return this.index.getCollectionStats ();
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrences.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getCtf (String fieldName, String term) throws IOException {
+    return this.lookup (fieldName, term) [1];
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDf (String fieldName, String term) throws IOException {
+    return (int) this.lookup (fieldName, term) [0];
+  }
+
+  /**
+   *  Get the index.
+   *  @return The index that the query is evaluated against.
+   */
+  public IndexHandle getIndex () {
+    return this.index;
+  }
+
+  private long[] lookup (String fieldName, String term) throws IOException {
+    String key = term + "." + fieldName;
+    long[] s = this.stats.get (key);
+
+    if (s == null) {
+      s = new long[] { this.index.getDocFreq (fieldName, term),
+		       this.index.getTotalTermFreq (fieldName, term) };
+      this.stats.put (key, s);
+    }
+
+    return s;
+  }
+}
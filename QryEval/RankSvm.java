@@ -0,0 +1,252 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A linear pairwise ranker that is trained and applied in the JVM,
+ *  in place of the svm_rank_learn and svm_rank_classify programs.  It
+ *  reads feature vectors from primitive arrays, so learning to rank
+ *  doesn't have to write feature vectors to files, run another
+ *  process, and read scores back.
+ *  <p>
+ *  Training solves the RankSVM problem:  minimize 0.5 |w|^2 + C' *
+ *  sum (max (0, 1 - w . (x_i - x_j))) over the pairs of documents of a
+ *  query in which document i is more relevant than document j.  As in
+ *  svm_rank, C' = C / n, where n is the number of training queries, so
+ *  a value of C means the same thing to both.  The problem is solved by
+ *  dual coordinate descent, i.e., by updating the weight of one pair
+ *  at a time in closed form, which needs no quadratic programming
+ *  solver.  Pairs are visited in a random order with a fixed seed, so
+ *  training is deterministic.  The solver is different from svm_rank's,
+ *  so the weights aren't identical to svm_rank's, although both
+ *  approximate the same optimum.
+ *  </p>
+ */
+public class RankSvm {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The maximum number of passes over the pairs.
+   */
+  private static final int MAX_ITERATIONS = 1000;
+
+  /**
+   *  Training stops when the projected gradients of a pass span less
+   *  than this.
+   */
+  private static final double EPSILON = 0.01;
+
+  private double[] w;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The feature vectors of one query's documents.
+   */
+  public static class Query {
+
+    /**
+     *  The query id.
+     */
+    public int qid;
+
+    /**
+     *  The external ids of the documents.
+     */
+    public List<String> docs;
+
+    /**
+     *  The feature vector of each document.
+     */
+    public double[][] features;
+
+    /**
+     *  The relevance of each document.  It is only used for training.
+     */
+    public int[] labels;
+
+    /**
+     *  @param qid The query id.
+     *  @param docs The external ids of the documents.
+     *  @param features The feature vector of each document.
+     *  @param labels The relevance of each document.
+     */
+    public Query (int qid, List<String> docs, double[][] features,
+		  int[] labels) {
+      this.qid = qid;
+      this.docs = docs;
+      this.features = features;
+      this.labels = labels;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param w The weight of each feature.
+   */
+  public RankSvm (double[] w) {
+    this.w = w;
+  }
+
+  /**
+   *  Train a ranker.
+   *  @param queries The training queries.  The feature vectors of all
+   *  documents must have the same length.
+   *  @param c The trade-off between training error and margin, as in
+   *  svm_rank's -c option.
+   *  @return The ranker.
+   */
+  public static RankSvm train (List<Query> queries, double c) {
+
+    if (c <= 0)
+      throw new IllegalArgumentException ("The SVM C parameter must be positive.");
+
+    //  The pairs are the documents of a query whose labels differ.
+    //  pairQuery, pairHi and pairLo are indexes of a query, its more
+    //  relevant document, and its less relevant document.
+
+    int dims = 0;
+    int numPairs = 0;
+
+    for (Query q : queries) {
+      for (int i = 0; i < q.labels.length; i++) {
+	dims = Math.max (dims, q.features [i].length);
+
+	for (int j = 0; j < q.labels.length; j++)
+	  if (q.labels [i] > q.labels [j])
+	    numPairs ++;
+      }
+    }
+
+    int[] pairQuery = new int[numPairs];
+    int[] pairHi = new int[numPairs];
+    int[] pairLo = new int[numPairs];
+    int p = 0;
+
+    for (int qi = 0; qi < queries.size (); qi++) {
+      Query q = queries.get (qi);
+
+      for (int i = 0; i < q.labels.length; i++) {
+	for (int j = 0; j < q.labels.length; j++) {
+	  if (q.labels [i] > q.labels [j]) {
+	    pairQuery [p] = qi;
+	    pairHi [p] = i;
+	    pairLo [p] = j;
+	    p ++;
+	  }
+	}
+      }
+    }
+
+    //  Dual coordinate descent.  alpha [p] is the dual variable of pair
+    //  p, and w = sum (alpha [p] * (x_hi - x_lo)).
+
+    double upper = c / Math.max (queries.size (), 1);
+    double[] w = new double[dims];
+    double[] alpha = new double[numPairs];
+    double[] sqNorm = new double[numPairs];
+    int[] order = new int[numPairs];
+    Random random = new Random (0);
+
+    for (p = 0; p < numPairs; p++) {
+      Query q = queries.get (pairQuery [p]);
+      double[] hi = q.features [pairHi [p]];
+      double[] lo = q.features [pairLo [p]];
+
+      for (int k = 0; k < dims; k++) {
+	double z = get (hi, k) - get (lo, k);
+	sqNorm [p] += z * z;
+      }
+
+      order [p] = p;
+    }
+
+    for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+      double maxPG = Double.NEGATIVE_INFINITY;
+      double minPG = Double.POSITIVE_INFINITY;
+
+      //  Visit the pairs in a new random order.
+
+      for (int i = numPairs - 1; i > 0; i--) {
+	int j = random.nextInt (i + 1);
+	int t = order [i];
+	order [i] = order [j];
+	order [j] = t;
+      }
+
+      for (int i = 0; i < numPairs; i++) {
+	p = order [i];
+
+	if (sqNorm [p] == 0)
+	  continue;			// Identical vectors can't be ordered
+
+	Query q = queries.get (pairQuery [p]);
+	double[] hi = q.features [pairHi [p]];
+	double[] lo = q.features [pairLo [p]];
+	double g = -1;			// Gradient:  w . z - 1
+
+	for (int k = 0; k < dims; k++)
+	  g += w [k] * (get (hi, k) - get (lo, k));
+
+	double pg = g;			// Projected gradient
+
+	if (alpha [p] == 0)
+	  pg = Math.min (g, 0);
+	else if (alpha [p] == upper)
+	  pg = Math.max (g, 0);
+
+	maxPG = Math.max (maxPG, pg);
+	minPG = Math.min (minPG, pg);
+
+	if (pg != 0) {
+	  double old = alpha [p];
+
+	  alpha [p] = Math.min (Math.max (old - g / sqNorm [p], 0), upper);
+
+	  double d = alpha [p] - old;
+
+	  for (int k = 0; k < dims; k++)
+	    w [k] += d * (get (hi, k) - get (lo, k));
+	}
+      }
+
+      if (maxPG - minPG < EPSILON)
+	break;
+    }
+
+    return new RankSvm (w);
+  }
+
+  /**
+   *  A feature of a vector, or 0 if the vector is too short to have it.
+   */
+  private static double get (double[] x, int k) {
+    return (k < x.length) ? x [k] : 0;
+  }
+
+  /**
+   *  Score a feature vector.
+   *  @param x A feature vector.
+   *  @return The score:  the dot product of x and the weights.
+   */
+  public double score (double[] x) {
+    double s = 0;
+    int n = Math.min (x.length, this.w.length);
+
+    for (int k = 0; k < n; k++)
+      s += this.w [k] * x [k];
+
+    return s;
+  }
+
+  /**
+   *  Get the weight of each feature.
+   *  @return A copy of the weights.
+   */
+  public double[] getWeights () {
+    return this.w.clone ();
+  }
+}
@@ -10,6 +10,38 @@
  */
 public abstract class RetrievalModel {
 
+  /**
+   *  If true, TERM operators iterate over Lucene's posting lists
+   *  directly instead of copying them into InvLists.
+   */
+  boolean streamingTerms = false;
+
+  /**
+   *  If true, flat BM25 queries whose terms are in one field are
+   *  evaluated score-at-a-time from the index's ImpactOrderedIndex,
+   *  when only the top k documents are wanted.
+   */
+  boolean impactOrdered = false;
+
+  /**
+   *  The number of postings that score-at-a-time evaluation reads per
+   *  query before it stops with approximate results, or 0 for no
+   *  limit.
+   */
+  long impactOrderedMaxPostings = 0;
+
+  /**
+   *  If true, flat Indri #AND and #WAND queries are scored a block of
+   *  documents at a time, in log space, by IndriBlockEvaluator.
+   */
+  boolean indriBlockScoring = false;
+
+  /**
+   *  If true, queries are lowered into a QryPlan that scores blocks of
+   *  documents, when the plan supports their operators.
+   */
+  boolean compiledPlans = false;
+
   /**
    *  The name of the default query operator for the retrieval model.
    *  @return The name of the default query operator.
@@ -20,4 +20,12 @@ public class RetrievalModelBM25 extends RetrievalModel {
     return new String ("#sum");
   }
 
+  /**
+   *  Get a string version of the model and its parameters.
+   *  @return The string version of the model.
+   */
+  public String toString () {
+    return "bm25(k_1=" + this.k_1 + ", b=" + this.b + ", k_3=" + this.k_3 + ")";
+  }
+
 }
@@ -18,4 +18,12 @@ public class RetrievalModelIndri extends RetrievalModel {
     return new String ("#and");
   }
 
+  /**
+   *  Get a string version of the model and its parameters.
+   *  @return The string version of the model.
+   */
+  public String toString () {
+    return "indri(mu=" + this.mu + ", lambda=" + this.lambda + ")";
+  }
+
 }
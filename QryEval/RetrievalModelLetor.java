@@ -15,6 +15,11 @@ public class RetrievalModelLetor extends RetrievalModel {
 	double k_1, b, k_3;
 	double mu, lambda;
 	double svmRankParamC;
+	int featureThreads = 1;
+	// Train and apply the ranker in the JVM instead of running svm_rank.
+	boolean svmRankInProcess = false;
+	// The ranker, if it was trained in the JVM.
+	RankSvm ranker = null;
 
 	public RetrievalModelLetor(Map<String, String> parameters) {
 		this.k_1 = Double.parseDouble(parameters.get("BM25:k_1"));
@@ -36,6 +41,12 @@ public class RetrievalModelLetor extends RetrievalModel {
 		this.testingFeatureVectorsFile = parameters.get("letor:testingFeatureVectorsFile");
 		this.testingDocumentScores = parameters.get("letor:testingDocumentScores");
 		this.queryFilePath = parameters.get("queryFilePath");
+		if (parameters.containsKey("letor:featureThreads")) {
+			this.featureThreads = Integer.parseInt(parameters.get("letor:featureThreads"));
+		}
+		if (parameters.containsKey("letor:svmRankInProcess")) {
+			this.svmRankInProcess = parameters.get("letor:svmRankInProcess").toLowerCase().equals("true");
+		}
 	}
 
 	@Override
@@ -44,4 +55,16 @@ public class RetrievalModelLetor extends RetrievalModel {
 		return null;
 	}
 
+	/**
+	 * Get a string version of the model's BM25 and Indri parameters,
+	 * which determine the scores of its initial rankings.
+	 *
+	 * @return The string version of the model.
+	 */
+	@Override
+	public String toString() {
+		return "letor(k_1=" + this.k_1 + ", b=" + this.b + ", k_3=" + this.k_3 + ", mu=" + this.mu + ", lambda="
+				+ this.lambda + ")";
+	}
+
 }
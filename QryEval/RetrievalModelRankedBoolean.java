@@ -13,4 +13,12 @@ public class RetrievalModelRankedBoolean extends RetrievalModel {
     return new String ("#or");
   }
 
+  /**
+   *  Get a string version of the model.
+   *  @return The string version of the model.
+   */
+  public String toString () {
+    return "rankedboolean";
+  }
+
 }
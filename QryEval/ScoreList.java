@@ -7,34 +7,47 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Internal docids and scores are stored in primitive arrays.  External
+ *  docids are expensive to look up, because Lucene must read a stored
+ *  document, so they are looked up only when they are needed:  to break
+ *  ties between equal scores, and for the results that are printed.
+ *  Each external docid is looked up at most once.
+ *  </p>
  */
 public class ScoreList {
 
-  //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  /**
+   *  The number of entries in the list.
+   */
+  private int size = 0;
 
-  private class ScoreListEntry {
-    private int docid;
-    private String externalId;
-    private double score;
+  /**
+   *  Parallel arrays of internal docids, scores, and external docids.
+   *  An external docid is null until it is looked up.
+   */
+  private int[] docids = new int[16];
+  private double[] scores = new double[16];
+  private String[] externalIds = new String[16];
 
-    private ScoreListEntry(int internalDocid, double score) {
-      this.docid = internalDocid;
-      this.score = score;
+  /**
+   *  The index that the docids refer to, or null for the current index.
+   */
+  private IndexHandle index = null;
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
-    }
+  /**
+   *  Create an empty score list for documents in the current index.
+   */
+  public ScoreList() {
   }
 
   /**
-   *  A list of document ids and scores.
+   *  Create an empty score list for documents in an index.
+   *  @param index The index that the docids refer to.
    */
-  private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  public ScoreList(IndexHandle index) {
+    this.index = index;
+  }
 
   /**
    *  Append a document score to a score list.
@@ -42,7 +55,28 @@ public class ScoreList {
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    this.add (docid, score, null);
+  }
+
+  /**
+   *  Append a document score to a score list when the caller already
+   *  knows the document's external id.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @param externalId The external document id, or null if it is not known.
+   */
+  void add(int docid, double score, String externalId) {
+    if (this.size == this.docids.length) {
+      int capacity = this.size * 2;
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.scores = Arrays.copyOf (this.scores, capacity);
+      this.externalIds = Arrays.copyOf (this.externalIds, capacity);
+    }
+
+    this.docids [this.size] = docid;
+    this.scores [this.size] = score;
+    this.externalIds [this.size] = externalId;
+    this.size ++;
   }
 
   /**
@@ -51,7 +85,28 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.scores.get(n).docid;
+    return this.docids [n];
+  }
+
+  /**
+   *  Get the external docid of the n'th entry.  It is looked up in the
+   *  index the first time that it is requested.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid(int n) throws IOException {
+    if (this.externalIds [n] == null)
+      this.externalIds [n] = this.getIndex ().getExternalDocid (this.docids [n]);
+
+    return this.externalIds [n];
+  }
+
+  /**
+   *  The index that the docids refer to.
+   */
+  private IndexHandle getIndex() {
+    return (this.index != null) ? this.index : Idx.getCurrentIndex ();
   }
 
   /**
@@ -60,7 +115,34 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    return this.scores [n];
+  }
+
+  /**
+   *  Look up the external docids of the first num entries in one
+   *  batch.  The lookups are done in internal docid order, which is
+   *  the order that Lucene stores documents.  Call this before
+   *  printing the results.
+   *  @param num The number of entries.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void resolveExternalDocids(int num) throws IOException {
+    num = Math.min (num, this.size);
+
+    long[] pending = new long[num];
+    int count = 0;
+
+    for (int i = 0; i < num; i++) {
+      if (this.externalIds [i] == null)
+	pending [count++] = ((long) this.docids [i] << 32) | i;
+    }
+
+    Arrays.sort (pending, 0, count);
+
+    for (int i = 0; i < count; i++) {
+      int n = (int) pending [i];
+      this.externalIds [n] = this.getIndex ().getExternalDocid (this.docids [n]);
+    }
   }
 
   /**
@@ -69,7 +151,7 @@ public class ScoreList {
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
-    this.scores.get(n).score = score;
+    this.scores [n] = score;
   }
 
   /**
@@ -77,40 +159,120 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
-    return this.scores.size();
+    return this.size;
+  }
+
+  /**
+   *  Sort the list by score in descending order, then external docid
+   *  in ascending order.  Entries are first sorted by score alone.
+   *  External docids are looked up only for runs of equal scores.
+   */
+  public void sort () {
+    this.sort (this.size);
   }
 
-  /*
-   *  Compare two ScoreListEntry objects.  Sort by score in descending order, then
-   *  external docid in ascending order.
+  /**
+   *  Sort the first n entries of the list by score in descending
+   *  order, then external docid in ascending order, as sort () would.
+   *  The rest of the list is sorted by score alone, so external docids
+   *  are only looked up for runs of equal scores that reach into the
+   *  first n entries.  Use this when only the first n entries are
+   *  printed, e.g., when every document has the same score.
+   *  @param n The number of entries that must be in rank order.
    */
-  public class ScoreListComparator implements Comparator<ScoreListEntry> {
+  public void sort (int n) {
 
-    @Override
-    public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-      if (s1.score > s2.score)
-	return -1;
+    int[] order = new int[this.size];
+    int[] tmp = new int[this.size];
+
+    for (int i = 0; i < this.size; i++)
+      order [i] = i;
+
+    mergeSort (order, tmp, 0, this.size, false);
+
+    //  Break ties by external docid.  A run of equal scores that
+    //  starts before n is sorted completely, because the entries that
+    //  belong in the first n may be anywhere in it.
+
+    for (int lo = 0; lo < Math.min (n, this.size); ) {
+      int hi = lo + 1;
+
+      while ((hi < this.size) &&
+	     (this.scores [order [hi]] == this.scores [order [lo]]))
+	hi ++;
+
+      if (hi - lo > 1)
+	mergeSort (order, tmp, lo, hi, true);
+
+      lo = hi;
+    }
+
+    //  Apply the permutation.
+
+    int[] d = new int[this.docids.length];
+    double[] s = new double[this.scores.length];
+    String[] e = new String[this.externalIds.length];
+
+    for (int i = 0; i < this.size; i++) {
+      d [i] = this.docids [order [i]];
+      s [i] = this.scores [order [i]];
+      e [i] = this.externalIds [order [i]];
+    }
+
+    this.docids = d;
+    this.scores = s;
+    this.externalIds = e;
+  }
+
+  /**
+   *  A stable merge sort of order[lo..hi), by descending score or by
+   *  ascending external docid.
+   */
+  private void mergeSort (int[] order, int[] tmp, int lo, int hi,
+			  boolean byExternalId) {
+    if (hi - lo < 2)
+      return;
+
+    int mid = (lo + hi) >>> 1;
+
+    mergeSort (order, tmp, lo, mid, byExternalId);
+    mergeSort (order, tmp, mid, hi, byExternalId);
+
+    if (compare (order [mid - 1], order [mid], byExternalId) <= 0)
+      return;				// Already in order
+
+    System.arraycopy (order, lo, tmp, lo, hi - lo);
+
+    int i = lo;
+    int j = mid;
+
+    for (int k = lo; k < hi; k++) {
+      if ((j >= hi) ||
+	  ((i < mid) && (compare (tmp [i], tmp [j], byExternalId) <= 0)))
+	order [k] = tmp [i++];
       else
-	if (s1.score < s2.score)
-	  return 1;
-	else
-    return s1.externalId.compareTo(s2.externalId);
-  /**
-	  if (s1.externalId > s2.externalId)
-	    return 1;
-	  else
-	    if (s1.externalId < s2.externalId)
-	      return -1;
-	    else
-	      return 0;*/
+	order [k] = tmp [j++];
     }
   }
 
   /**
-   *  Sort the list by score and external document id.
+   *  Compare entries i and j.
    */
-  public void sort () {
-    Collections.sort(this.scores, new ScoreListComparator());
+  private int compare (int i, int j, boolean byExternalId) {
+    if (! byExternalId) {
+      if (this.scores [i] > this.scores [j])
+	return -1;
+      else if (this.scores [i] < this.scores [j])
+	return 1;
+      else
+	return 0;
+    }
+
+    try {
+      return this.getExternalDocid (i).compareTo (this.getExternalDocid (j));
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the Lucene index.", ex);
+    }
   }
 
   /**
@@ -119,21 +281,23 @@ public class ScoreList {
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
-    List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-        Math.min(num, scores.size())));
-    this.scores.clear();
-    this.scores = truncated;
+    this.size = Math.min (num, this.size);
+
+    int capacity = Math.max (this.size, 1);
+    this.docids = Arrays.copyOf (this.docids, capacity);
+    this.scores = Arrays.copyOf (this.scores, capacity);
+    this.externalIds = Arrays.copyOf (this.externalIds, capacity);
   }
 
 @Override
 public String toString() {
     StringBuilder sb=new StringBuilder();
-    for (ScoreListEntry entry:scores) {
-        sb.append(entry.docid+"\t"+entry.score+"\n");
+    for (int i = 0; i < this.size; i++) {
+        sb.append(this.docids[i]+"\t"+this.scores[i]+"\n");
     }
     return "ScoreList: \n" + sb.toString();
 }
-  
-  
-  
+
+
+
 }
@@ -3,11 +3,15 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
 
 /**
  *  An Indri DocVector-style interface for the Lucene termvector.
@@ -18,11 +22,30 @@ import org.apache.lucene.index.TermsEnum;
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *  </pre>
+ *  <p>
+ *  A TermVector can be reset to another document and field, and its
+ *  buffers are reused, so a loop over many documents needn't allocate
+ *  a TermVector per document; TermVector.get returns one that belongs
+ *  to the calling thread.  The stems are kept as bytes in a hash table,
+ *  so indexOfStem is a hash lookup.  The positions array is only
+ *  filled in when a method that needs it is called, since most callers
+ *  only need stems and frequencies.
+ *  </p>
  */
 public class TermVector {
 
   //  --------------- Constants and variables ---------------------
 
+  /**
+   *  A TermVector for each thread, for TermVector.get.
+   */
+  private static final ThreadLocal<TermVector> threadVector =
+    new ThreadLocal<TermVector> () {
+      protected TermVector initialValue () {
+        return new TermVector ();
+      }
+    };
+
   /**
    *  The internal id of the document that the TermVector represents.
    */
@@ -35,26 +58,83 @@ public class TermVector {
 
   private int fieldLength;
   private Terms luceneTerms;
-  private int[] positions;	// Index of the stem that at this position
-  private String[] stems;	// The vocabulary. 0 indicates a stopword
-  private int[] stemsFreq;	// The frequency (tf) of each entry in stems
-  private Term[] terms;
+  private int numStems;		// Not counting the stopword stem
+  private int[] positions = new int[0];	// Index of the stem that at this position
+  private int positionsLength;	// Valid entries in positions, or -1 if not filled in
+  private BytesRefHash stems = new BytesRefHash ();	// Stem s has id s-1
+  private int[] stemsFreq = new int[1];	// The frequency (tf) of each entry in stems
+  private BytesRef scratch = new BytesRef ();
+  private TermsEnum termsEnum;
+  private DocsAndPositionsEnum positionsEnum;
+  private IndexReader reader;
 
   //  --------------- Methods ---------------------------------------
 
   /**
-   *  @param docId An internal document id
+   *  Create an empty TermVector, to be filled in by reset.
+   */
+  public TermVector () {
+  }
+
+  /**
+   *  @param docId An internal document id in the current index
    *  @param fieldName The name of a document field.
    *  @throws IOException Error accessing the Lucene index
    **/
   public TermVector(int docId, String fieldName) throws IOException {
+    this (Idx.getCurrentIndex (), docId, fieldName);
+  }
+
+  /**
+   *  @param index The index that contains the document
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  public TermVector(IndexHandle index, int docId, String fieldName)
+    throws IOException {
+    this.reset (index, docId, fieldName);
+  }
+
+  /**
+   *  Get the calling thread's TermVector, reset to a document and
+   *  field.  The TermVector is reset again by the thread's next call,
+   *  so callers must not keep it.
+   *  @param index The index that contains the document
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @return The TermVector.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static TermVector get (IndexHandle index, int docId, String fieldName)
+    throws IOException {
+    TermVector vec = threadVector.get ();
+
+    vec.reset (index, docId, fieldName);
+    return vec;
+  }
+
+  /**
+   *  Make this TermVector represent another document and field.
+   *  @param index The index that contains the document
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public void reset (IndexHandle index, int docId, String fieldName)
+    throws IOException {
+    this.reader = index.getIndexReader ();
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
+    this.numStems = 0;
+    this.positionsLength = -1;
+    this.stems.clear ();
+    this.stems.reinit ();
 
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    this.luceneTerms = this.reader.getTermVector(docId, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
     
@@ -62,54 +142,65 @@ public class TermVector {
       return;
     }
 
-    //  Allocate space for stems. The 0'th stem indicates a stopword.
+    //  Iterate through the terms, filling in the stem and frequency
+    //  information. The 0'th term indicates a stopword, so stems
+    //  start at 1.
 
-    int stemsLength = (int) this.luceneTerms.size();
-    stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
-    stemsFreq = new int[stemsLength + 1];
+    this.termsEnum = this.luceneTerms.iterator(this.termsEnum);
 
-    //  Iterate through the terms, filling in the stem and frequency
-    //  information, and finding the position of the last term. The
-    //  0'th term indicates a stopword, so this loop starts at i=1.
+    BytesRef term;
 
-    TermsEnum ithTerm = this.luceneTerms.iterator(null);
-    
-    int lastPosition = 0;
-    for (int i = 1; ithTerm.next() != null; i++) {
-      stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
-      stemsFreq[i] = (int) ithTerm.totalTermFreq();
-      fieldLength += stemsFreq[i]; 
+    while ((term = this.termsEnum.next()) != null) {
+      this.stems.add (term);
+      this.numStems ++;
+
+      if (this.numStems == this.stemsFreq.length)
+        this.stemsFreq = Arrays.copyOf (this.stemsFreq, 2 * this.stemsFreq.length);
 
-      //  Find the position of the last (indexed) term in the
-      //  document, so that the positions array can be created and
-      //  populated later. The last position for each term is the
-      //  largest, so ignore the positions before it.
+      this.stemsFreq [this.numStems] = (int) this.termsEnum.totalTermFreq();
+      this.fieldLength += this.stemsFreq [this.numStems];
+    }
+  }
 
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+  /**
+   *  Fill in the positions array, if it hasn't been filled in for this
+   *  document yet.
+   */
+  private void readPositions () {
+    if (this.positionsLength >= 0)
+      return;
 
-      ithPositions.nextDoc(); /* Initialize iPositions */
+    this.positionsLength = 0;
 
-      for (int j = 0; j < ithPositions.freq() - 1; j++)
-        ithPositions.nextPosition();
+    if (this.fieldLength == 0)
+      return;
 
-      lastPosition = Math.max(lastPosition, ithPositions.nextPosition());
-    }
+    try {
+      this.termsEnum = this.luceneTerms.iterator(this.termsEnum);
 
-    // Create and fill the positions array. Since we have position indexes, the array's size needs 
-    // to be one bigger than the biggest position.
-    positions = new int[lastPosition + 1];
+      for (int i = 1; this.termsEnum.next() != null; i++) {
+        this.positionsEnum = this.termsEnum.docsAndPositions(null, this.positionsEnum);
+        this.positionsEnum.nextDoc(); /* Initialize iPositions */
 
-    ithTerm = this.luceneTerms.iterator(null);
+        for (int j = 0; j < this.positionsEnum.freq(); j++) {
+          int p = this.positionsEnum.nextPosition();
 
-    for (int i = 0; ithTerm.next() != null; i++) {
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+          //  Positions that no stem occupies, e.g., stopwords, are 0.
 
-      ithPositions.nextDoc(); /* Initialize iPositions */
+          if (p >= this.positionsLength) {
+            if (p >= this.positions.length)
+              this.positions = Arrays.copyOf (this.positions,
+                                              Math.max (p + 1, 2 * this.positions.length));
 
-      for (int j = 0; j < ithPositions.freq(); j++)
-        positions[ithPositions.nextPosition()] = i + 1;
+            Arrays.fill (this.positions, this.positionsLength, p + 1, 0);
+            this.positionsLength = p + 1;
+          }
+
+          this.positions [p] = i;
+        }
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the Lucene index.", ex);
     }
   }
 
@@ -120,13 +211,14 @@ public class TermVector {
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
-	  if (this.stems==null) return -1;
-    for (int s=1; s<this.stems.length; s++) {
-      if (stem.equals (this.stems [s]))
-	return s;
-    }
-    
-    return -1;
+    if (this.numStems == 0)
+      return -1;
+
+    this.scratch.copyChars (stem);
+
+    int id = this.stems.find (this.scratch);
+
+    return (id < 0) ? -1 : id + 1;
   }
 
   /**
@@ -138,7 +230,8 @@ public class TermVector {
     if (this.fieldLength == 0)
       return 0;
 
-    return this.positions.length;
+    this.readPositions ();
+    return this.positionsLength;
   }
 
   /**
@@ -148,7 +241,9 @@ public class TermVector {
    *  @return Index of the stem.
    */
   public int stemAt(int i) {
-    if (i < positions.length)
+    this.readPositions ();
+
+    if (i < this.positionsLength)
       return positions[i];
     else
       return -1;
@@ -162,7 +257,9 @@ public class TermVector {
    *  @return The stem frequency (tf)
    */
   public int stemFreq(int i) {
-    if (i < stemsFreq.length)
+    if (i == 0)
+      return 0;
+    else if (i <= this.numStems)
       return stemsFreq[i];
     else
       return -1;
@@ -174,8 +271,8 @@ public class TermVector {
    *  @return The stem string.
    */
   public String stemString(int i) {
-    if (i < stems.length)
-      return stems[i];
+    if ((i > 0) && (i <= this.numStems))
+      return this.stems.get (i - 1, this.scratch).utf8ToString();
     else
       return null;
   }
@@ -188,7 +285,7 @@ public class TermVector {
     if (this.fieldLength == 0)
       return 0;
 
-    return this.stems.length;
+    return this.numStems + 1;
   }
   
   /**
@@ -198,7 +295,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return this.reader.totalTermFreq(this.getTerm (i));
   }
   
   /**
@@ -208,7 +305,15 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return this.reader.docFreq(this.getTerm (i));
+  }
+
+  /**
+   *  The Lucene term of the i'th stem.
+   */
+  private Term getTerm (int i) {
+    return new Term (this.fieldName,
+                     BytesRef.deepCopyOf (this.stems.get (i - 1, this.scratch)));
   }
   
 }
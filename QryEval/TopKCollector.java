@@ -0,0 +1,189 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  A bounded collector that keeps the k best <docid, score> pairs seen
+ *  so far.  It is an alternative to adding every matching document to
+ *  a ScoreList and sorting the whole list.  Documents are ordered the
+ *  same way that ScoreList orders them:  by score in descending order,
+ *  then by external docid in ascending order.
+ *  <p>
+ *  The pairs are kept in a min-heap of primitive arrays, so the worst
+ *  of the k documents is always at the root.  Once k documents have
+ *  been collected, getThreshold returns the score that a new document
+ *  must reach to enter the top k.  External docids are only looked up
+ *  when two scores tie.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private int k;
+  private int size = 0;
+  private int[] docids;
+  private double[] scores;
+  private String[] externalIds;		// Looked up lazily, for ties
+  private IndexHandle index;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The number of documents to keep.
+   */
+  public TopKCollector (int k) {
+    this (k, Idx.getCurrentIndex ());
+  }
+
+  /**
+   *  @param k The number of documents to keep.
+   *  @param index The index that the docids refer to.
+   */
+  public TopKCollector (int k, IndexHandle index) {
+    this.index = index;
+    this.k = Math.max (k, 1);
+    this.docids = new int[this.k];
+    this.scores = new double[this.k];
+    this.externalIds = new String[this.k];
+  }
+
+  /**
+   *  Offer a document to the collector.  It is kept if it is one of
+   *  the k best documents seen so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void add (int docid, double score) throws IOException {
+
+    if (this.size < this.k) {
+      this.docids [this.size] = docid;
+      this.scores [this.size] = score;
+      this.externalIds [this.size] = null;
+      this.siftUp (this.size);
+      this.size ++;
+      return;
+    }
+
+    //  The root is the worst document in the collector.
+
+    if (score < this.scores [0])
+      return;
+
+    String externalId = null;
+
+    if (score == this.scores [0]) {
+      externalId = this.index.getExternalDocid (docid);
+
+      if (externalId.compareTo (this.getExternalId (0)) > 0)
+	return;
+    }
+
+    this.docids [0] = docid;
+    this.scores [0] = score;
+    this.externalIds [0] = externalId;
+    this.siftDown (0);
+  }
+
+  /**
+   *  Get the number of documents in the collector.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the lowest score that a document needs to enter the top k.
+   *  Until the collector holds k documents, any score is enough.  A
+   *  document whose score equals the threshold may still enter the
+   *  top k if its external docid is smaller.
+   *  @return The threshold score.
+   */
+  public double getThreshold () {
+    if (this.size < this.k)
+      return Double.NEGATIVE_INFINITY;
+
+    return this.scores [0];
+  }
+
+  /**
+   *  Copy the collected documents to a ScoreList.  Use ScoreList.sort
+   *  to put them in rank order.
+   *  @return A score list of at most k documents.
+   */
+  public ScoreList getScoreList () {
+    ScoreList r = new ScoreList (this.index);
+
+    for (int i = 0; i < this.size; i++)
+      r.add (this.docids [i], this.scores [i], this.externalIds [i]);
+
+    return r;
+  }
+
+  /**
+   *  The external docid of the document in heap slot i.
+   */
+  private String getExternalId (int i) throws IOException {
+    if (this.externalIds [i] == null)
+      this.externalIds [i] = this.index.getExternalDocid (this.docids [i]);
+
+    return this.externalIds [i];
+  }
+
+  /**
+   *  True if the document in slot i ranks below the document in slot j.
+   */
+  private boolean worse (int i, int j) throws IOException {
+    if (this.scores [i] != this.scores [j])
+      return this.scores [i] < this.scores [j];
+
+    return this.getExternalId (i).compareTo (this.getExternalId (j)) > 0;
+  }
+
+  private void siftUp (int i) throws IOException {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (! this.worse (i, parent))
+	break;
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown (int i) throws IOException {
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size)
+	break;
+
+      if ((child + 1 < this.size) && this.worse (child + 1, child))
+	child ++;
+
+      if (! this.worse (child, i))
+	break;
+
+      this.swap (i, child);
+      i = child;
+    }
+  }
+
+  private void swap (int i, int j) {
+    int d = this.docids [i];
+    this.docids [i] = this.docids [j];
+    this.docids [j] = d;
+
+    double s = this.scores [i];
+    this.scores [i] = this.scores [j];
+    this.scores [j] = s;
+
+    String e = this.externalIds [i];
+    this.externalIds [i] = this.externalIds [j];
+    this.externalIds [j] = e;
+  }
+}
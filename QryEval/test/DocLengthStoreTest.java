@@ -0,0 +1,109 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  Checks that the MMAP mode of DocLengthStore has the lengths that
+ *  Lucene's norms have, when the lengths file is built, when it is
+ *  mapped again, when several stores build it at the same time, and
+ *  when it can't be written to the index directory.
+ */
+public class DocLengthStoreTest {
+
+  private static final String[] FIELDS = { "body", "title", "missing" };
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("docLengths");
+    TestUtil.buildIndex (dir, 700, 13, 7);
+    final IndexReader reader = DirectoryReader.open (FSDirectory.open (dir));
+    DocLengthStore norms = new DocLengthStore (reader);
+    File file = new File (dir, DocLengthStore.FILE_NAME);
+
+    check (norms, mmap (reader, dir), reader, "built");
+    TestUtil.check (file.exists (), "the lengths file is saved");
+    check (norms, mmap (reader, dir), reader, "mapped");
+
+    //  Several builders at once, as when several processes open a new
+    //  index.  Each writes its own temporary file.
+
+    file.delete ();
+
+    final DocLengthStore[] stores = new DocLengthStore[8];
+    Thread[] threads = new Thread[stores.length];
+
+    for (int i = 0; i < threads.length; i++) {
+      final int t = i;
+      final File d = dir;
+
+      threads [i] = new Thread () {
+	  public void run () {
+	    try {
+	      stores [t] = mmap (reader, d);
+	    } catch (IOException ex) {
+	      ex.printStackTrace ();
+	    }
+	  }
+	};
+      threads [i].start ();
+    }
+
+    for (int i = 0; i < threads.length; i++) {
+      try {
+	threads [i].join ();
+      } catch (InterruptedException ex) {
+	Thread.currentThread ().interrupt ();
+      }
+
+      if (stores [i] == null)
+	TestUtil.check (false, "concurrent build " + i + " failed");
+      else
+	check (norms, stores [i], reader, "concurrent build " + i);
+    }
+
+    check (norms, mmap (reader, dir), reader, "after concurrent builds");
+
+    for (String name : dir.list ())
+      TestUtil.check (! name.endsWith (".tmp"), "temporary file left:  " + name);
+
+    //  A directory that can't be written.
+
+    File missing = new File (dir, "missing");
+    check (norms, mmap (reader, missing), reader, "unwritable directory");
+    TestUtil.check (! missing.exists (), "nothing is written to the unwritable directory");
+
+    reader.close ();
+    TestUtil.finish ("DocLengthStoreTest");
+  }
+
+  private static DocLengthStore mmap (IndexReader reader, File dir)
+    throws IOException {
+    return new DocLengthStore (reader, DocLengthStore.Mode.MMAP, dir.getPath ());
+  }
+
+  /**
+   *  Check every length of a store against Lucene's norms.
+   */
+  private static void check (DocLengthStore expected, DocLengthStore actual,
+			     IndexReader reader, String message)
+    throws IOException {
+
+    for (String field : FIELDS) {
+      int ord = actual.fieldOrdinal (field);
+
+      for (int docid = 0; docid < reader.maxDoc (); docid++) {
+	long length = expected.getDocLength (field, docid);
+
+	if (length != actual.getDocLength (ord, docid)) {
+	  TestUtil.checkEquals (length, (long) actual.getDocLength (ord, docid),
+				message + ":  length of " + field + " in " + docid);
+	  return;
+	}
+      }
+    }
+  }
+}
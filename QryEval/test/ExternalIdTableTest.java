@@ -0,0 +1,143 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  Checks ExternalIdTable lookups, lookups whose values span two mapped
+ *  regions, that a table file that is damaged or from another version
+ *  of the index is rebuilt, and that processes that build the table
+ *  at the same time don't damage it.
+ */
+public class ExternalIdTableTest {
+
+  private static final int NUM_DOCS = 500;
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("externalIds");
+    TestUtil.buildIndex (dir, NUM_DOCS, 9, 2);
+    IndexReader reader = DirectoryReader.open (FSDirectory.open (dir));
+    File file = new File (dir, ExternalIdTable.FILE_NAME);
+
+    checkTable (ExternalIdTable.open (reader, file), "built");
+    checkTable (ExternalIdTable.open (reader, file), "mapped");
+
+    //  Regions of 8 bytes split most external docids.
+
+    checkTable (ExternalIdTable.open (reader, file, 8), "8-byte regions");
+    checkTable (ExternalIdTable.open (reader, file, 40), "40-byte regions");
+
+    //  Damaged files.
+
+    long length = file.length ();
+
+    overwrite (file, 0, 0);		// Magic number
+    checkTable (ExternalIdTable.open (reader, file), "bad magic number");
+
+    overwrite (file, 4, 99);		// Format
+    checkTable (ExternalIdTable.open (reader, file), "bad format");
+
+    overwrite (file, 16, NUM_DOCS + 1);	// maxDoc
+    checkTable (ExternalIdTable.open (reader, file), "bad maxDoc");
+
+    RandomAccessFile f = new RandomAccessFile (file, "rw");
+    f.setLength (length - 3);
+    f.close ();
+    checkTable (ExternalIdTable.open (reader, file), "truncated");
+
+    f = new RandomAccessFile (file, "rw");
+    f.setLength (10);
+    f.close ();
+    checkTable (ExternalIdTable.open (reader, file), "short header");
+
+    TestUtil.checkEquals (length, file.length (), "rebuilt length");
+
+    //  Several builders at once, as when several processes open a new
+    //  index.  Each writes its own temporary file.
+
+    file.delete ();
+    checkConcurrentOpens (reader, file);
+    checkTable (ExternalIdTable.open (reader, file), "after concurrent builds");
+    TestUtil.checkEquals (length, file.length (), "length after concurrent builds");
+
+    for (String name : dir.list ())
+      TestUtil.check (! name.endsWith (".tmp"), "temporary file left:  " + name);
+
+    reader.close ();
+    TestUtil.finish ("ExternalIdTableTest");
+  }
+
+  /**
+   *  Check every lookup of a table of the test index.
+   */
+  private static void checkTable (ExternalIdTable table, String message) {
+    for (int d = 0; d < NUM_DOCS; d++) {
+      String eid = TestUtil.externalId (d);
+      boolean deleted = (d % 9 == 0);
+
+      TestUtil.checkEquals (deleted ? null : eid, table.getExternalDocid (d),
+			    message + ":  external id of " + d);
+      TestUtil.checkEquals (deleted ? -1 : d, table.getInternalDocid (eid),
+			    message + ":  internal id of " + eid);
+    }
+
+    TestUtil.checkEquals (-1, table.getInternalDocid ("doc-99999"),
+			  message + ":  missing external id");
+    TestUtil.checkEquals (-1, table.getInternalDocid (""),
+			  message + ":  empty external id");
+  }
+
+  /**
+   *  Open a missing table from several threads at once, and check the
+   *  tables that they get.
+   */
+  private static void checkConcurrentOpens (final IndexReader reader,
+					    final File file) {
+    final ExternalIdTable[] tables = new ExternalIdTable[8];
+    Thread[] threads = new Thread[tables.length];
+
+    for (int i = 0; i < threads.length; i++) {
+      final int t = i;
+
+      threads [i] = new Thread () {
+	  public void run () {
+	    try {
+	      tables [t] = ExternalIdTable.open (reader, file);
+	    } catch (IOException ex) {
+	      ex.printStackTrace ();
+	    }
+	  }
+	};
+      threads [i].start ();
+    }
+
+    for (int i = 0; i < threads.length; i++) {
+      try {
+	threads [i].join ();
+      } catch (InterruptedException ex) {
+	Thread.currentThread ().interrupt ();
+      }
+
+      if (tables [i] == null)
+	TestUtil.check (false, "concurrent build " + i + " failed");
+      else
+	checkTable (tables [i], "concurrent build " + i);
+    }
+  }
+
+  private static void overwrite (File file, long position, int value)
+    throws IOException {
+    RandomAccessFile f = new RandomAccessFile (file, "rw");
+
+    try {
+      f.seek (position);
+      f.writeInt (value);
+    } finally {
+      f.close ();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Checks that the evaluators that RetrievalModel flags turn on give
+ *  the same documents and scores as exhaustive document-at-a-time
+ *  evaluation, for every retrieval model, with copied and streamed
+ *  TERM operators, on an index with deleted documents.  Queries that
+ *  an evaluator doesn't support check that it falls back.
+ */
+public class FastPathTest {
+
+  private static final String[] QUERIES = {
+    "zqaax zqbax zqfsx",
+    "zqabx zqacx",
+    "zqgrx zqaax",
+    "zqaax zqabx zqacx zqadx zqaex",
+    "zqfax zqfbx zqfcx zqaax",
+    "zqgrx",
+    "zqnotindexedx zqabx",
+    "zqcax zqaax.title zqbbx",
+    "#near/3(zqaax zqabx) zqacx",
+  };
+
+  /**
+   *  Queries with other operators than the default, for each model in
+   *  the order that main lists them.
+   */
+  private static final String[][] MODEL_QUERIES = {
+    { "#and(zqaax #or(zqabx zqacx.title))", "#or(zqgrx #and(zqaax zqabx))" },
+    { "#and(zqaax #or(zqabx zqacx.title))", "#or(zqgrx #and(zqaax zqabx))" },
+    { "#sum(zqaax #near/2(zqabx zqacx))" },
+    { "#wand(0.7 zqaax 0.3 zqfsx 0.5 zqabx.title)",
+      "#wand(1 zqgrx 2 #near/3(zqaax zqabx))",
+      "#wsum(0.3 zqaax 0.7 #and(zqabx zqacx.title))" },
+  };
+
+  private static final String[] PATHS = {
+    "impactOrdered",
+    "indriBlockScoring",
+    "compiledPlans",
+  };
+
+  private static final int[] DEPTHS = { 0, 1, 10, 100 };
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("fastpath");
+    TestUtil.buildIndex (dir, 3000, 11, 9);
+
+    //  The bounds use the default parameters of the models below.
+
+    BuildImpactIndex.main (new String[] { "-index", dir.getPath (),
+					  "-ordered", "body" });
+    IndexHandle index = new IndexHandle (dir.getPath ());
+
+    TestUtil.check (index.getImpactOrderedIndex () != null,
+		    "the impact-ordered index is used");
+
+    RetrievalModel[] models = {
+      new RetrievalModelUnrankedBoolean (),
+      new RetrievalModelRankedBoolean (),
+      new RetrievalModelBM25 (1.2f, 0.75f, 0),
+      new RetrievalModelIndri (2500, 0.4f),
+    };
+
+    for (int m = 0; m < models.length; m++) {
+      RetrievalModel model = models [m];
+
+      for (boolean streaming : new boolean[] { false, true }) {
+	model.streamingTerms = streaming;
+
+	List<String> queries = new ArrayList<String> ();
+
+	for (String terms : QUERIES)
+	  queries.add (model.defaultQrySopName () + "(" + terms + ")");
+
+	queries.addAll (Arrays.asList (MODEL_QUERIES [m]));
+
+	for (String query : queries) {
+	  setPath (model, null);
+	  ScoreList all = QryEval.processQuery (query, model, 0, index);
+	  all.sort ();
+
+	  for (String path : PATHS) {
+	    setPath (model, path);
+
+	    for (int k : DEPTHS) {
+	      ScoreList r = QryEval.processQuery (query, model, k, index);
+	      int n = (k > 0) ? k : all.size ();
+
+	      r.sort ();
+	      TestUtil.checkEquals (TestUtil.results (all, n), TestUtil.results (r, n),
+				    path + ", " + model + ", streaming=" + streaming +
+				    ", " + query + ", k=" + k);
+	    }
+	  }
+
+	  setPath (model, null);
+	}
+      }
+    }
+
+    //  The evaluators must be used, not just fall back.
+
+    RetrievalModel bm25 = models [2];
+
+    TestUtil.check (ImpactOrderedEvaluator.evaluate (
+		      QryParser.getQuery ("#sum(zqaax zqabx zqfsx)"), bm25, 10, index) != null,
+		    "impactOrdered evaluates a BM25 #sum");
+
+    RetrievalModel indri = models [3];
+
+    for (String query : new String[] { "#and(zqaax zqbax.title #near/3(zqaax zqabx))",
+				       MODEL_QUERIES [3][0] })
+      TestUtil.check (IndriBlockEvaluator.evaluate (
+			QryParser.getQuery (query), indri, 10, index) != null,
+		      "indriBlockScoring evaluates " + query);
+
+    for (int m = 0; m < models.length; m++)
+      for (String query : MODEL_QUERIES [m]) {
+	Qry q = QryParser.getQuery (query);
+
+	TestUtil.check (QryPlan.compile (q, models [m], index) != null,
+			"compiledPlans compiles " + query + " for " + models [m]);
+      }
+
+    TestUtil.finish ("FastPathTest");
+  }
+
+  /**
+   *  Turn on one evaluator, or none.
+   */
+  private static void setPath (RetrievalModel model, String path) {
+    model.impactOrdered = "impactOrdered".equals (path);
+    model.indriBlockScoring = "indriBlockScoring".equals (path);
+    model.compiledPlans = "compiledPlans".equals (path);
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  Checks that an ImpactIndex or ImpactOrderedIndex file that is
+ *  truncated, has extra bytes, or has a damaged header is ignored
+ *  instead of failing when the index is opened.
+ */
+public class ImpactIndexTest {
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("impacts");
+    TestUtil.buildIndex (dir, 500, 0, 3);
+    BuildImpactIndex.main (new String[] { "-index", dir.getPath (),
+					  "-ordered", "body" });
+
+    IndexReader reader = DirectoryReader.open (FSDirectory.open (dir));
+
+    //  The field count, and the first field's name length, then its
+    //  counts, are at these offsets.
+
+    checkFile (reader, new File (dir, ImpactIndex.FILE_NAME), false, 48,
+	       new String[] { "term count", "block count" });
+    checkFile (reader, new File (dir, ImpactOrderedIndex.FILE_NAME), true, 40,
+	       new String[] { "term count", "segment count", "posting count" });
+
+    //  The handle works without the files.
+
+    IndexHandle index = new IndexHandle (dir.getPath ());
+    TestUtil.check (index.getImpactIndex () == null,
+		    "the handle ignores a damaged impact index");
+    TestUtil.check (index.getImpactOrderedIndex () == null,
+		    "the handle ignores a damaged impact-ordered index");
+
+    reader.close ();
+    TestUtil.finish ("ImpactIndexTest");
+  }
+
+  /**
+   *  Damage a file in several ways, and leave it truncated.
+   *  @param ordered True for an ImpactOrderedIndex file.
+   *  @param fieldCount The offset of the field count.
+   *  @param counts The counts after the first field's name.
+   */
+  private static void checkFile (IndexReader reader, File file,
+				 boolean ordered, long fieldCount,
+				 String[] counts) throws IOException {
+
+    File copy = new File (file.getPath () + ".copy");
+    String name = file.getName ();
+
+    Files.copy (file.toPath (), copy.toPath ());
+    TestUtil.check (open (reader, file, ordered) != null, name + ":  complete file");
+
+    long length = file.length ();
+
+    for (long n : new long[] { 0, 10, fieldCount, fieldCount + 8,
+			       length / 2, length - 1 })
+      checkDamaged (reader, file, copy, ordered, n, -1, 0,
+		    name + ":  truncated to " + n);
+
+    checkDamaged (reader, file, copy, ordered, length + 4, -1, 0,
+		  name + ":  extra bytes");
+    checkDamaged (reader, file, copy, ordered, length, fieldCount, -1,
+		  name + ":  negative field count");
+    checkDamaged (reader, file, copy, ordered, length, fieldCount, 1000,
+		  name + ":  large field count");
+
+    RandomAccessFile f = new RandomAccessFile (file, "r");
+    f.seek (fieldCount + 4);
+    long first = fieldCount + 6 + f.readUnsignedShort ();
+    f.close ();
+
+    for (int i = 0; i < counts.length; i++) {
+      checkDamaged (reader, file, copy, ordered, length, first + 4 * i, 1 << 30,
+		    name + ":  large " + counts [i]);
+      checkDamaged (reader, file, copy, ordered, length, first + 4 * i, -5,
+		    name + ":  negative " + counts [i]);
+    }
+
+    checkDamaged (reader, file, copy, ordered, length / 2, -1, 0,
+		  name + ":  truncated");
+  }
+
+  private static Object open (IndexReader reader, File file, boolean ordered)
+    throws IOException {
+    return ordered ?
+      (Object) ImpactOrderedIndex.open (reader, file) :
+      (Object) ImpactIndex.open (reader, file);
+  }
+
+  /**
+   *  Restore the file from a copy, damage it, and check that it is
+   *  ignored.
+   *  @param length The new length of the file.
+   *  @param position Where to write value, or -1 to leave the bytes.
+   */
+  private static void checkDamaged (IndexReader reader, File file, File copy,
+				    boolean ordered, long length,
+				    long position, int value, String message)
+    throws IOException {
+
+    Files.copy (copy.toPath (), file.toPath (),
+		StandardCopyOption.REPLACE_EXISTING);
+
+    RandomAccessFile f = new RandomAccessFile (file, "rw");
+
+    try {
+      f.setLength (length);
+
+      if (position >= 0) {
+	f.seek (position);
+	f.writeInt (value);
+      }
+    } finally {
+      f.close ();
+    }
+
+    try {
+      TestUtil.check (open (reader, file, ordered) == null, message + ":  ignored");
+    } catch (Exception ex) {
+      TestUtil.check (false, message + ":  " + ex);
+    }
+  }
+}
@@ -0,0 +1,279 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  Checks that InvList's compressed postings decode to the postings
+ *  that were appended to it, and that a Cursor's advanceTo stops at
+ *  the same posting as a linear scan.
+ */
+public class InvListTest {
+
+  /**
+   *  A posting that is kept uncompressed, for comparison.
+   */
+  private static class Posting {
+    int docid;
+    int[] positions;
+
+    Posting (int docid, int[] positions) {
+      this.docid = docid;
+      this.positions = positions;
+    }
+  }
+
+  public static void main (String[] args) {
+
+    Random random = new Random (3);
+
+    checkCodec (random, 0, "empty list");
+    checkCodec (random, 1, "one posting");
+    checkCodec (random, InvList.BLOCK_SIZE, "one full block");
+    checkCodec (random, InvList.BLOCK_SIZE + 1, "one posting in the last block");
+    checkCodec (random, 10 * InvList.BLOCK_SIZE + 17, "many blocks");
+    checkExtremes ();
+    checkAppend ();
+    checkAdvanceTo (random);
+
+    TestUtil.finish ("InvListTest");
+  }
+
+  /**
+   *  Random postings whose docid and position gaps need 1 to 5
+   *  variable-byte bytes.
+   */
+  private static List<Posting> randomPostings (Random random, int n) {
+    List<Posting> postings = new ArrayList<Posting> ();
+    int docid = -1;
+
+    for (int i = 0; i < n; i++) {
+      docid += 1 + randomGap (random, (Integer.MAX_VALUE - 1 - docid) / (n - i));
+
+      int tf = 1 + ((random.nextInt (8) == 0) ? random.nextInt (300) : random.nextInt (4));
+      int[] positions = new int[tf];
+      int pos = -1;
+
+      for (int j = 0; j < tf; j++) {
+	pos += 1 + randomGap (random, (Integer.MAX_VALUE - 1 - pos) / (tf - j));
+	positions [j] = pos;
+      }
+
+      postings.add (new Posting (docid, positions));
+    }
+
+    return postings;
+  }
+
+  /**
+   *  A gap of less than max, with about as many gaps of each encoded
+   *  length.
+   */
+  private static int randomGap (Random random, int max) {
+    int bits = 1 + random.nextInt (31);
+    int gap = random.nextInt (Integer.MAX_VALUE) >>> (31 - bits);
+
+    return (max <= 1) ? 0 : gap % max;
+  }
+
+  private static InvList build (List<Posting> postings) {
+    InvList list = new InvList ("body");
+
+    for (Posting p : postings)
+      TestUtil.check (list.appendPosting (p.docid, p.positions, p.positions.length),
+		      "append " + p.docid);
+
+    return list;
+  }
+
+  /**
+   *  Check the random access methods, a cursor, and the statistics of
+   *  a list of n random postings.
+   */
+  private static void checkCodec (Random random, int n, String message) {
+    List<Posting> postings = randomPostings (random, n);
+    InvList list = build (postings);
+    int ctf = 0;
+    int maxTf = 0;
+
+    for (Posting p : postings) {
+      ctf += p.positions.length;
+      maxTf = Math.max (maxTf, p.positions.length);
+    }
+
+    TestUtil.checkEquals (n, list.df, message + ":  df");
+    TestUtil.checkEquals (ctf, list.ctf, message + ":  ctf");
+    TestUtil.checkEquals (maxTf, list.maxTf, message + ":  maxTf");
+    TestUtil.checkEquals ((n + InvList.BLOCK_SIZE - 1) / InvList.BLOCK_SIZE,
+			  list.getBlockCount (), message + ":  blocks");
+
+    for (int i = 0; i < n; i++) {
+      Posting p = postings.get (i);
+
+      TestUtil.checkEquals (p.docid, list.getDocid (i), message + ":  docid " + i);
+      TestUtil.checkEquals (p.positions.length, list.getTf (i), message + ":  tf " + i);
+      TestUtil.check (prefixEquals (p.positions, list.getPositions (i)),
+		      message + ":  positions " + i);
+    }
+
+    for (int b = 0; b < list.getBlockCount (); b++)
+      TestUtil.checkEquals (postings.get (Math.min (n, (b + 1) * InvList.BLOCK_SIZE) - 1).docid,
+			    list.getBlockLastDocid (b), message + ":  last docid of block " + b);
+
+    //  A cursor, reading positions of only some postings.
+
+    InvList.Cursor c = list.cursor ();
+
+    for (int i = 0; i < n; i++, c.next ()) {
+      Posting p = postings.get (i);
+
+      TestUtil.check (c.hasPosting (), message + ":  cursor has " + i);
+      TestUtil.checkEquals (p.docid, c.getDocid (), message + ":  cursor docid " + i);
+      TestUtil.checkEquals (p.positions.length, c.getTf (), message + ":  cursor tf " + i);
+
+      if (i % 3 == 0)
+	TestUtil.check (prefixEquals (p.positions, c.getPositions ()),
+			message + ":  cursor positions " + i);
+    }
+
+    TestUtil.check (! c.hasPosting (), message + ":  cursor at the end");
+  }
+
+  /**
+   *  The largest docids, gaps and positions.
+   */
+  private static void checkExtremes () {
+    InvList list = new InvList ("body");
+    int[][] positions = {
+      { 0 },
+      { Integer.MAX_VALUE },
+      { 0, 1, Integer.MAX_VALUE - 1, Integer.MAX_VALUE },
+    };
+    int[] docids = { 0, 1, Integer.MAX_VALUE };
+
+    for (int i = 0; i < docids.length; i++)
+      list.appendPosting (docids [i], positions [i], positions [i].length);
+
+    for (int i = 0; i < docids.length; i++) {
+      TestUtil.checkEquals (docids [i], list.getDocid (i), "extreme docid " + i);
+      TestUtil.check (prefixEquals (positions [i], list.getPositions (i)),
+		      "extreme positions " + i);
+    }
+  }
+
+  /**
+   *  Appending out of order fails, and a cursor sees postings that are
+   *  appended to the block that it has decoded.
+   */
+  private static void checkAppend () {
+    InvList list = new InvList ("body");
+    InvList.Cursor c = list.cursor ();
+
+    TestUtil.check (list.appendPosting (5, new int[] { 1 }, 1), "append 5");
+    TestUtil.check (! list.appendPosting (5, new int[] { 2 }, 1), "append 5 again");
+    TestUtil.check (! list.appendPosting (4, new int[] { 2 }, 1), "append 4 after 5");
+    TestUtil.checkEquals (1, list.df, "df after rejected appends");
+    TestUtil.checkEquals (5, c.getDocid (), "cursor docid before append");
+
+    list.appendPosting (9, new int[] { 3, 7 }, 2);
+    c.next ();
+    TestUtil.check (c.hasPosting (), "cursor sees the appended posting");
+    TestUtil.checkEquals (9, c.getDocid (), "cursor docid after append");
+    TestUtil.checkEquals (2, c.getTf (), "cursor tf after append");
+    TestUtil.check (prefixEquals (new int[] { 3, 7 }, c.getPositions ()),
+		    "cursor positions after append");
+  }
+
+  /**
+   *  Compare advanceTo with a linear scan, from random starting
+   *  postings to targets near block boundaries and random targets.
+   */
+  private static void checkAdvanceTo (Random random) {
+
+    //  Runs of consecutive docids and long gaps, so that some targets
+    //  are in the current block and some are many blocks ahead.
+
+    int n = 40 * InvList.BLOCK_SIZE + 5;
+    int[] docids = new int[n];
+    InvList list = new InvList ("body");
+    int docid = 3;
+
+    for (int i = 0; i < n; i++) {
+      docid += (random.nextInt (10) == 0) ? 1 + random.nextInt (5000) : 1;
+      docids [i] = docid;
+      list.appendPosting (docid, new int[] { i }, 1);
+    }
+
+    List<Integer> targets = new ArrayList<Integer> ();
+
+    targets.add (0);
+    targets.add (docids [n - 1] + 1);
+    targets.add (Integer.MAX_VALUE);
+
+    for (int b = 0; b < list.getBlockCount (); b++) {
+      int last = list.getBlockLastDocid (b);
+      int first = docids [b * InvList.BLOCK_SIZE];
+
+      targets.add (first - 1);
+      targets.add (first);
+      targets.add (last - 1);
+      targets.add (last);
+      targets.add (last + 1);
+    }
+
+    for (int t = 0; t < 2000; t++)
+      targets.add (random.nextInt (docids [n - 1] + 2));
+
+    for (int target : targets) {
+      for (int k = 0; k < 5; k++) {
+	int start = (k == 0) ? 0 : random.nextInt (n + 1);
+	InvList.Cursor c = list.cursor ();
+	c.setIndex (start);
+
+	//  Decode the starting block first, as an iterator would have.
+
+	if (c.hasPosting ())
+	  c.getDocid ();
+
+	c.advanceTo (target);
+
+	int expected = start;
+
+	while ((expected < n) && (docids [expected] < target))
+	  expected ++;
+
+	TestUtil.checkEquals (expected, c.getIndex (),
+			      "advanceTo " + target + " from " + start);
+
+	if (c.hasPosting ())
+	  TestUtil.checkEquals (docids [expected], c.getDocid (),
+				"docid after advanceTo " + target + " from " + start);
+      }
+    }
+
+    //  A cursor that advances repeatedly, as query operators do.
+
+    InvList.Cursor c = list.cursor ();
+    int expected = 0;
+    int target = 0;
+
+    while (c.hasPosting ()) {
+      target += 1 + random.nextInt ((random.nextInt (4) == 0) ? 20000 : 3);
+      c.advanceTo (target);
+
+      while ((expected < n) && (docids [expected] < target))
+	expected ++;
+
+      TestUtil.checkEquals (expected, c.getIndex (), "repeated advanceTo " + target);
+    }
+  }
+
+  /**
+   *  True if a is a prefix of b.  Position arrays are reused, so they
+   *  may be longer than tf.
+   */
+  private static boolean prefixEquals (int[] a, int[] b) {
+    return (b.length >= a.length) &&
+      Arrays.equals (a, Arrays.copyOf (b, a.length));
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Checks that the top k documents of #SUM and #OR queries evaluated
+ *  with MaxScore pruning are the top k documents of exhaustive
+ *  evaluation, with the same scores, with and without the ImpactIndex
+ *  block bounds, and with copied and streamed TERM operators.
+ */
+public class MaxScoreTest {
+
+  private static final String[] QUERIES = {
+    "zqaax zqbax zqfsx",
+    "zqabx zqacx",
+    "zqgrx zqaax",
+    "zqaax zqabx zqacx zqadx zqaex",
+    "zqfax zqfbx zqfcx zqaax",
+    "zqcax zqaax.title zqbbx",
+    "zqgrx",
+  };
+
+  private static final int[] DEPTHS = { 1, 10, 100 };
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("maxscore");
+    TestUtil.buildIndex (dir, 3000, 11, 5);
+
+    checkQueries (new IndexHandle (dir.getPath ()), "no impact index");
+
+    //  Block bounds.  BuildImpactIndex uses the default parameters of
+    //  the models below.
+
+    BuildImpactIndex.main (new String[] { "-index", dir.getPath () });
+    IndexHandle index = new IndexHandle (dir.getPath ());
+
+    TestUtil.check (index.getImpactIndex () != null, "the impact index is used");
+    checkQueries (index, "impact index");
+
+    TestUtil.finish ("MaxScoreTest");
+  }
+
+  private static void checkQueries (IndexHandle index, String message)
+    throws IOException {
+
+    RetrievalModel[] models = {
+      new RetrievalModelBM25 (1.2f, 0.75f, 0),
+      new RetrievalModelRankedBoolean (),
+    };
+    String[] operators = { "#sum", "#or" };
+
+    for (int m = 0; m < models.length; m++) {
+      RetrievalModel model = models [m];
+
+      for (boolean streaming : new boolean[] { false, true }) {
+	model.streamingTerms = streaming;
+
+	for (String terms : QUERIES) {
+	  String query = operators [m] + "(" + terms + ")";
+	  ScoreList all = QryEval.processQuery (query, model, 0, index);
+	  all.sort ();
+
+	  for (int k : DEPTHS) {
+	    ScoreList r = QryEval.processQuery (query, model, k, index);
+	    r.sort ();
+
+	    TestUtil.checkEquals (TestUtil.results (all, k), TestUtil.results (r, k),
+				  message + ", " + model + ", streaming=" + streaming +
+				  ", " + query + ", k=" + k);
+	  }
+	}
+      }
+    }
+  }
+}
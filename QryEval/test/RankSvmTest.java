@@ -0,0 +1,143 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  Checks RankSvm training against problems with known solutions, and
+ *  that a trained ranker is near the optimum of the RankSVM objective,
+ *  i.e., that moving any weight doesn't lower the objective by more
+ *  than the training tolerance allows.
+ */
+public class RankSvmTest {
+
+  public static void main (String[] args) {
+
+    //  One pair, z = x_hi - x_lo = 1:  minimize 0.5 w^2 + C max (0, 1 - w),
+    //  so w = min (C, 1).
+
+    checkWeight (0.5, 1, 0.5, "C = 0.5");
+    checkWeight (10, 1, 1.0, "C = 10");
+
+    //  The same pair in two queries:  C' = C / 2 for each of the 2
+    //  pairs, so the solution doesn't change.
+
+    checkWeight (0.5, 2, 0.5, "C = 0.5, 2 queries");
+
+    //  Random queries.
+
+    Random random = new Random (8);
+    List<RankSvm.Query> queries = randomQueries (random, 12, 25, 6);
+
+    for (double c : new double[] { 0.001, 0.1, 10 }) {
+      RankSvm ranker = RankSvm.train (queries, c);
+      double[] w = ranker.getWeights ();
+      double f = objective (queries, c, w);
+
+      for (int k = 0; k < w.length; k++) {
+	for (double delta : new double[] { -0.01, 0.01 }) {
+	  double[] v = w.clone ();
+	  v [k] += delta;
+
+	  TestUtil.check (f <= objective (queries, c, v) + 1e-3 * f,
+			  "C = " + c + ":  moving weight " + k + " by " + delta +
+			  " lowers the objective");
+	}
+      }
+
+      TestUtil.checkEquals (Arrays.toString (w),
+			    Arrays.toString (RankSvm.train (queries, c).getWeights ()),
+			    "C = " + c + ":  training is deterministic");
+
+      double s = 0;
+
+      for (int k = 0; k < w.length; k++)
+	s += w [k] * queries.get (0).features [0][k];
+
+      TestUtil.checkEquals (s, ranker.score (queries.get (0).features [0]),
+			    "C = " + c + ":  score is the dot product");
+    }
+
+    try {
+      RankSvm.train (queries, 0);
+      TestUtil.check (false, "C = 0 is rejected");
+    } catch (IllegalArgumentException ex) {
+    }
+
+    TestUtil.finish ("RankSvmTest");
+  }
+
+  /**
+   *  Train on copies of a query with two documents, whose features
+   *  differ by 1, and check the weight.
+   */
+  private static void checkWeight (double c, int copies, double expected,
+				   String message) {
+    List<RankSvm.Query> queries = new ArrayList<RankSvm.Query> ();
+
+    for (int q = 0; q < copies; q++)
+      queries.add (new RankSvm.Query (q, Arrays.asList ("a", "b"),
+				      new double[][] { { 1 }, { 0 } },
+				      new int[] { 1, 0 }));
+
+    double w = RankSvm.train (queries, c).getWeights () [0];
+
+    TestUtil.check (Math.abs (w - expected) < 1e-9,
+		    message + ":  expected " + expected + ", got " + w);
+  }
+
+  /**
+   *  Queries whose relevance labels depend on noisy features, so that
+   *  some pairs can't be ordered.
+   */
+  private static List<RankSvm.Query> randomQueries (Random random, int numQueries,
+						    int numDocs, int dims) {
+    List<RankSvm.Query> queries = new ArrayList<RankSvm.Query> ();
+
+    for (int q = 0; q < numQueries; q++) {
+      double[][] features = new double[numDocs][dims];
+      int[] labels = new int[numDocs];
+      List<String> docs = new ArrayList<String> ();
+
+      for (int d = 0; d < numDocs; d++) {
+	labels [d] = random.nextInt (3);
+	docs.add ("d" + d);
+
+	for (int k = 0; k < dims; k++)
+	  features [d][k] = random.nextDouble () + ((k < 2) ? 0.3 * labels [d] : 0);
+      }
+
+      queries.add (new RankSvm.Query (q, docs, features, labels));
+    }
+
+    return queries;
+  }
+
+  /**
+   *  The RankSVM objective:  0.5 |w|^2 + C / n * the sum of the pairs'
+   *  hinge losses, where n is the number of queries.
+   */
+  private static double objective (List<RankSvm.Query> queries, double c,
+				   double[] w) {
+    double loss = 0;
+
+    for (RankSvm.Query q : queries)
+      for (int i = 0; i < q.labels.length; i++)
+	for (int j = 0; j < q.labels.length; j++)
+	  if (q.labels [i] > q.labels [j]) {
+	    double m = 0;
+
+	    for (int k = 0; k < w.length; k++)
+	      m += w [k] * (q.features [i][k] - q.features [j][k]);
+
+	    loss += Math.max (0, 1 - m);
+	  }
+
+    double norm = 0;
+
+    for (double x : w)
+      norm += x * x;
+
+    return 0.5 * norm + c / queries.size () * loss;
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Checks that sort (n) puts the first n entries of a ScoreList in the
+ *  order that sort () does, and that it only looks up the external
+ *  docids of ties that reach into the first n entries.
+ */
+public class ScoreListTest {
+
+  private static final int NUM_DOCS = 300;
+
+  /**
+   *  An IndexHandle that counts external docid lookups.
+   */
+  private static class CountingIndexHandle extends IndexHandle {
+
+    int lookups = 0;
+
+    CountingIndexHandle (String indexPath) throws IOException {
+      super (indexPath);
+    }
+
+    public String getExternalDocid (int iid) throws IOException {
+      this.lookups ++;
+      return super.getExternalDocid (iid);
+    }
+  }
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("scorelist");
+    Random random = new Random (5);
+    TestUtil.buildShuffledIndex (dir, NUM_DOCS, random);
+    CountingIndexHandle index = new CountingIndexHandle (dir.getPath ());
+
+    for (int trial = 0; trial < 200; trial++) {
+      int n = random.nextInt (NUM_DOCS + 20);
+      int numScores = 1 + random.nextInt ((trial % 2 == 0) ? 3 : 200);
+      ScoreList all = new ScoreList (index);
+      ScoreList some = new ScoreList (index);
+
+      for (int d = 0; d < NUM_DOCS; d++) {
+	double score = random.nextInt (numScores) * 0.5;
+	all.add (d, score);
+	some.add (d, score);
+      }
+
+      all.sort ();
+
+      index.lookups = 0;
+      some.sort (n);
+
+      //  Only the docids of runs that start before n are looked up.
+
+      int expected = 0;
+
+      for (int lo = 0; lo < Math.min (n, NUM_DOCS); ) {
+	int hi = lo + 1;
+
+	while ((hi < NUM_DOCS) &&
+	       (all.getDocidScore (hi) == all.getDocidScore (lo)))
+	  hi ++;
+
+	if (hi - lo > 1)
+	  expected += hi - lo;
+
+	lo = hi;
+      }
+
+      String message = "trial " + trial + " (n=" + n + ", " + numScores + " scores)";
+
+      TestUtil.check (index.lookups <= expected,
+		      message + ":  " + index.lookups + " lookups, at most " +
+		      expected + " expected");
+      TestUtil.checkEquals (TestUtil.results (all, n), TestUtil.results (some, n), message);
+    }
+
+    //  Every document ties, as in unranked Boolean retrieval.
+
+    ScoreList r = new ScoreList (index);
+
+    for (int d = 0; d < NUM_DOCS; d++)
+      r.add (d, 1.0);
+
+    index.lookups = 0;
+    r.sort (0);
+    TestUtil.checkEquals (0, index.lookups, "sort (0) of ties looks up no docids");
+
+    TestUtil.finish ("ScoreListTest");
+  }
+}
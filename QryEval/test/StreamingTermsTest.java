@@ -0,0 +1,87 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Checks that TERM operators that stream Lucene's posting lists give
+ *  the same df, ctf, postings and rankings as TERM operators that copy
+ *  them into InvLists, on an index with deleted documents.
+ */
+public class StreamingTermsTest {
+
+  private static final String[] QUERIES = {
+    "zqaax zqafx zqfsx",
+    "zqcax zqcbx",
+    "zqgrx",
+    "zqaax.title zqabx",
+  };
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("streaming");
+    TestUtil.buildIndex (dir, 3000, 7, 1);
+    IndexHandle index = new IndexHandle (dir.getPath ());
+
+    TestUtil.check (index.getIndexReader ().hasDeletions (),
+		    "the index has deletions");
+
+    //  df, ctf and postings of single terms.
+
+    for (int i = 0; i < TestUtil.VOCABULARY_SIZE; i += 13) {
+      String term = TestUtil.term (i);
+      RetrievalModel streaming = new RetrievalModelBM25 (1.2, 0.75, 0);
+      streaming.streamingTerms = true;
+
+      QryIopTerm a = new QryIopTerm (term);
+      QryIopTerm b = new QryIopTerm (term);
+      a.initialize (new RetrievalModelBM25 (1.2, 0.75, 0), index);
+      b.initialize (streaming, index);
+
+      TestUtil.checkEquals (a.getDf (), b.getDf (), term + " df");
+      TestUtil.checkEquals (a.getCtf (), b.getCtf (), term + " ctf");
+      TestUtil.check (b.getDf () <= index.getNumDocs (),
+		      term + " df is at most N");
+
+      while (a.docIteratorHasMatch (null) && b.docIteratorHasMatch (null)) {
+	int docid = a.docIteratorGetMatch ();
+
+	TestUtil.checkEquals (docid, b.docIteratorGetMatch (), term + " docid");
+	TestUtil.checkEquals (a.docIteratorGetMatchTf (),
+			      b.docIteratorGetMatchTf (), term + " tf");
+	a.docIteratorAdvancePast (docid);
+	b.docIteratorAdvancePast (docid);
+      }
+
+      TestUtil.checkEquals (a.docIteratorHasMatch (null),
+			    b.docIteratorHasMatch (null), term + " length");
+    }
+
+    //  Rankings.
+
+    RetrievalModel[] models = {
+      new RetrievalModelBM25 (1.2, 0.75, 0),
+      new RetrievalModelIndri (2500, 0.4f),
+    };
+
+    for (RetrievalModel model : models) {
+      for (String terms : QUERIES) {
+	String query = model.defaultQrySopName () + "(" + terms + ")";
+	model.streamingTerms = false;
+	ScoreList a = QryEval.processQuery (query, model, 0, index);
+	model.streamingTerms = true;
+	ScoreList b = QryEval.processQuery (query, model, 0, index);
+	a.sort ();
+	b.sort ();
+
+	TestUtil.checkEquals (a.size (), b.size (), model + " " + query + " size");
+	TestUtil.checkEquals (TestUtil.results (a, a.size ()),
+			      TestUtil.results (b, b.size ()),
+			      model + " " + query + " ranking");
+      }
+    }
+
+    TestUtil.finish ("StreamingTermsTest");
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Checks that #SYN merges the postings of its arguments into the
+ *  union of their documents and positions, with each position kept
+ *  once, e.g., #SYN (apple apple) has the postings of apple.
+ */
+public class SynTest {
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("syn");
+    TestUtil.buildIndex (dir, 2000, 0, 6);
+    IndexHandle index = new IndexHandle (dir.getPath ());
+
+    String a = TestUtil.term (0);	// Common
+    String b = TestUtil.term (40);
+    String c = TestUtil.term (150);	// Rare
+
+    String[][] cases = {
+      { a },
+      { a, a },
+      { b, b, b },
+      { a, b },
+      { b, c, a },
+      { c, "zqnotindexedx" },
+    };
+
+    for (boolean streaming : new boolean[] { false, true }) {
+      RetrievalModel model = new RetrievalModelBM25 (1.2, 0.75, 0);
+      model.streamingTerms = streaming;
+
+      for (String[] terms : cases) {
+	QryIopSyn syn = new QryIopSyn ();
+
+	for (String term : terms)
+	  syn.appendArg (new QryIopTerm (term));
+
+	check (syn, union (index, terms), model, index,
+	       "streaming=" + streaming + ", " + Arrays.toString (terms));
+      }
+
+      //  Nested operators share positions too.
+
+      QryIopSyn inner = new QryIopSyn ();
+      inner.appendArg (new QryIopTerm (a));
+      inner.appendArg (new QryIopTerm (b));
+
+      QryIopSyn outer = new QryIopSyn ();
+      outer.appendArg (new QryIopTerm (b));
+      outer.appendArg (inner);
+
+      check (outer, union (index, new String[] { a, b }), model, index,
+	     "streaming=" + streaming + ", nested");
+    }
+
+    TestUtil.finish ("SynTest");
+  }
+
+  /**
+   *  The union of the postings of some terms in the body field, read
+   *  from copied TERM operators:  docid -> positions.
+   */
+  private static SortedMap<Integer, SortedSet<Integer>> union (IndexHandle index,
+							       String[] terms)
+    throws IOException {
+
+    SortedMap<Integer, SortedSet<Integer>> postings =
+      new TreeMap<Integer, SortedSet<Integer>> ();
+
+    for (String term : terms) {
+      QryIopTerm t = new QryIopTerm (term);
+      t.initialize (new RetrievalModelBM25 (1.2, 0.75, 0), index);
+
+      while (t.docIteratorHasMatch (null)) {
+	int docid = t.docIteratorGetMatch ();
+	int[] positions = t.docIteratorGetMatchPositions ();
+
+	if (! postings.containsKey (docid))
+	  postings.put (docid, new TreeSet<Integer> ());
+
+	for (int j = 0; j < t.docIteratorGetMatchTf (); j++)
+	  postings.get (docid).add (positions [j]);
+
+	t.docIteratorAdvancePast (docid);
+      }
+    }
+
+    return postings;
+  }
+
+  private static void check (QryIopSyn syn,
+			     SortedMap<Integer, SortedSet<Integer>> expected,
+			     RetrievalModel model, IndexHandle index,
+			     String message) throws IOException {
+
+    syn.initialize (model, index);
+
+    int ctf = 0;
+
+    for (SortedSet<Integer> positions : expected.values ())
+      ctf += positions.size ();
+
+    TestUtil.checkEquals (expected.size (), syn.getDf (), message + ":  df");
+    TestUtil.checkEquals ((long) ctf, syn.getCtf (), message + ":  ctf");
+
+    for (Map.Entry<Integer, SortedSet<Integer>> e : expected.entrySet ()) {
+      if (! syn.docIteratorHasMatch (null)) {
+	TestUtil.check (false, message + ":  missing " + e.getKey ());
+	return;
+      }
+
+      int docid = syn.docIteratorGetMatch ();
+      List<Integer> positions = new ArrayList<Integer> ();
+      int[] p = syn.docIteratorGetMatchPositions ();
+
+      for (int j = 0; j < syn.docIteratorGetMatchTf (); j++)
+	positions.add (p [j]);
+
+      TestUtil.checkEquals (e.getKey (), docid, message + ":  docid");
+      TestUtil.checkEquals (new ArrayList<Integer> (e.getValue ()), positions,
+			    message + ":  positions of " + docid);
+      syn.docIteratorAdvancePast (docid);
+    }
+
+    TestUtil.check (! syn.docIteratorHasMatch (null), message + ":  extra documents");
+  }
+}
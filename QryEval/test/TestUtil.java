@@ -0,0 +1,230 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ *  Checks and fixtures that the test programs share.  Each test
+ *  program is a class with a main method that runs its checks and
+ *  exits with a non-zero status if one fails; "make test" runs them
+ *  all.
+ *  <p>
+ *  The fixture is a small synthetic index in a temporary directory.
+ *  Its terms are made-up words that the query parser's analyzer
+ *  leaves unchanged, drawn from a skewed distribution so that there
+ *  are both rare terms and terms that occur in most documents.
+ *  </p>
+ */
+public class TestUtil {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of different terms in a synthetic index.
+   */
+  static final int VOCABULARY_SIZE = 200;
+
+  private static int failures = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Record a failed check if a condition is false.
+   *  @param condition The condition.
+   *  @param message What was checked.
+   */
+  static void check (boolean condition, String message) {
+    if (! condition) {
+      System.out.println ("FAILED:  " + message);
+      failures ++;
+    }
+  }
+
+  /**
+   *  Record a failed check if two values aren't equal.
+   *  @param expected The expected value.
+   *  @param actual The actual value.
+   *  @param message What was checked.
+   */
+  static void checkEquals (Object expected, Object actual, String message) {
+    check (Objects.equals (expected, actual),
+	   message + ":  expected " + expected + ", got " + actual);
+  }
+
+  /**
+   *  Report the checks of a test program, and exit with a non-zero
+   *  status if one failed.
+   *  @param name The name of the test program.
+   */
+  static void finish (String name) {
+    if (failures > 0) {
+      System.out.println (name + ":  " + failures + " checks failed");
+      System.exit (1);
+    }
+
+    System.out.println (name + ":  passed");
+  }
+
+  /**
+   *  The i'th term of the synthetic vocabulary.
+   *  @param i A term number, less than VOCABULARY_SIZE.
+   *  @return The term.
+   */
+  static String term (int i) {
+    return "zq" + (char) ('a' + i / 26 % 26) + (char) ('a' + i % 26) + "x";
+  }
+
+  /**
+   *  Build a synthetic index.  Documents have a body field and a title
+   *  field, and external ids of the form doc-00000.
+   *  @param dir The directory of the index.
+   *  @param numDocs The number of documents.
+   *  @param deleteEvery If positive, every deleteEvery'th document is
+   *  deleted after the index is built.
+   *  @param seed The seed of the random terms.
+   *  @throws IOException Error writing the index.
+   */
+  static void buildIndex (File dir, int numDocs, int deleteEvery, long seed)
+    throws IOException {
+
+    IndexWriterConfig config =
+      new IndexWriterConfig (Version.LUCENE_43,
+			     new WhitespaceAnalyzer (Version.LUCENE_43));
+    config.setSimilarity (new DocLenStoreSimilarity ());
+
+    IndexWriter writer =
+      new IndexWriter (FSDirectory.open (dir), config);
+    FieldType type = new FieldType (TextField.TYPE_STORED);
+    type.setStoreTermVectors (true);
+    type.setStoreTermVectorPositions (true);
+    Random random = new Random (seed);
+
+    for (int d = 0; d < numDocs; d++) {
+      Document doc = new Document ();
+      int len = 5 + random.nextInt (random.nextBoolean () ? 40 : 300);
+
+      doc.add (new StringField ("externalId", externalId (d), Field.Store.YES));
+      doc.add (new Field ("body", words (random, len), type));
+      doc.add (new Field ("title", words (random, 1 + random.nextInt (5)), type));
+      writer.addDocument (doc);
+    }
+
+    writer.commit ();
+
+    if (deleteEvery > 0) {
+      for (int d = 0; d < numDocs; d += deleteEvery)
+	writer.deleteDocuments (new Term ("externalId", externalId (d)));
+    }
+
+    writer.close ();
+  }
+
+  /**
+   *  Build an index whose external docids are a random permutation of
+   *  its internal docids, so that ordering by one differs from
+   *  ordering by the other.
+   *  @param dir The directory of the index.
+   *  @param numDocs The number of documents.
+   *  @param random The source of the permutation.
+   *  @throws IOException Error writing the index.
+   */
+  static void buildShuffledIndex (File dir, int numDocs, Random random)
+    throws IOException {
+
+    IndexWriterConfig config =
+      new IndexWriterConfig (Version.LUCENE_43,
+			     new WhitespaceAnalyzer (Version.LUCENE_43));
+    config.setSimilarity (new DocLenStoreSimilarity ());
+
+    IndexWriter writer = new IndexWriter (FSDirectory.open (dir), config);
+    List<Integer> ids = new ArrayList<Integer> ();
+
+    for (int d = 0; d < numDocs; d++)
+      ids.add (d);
+
+    Collections.shuffle (ids, random);
+
+    for (int d = 0; d < numDocs; d++) {
+      Document doc = new Document ();
+
+      doc.add (new StringField ("externalId", externalId (ids.get (d)), Field.Store.YES));
+      doc.add (new TextField ("body", term (d % 10), Field.Store.NO));
+      writer.addDocument (doc);
+    }
+
+    writer.close ();
+  }
+
+  /**
+   *  The external id of the d'th document of a synthetic index.
+   */
+  static String externalId (int d) {
+    return String.format ("doc-%05d", d);
+  }
+
+  private static String words (Random random, int len) {
+    StringBuilder s = new StringBuilder ();
+
+    for (int j = 0; j < len; j++) {
+      int i = (int) (Math.pow (random.nextDouble (), 2.5) * VOCABULARY_SIZE);
+      s.append (term (i)).append (' ');
+    }
+
+    return s.toString ();
+  }
+
+  /**
+   *  Create an empty temporary directory that is deleted when the
+   *  test program exits.
+   *  @param prefix A prefix of the directory's name.
+   *  @return The directory.
+   *  @throws IOException Error creating the directory.
+   */
+  static File tempDir (String prefix) throws IOException {
+    final File dir = File.createTempFile (prefix, "");
+
+    if (! dir.delete () || ! dir.mkdir ())
+      throw new IOException ("Unable to create " + dir);
+
+    Runtime.getRuntime ().addShutdownHook (new Thread () {
+	public void run () {
+	  delete (dir);
+	}
+      });
+
+    return dir;
+  }
+
+  private static void delete (File f) {
+    File[] children = f.listFiles ();
+
+    if (children != null)
+      for (File c : children)
+	delete (c);
+
+    f.delete ();
+  }
+
+  /**
+   *  The <external docid, score> pairs of a ScoreList, in order.
+   *  @param r A ScoreList.
+   *  @param n The number of pairs, at most.
+   *  @return The pairs, one string each.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static List<String> results (ScoreList r, int n) throws IOException {
+    List<String> s = new ArrayList<String> ();
+
+    for (int i = 0; i < Math.min (n, r.size ()); i++)
+      s.add (r.getExternalDocid (i) + " " + String.format ("%.9f", r.getDocidScore (i)));
+
+    return s;
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Checks that TopKCollector keeps the same k documents, in the same
+ *  order, as sorting a ScoreList of every document and truncating it,
+ *  when many scores tie.  The external docids of the test index are
+ *  in a different order than its internal docids, so a tie broken by
+ *  internal docid gives a different ranking.
+ */
+public class TopKCollectorTest {
+
+  private static final int NUM_DOCS = 300;
+
+  public static void main (String[] args) throws IOException {
+
+    File dir = TestUtil.tempDir ("topk");
+    Random random = new Random (4);
+    TestUtil.buildShuffledIndex (dir, NUM_DOCS, random);
+    IndexHandle index = new IndexHandle (dir.getPath ());
+
+    for (int trial = 0; trial < 300; trial++) {
+      int k = 1 + random.nextInt ((trial % 3 == 0) ? 5 : 60);
+      int numScores = 1 + random.nextInt (6);	// Few scores, many ties
+      TopKCollector topK = new TopKCollector (k, index);
+      ScoreList all = new ScoreList (index);
+      List<Integer> docids = new ArrayList<Integer> ();
+
+      for (int d = 0; d < NUM_DOCS; d++)
+	docids.add (d);
+
+      Collections.shuffle (docids, random);
+      docids = docids.subList (0, 1 + random.nextInt (NUM_DOCS));
+
+      for (int docid : docids) {
+	double score = random.nextInt (numScores) * 0.25;
+
+	//  Any score is enough until the collector is full.
+
+	if (topK.size () < k)
+	  TestUtil.checkEquals (Double.NEGATIVE_INFINITY, topK.getThreshold (),
+				"threshold before the collector is full");
+
+	topK.add (docid, score);
+	all.add (docid, score);
+      }
+
+      all.sort ();
+      all.truncate (k);
+
+      ScoreList r = topK.getScoreList ();
+      r.sort ();
+
+      String message = "trial " + trial + " (k=" + k + ", " + docids.size () + " documents)";
+
+      TestUtil.checkEquals (TestUtil.results (all, k), TestUtil.results (r, k), message);
+
+      if (docids.size () >= k)
+	TestUtil.checkEquals (all.getDocidScore (k - 1), topK.getThreshold (),
+			      message + " threshold");
+    }
+
+    TestUtil.finish ("TopKCollectorTest");
+  }
+}